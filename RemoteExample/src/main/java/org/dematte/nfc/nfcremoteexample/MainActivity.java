@@ -10,9 +10,13 @@ import android.nfc.tech.IsoDep;
 import android.os.Bundle;
 import android.util.Log;
 import org.dematte.nfc.android.AndroidCommunicator;
+import org.dematte.nfc.common.ITagLostListener;
+import org.dematte.nfc.common.ITagService;
 import org.dematte.nfc.common.MifareDesfire;
+import org.dematte.nfc.common.PresenceKeepalive;
+import org.dematte.nfc.common.ReflectiveTagService;
 
-import java.lang.reflect.Method;
+import java.io.IOException;
 import java.util.Arrays;
 
 
@@ -20,14 +24,17 @@ import java.util.Arrays;
  * An example activity that works around Android < 5 test presence bug
  *
  * For the solution to work, you basically need three pieces:
- * 1) a Thread class. This rearms the internal Android watchdog, so it does not perform
- *    a "select" any time there is no communication within 125 ms
+ * 1) a PresenceKeepalive. This rearms the internal Android watchdog, so it does not perform
+ *    a "select" any time there is no communication within 125 ms; one thread serves all tags
  *
- * 2) some stubs to call internal methods through reflection
+ * 2) a ReflectiveTagService, to call internal methods through reflection
  *
- * 3) an override to onNewIntent which will start the Thread class.
+ * 3) an override to onNewIntent which will register the tag with the keepalive.
  *    You will have this override anyway, to use NFC, but you will need to perform a
  *    couple of steps here.
+ *
+ * Hand the registration to the communicator: exchanges then count as activity (the tag is not
+ * pinged while it has traffic), and closing the communicator ends the registration.
  */
 public class MainActivity extends Activity {
 
@@ -67,115 +74,45 @@ public class MainActivity extends Activity {
         nfcAdapter.enableForegroundDispatch(this, pendingIntent, intentFiltersArray, techListsArray);
     }
 
-    // 1) the "rearm" thread
-    static class CardWatchdogRearm extends Thread {
-
-        private final Object nfcTag;
-        private final int nativeHandle;
-
-        CardWatchdogRearm(Object nfcTag, int nativeHandle) {
-            this.nfcTag = nfcTag;
-            this.nativeHandle = nativeHandle;
-        }
-
-        @Override
-        public void run() {
-            // After 10 seconds, die anyway
-            for (int i = 0; i < 250; ++i) {
-                try {
-                    int result = INfcTag_connect(nfcTag, nativeHandle, 0);
-                    boolean present = INfcTag_isPresent(nfcTag, nativeHandle);
-                    if (!present) {
-                        Log.d("CardWatchdogRearm", "INfcTag_connect: " + result);
-                        break;
-                    }
-
-                    Thread.sleep(40);
-                }
-                catch (Exception e) {
-                    Log.e("CardWatchdogRearm", e.getMessage());
-                    break;
-                }
-            }
-        }
-    }
-
-
-
-    public static Object Tag_getTagService(Tag that) {
-        try {
-            Class c = Tag.class;
-            //c = Class.forName("android.nfc.Tag");
-            Method m = c.getMethod("getTagService");
-            Object nfcTag = m.invoke(that);
-            return nfcTag;
-        }
-        catch (Exception ex) {
-            Log.e("NfcRemoteExample", ex.getMessage());
-            return null;
-        }
-    }
-
-    public static int Tag_getServiceHandle(Tag that) {
-        try {
-            Class c = Tag.class;
-            //c = Class.forName("android.nfc.Tag");
-            Method m = c.getMethod("getServiceHandle");
-            int serviceHandle = (Integer)m.invoke(that);
-            return serviceHandle;
-        }
-        catch (Exception ex) {
-            Log.e("NfcRemoteExample", ex.getMessage());
-            return 0;
-        }
-    }
-
-    public static int INfcTag_connect(Object that, int nativeHandle, int technology) {
-        try {
-            Class c = Class.forName("android.nfc.INfcTag$Stub$Proxy");
-
-            Method m = c.getMethod("connect", int.class, int.class);
-            return (Integer)m.invoke(that, nativeHandle, technology);
-        }
-        catch (Exception ex) {
-            Log.e("NfcRemoteExample", ex.getMessage());
-            return -1;
-        }
-    }
-
-    //public boolean isPresent(int nativeHandle) throws RemoteException
-    public static boolean INfcTag_isPresent(Object that, int nativeHandle) throws Exception {
-        Class c = Class.forName("android.nfc.INfcTag$Stub$Proxy");
-
-        Method m = c.getMethod("isPresent", int.class);
-        boolean result = (Boolean)m.invoke(that, nativeHandle);
-        return result;
-    }
-
     @Override
     public void onNewIntent(Intent intent) {
         Tag currentTag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
         if (currentTag != null) {
 
-            Object nfcTag = Tag_getTagService(currentTag);
-            int nativeHandle = Tag_getServiceHandle(currentTag);
-
-            new CardWatchdogRearm(nfcTag, nativeHandle).start();
+            // 1) and 2): re-arm the watchdog, from the thread shared by all tags
+            PresenceKeepalive.Registration keepalive = null;
+            try {
+                keepalive = PresenceKeepalive.getDefault().register(ReflectiveTagService.forTag(currentTag),
+                        tagLostListener);
+            }
+            catch (IOException e) {
+                Log.e("NfcRemoteExample", e.getMessage());
+            }
 
-            doSomethingWithThisCard(currentTag);
+            doSomethingWithThisCard(currentTag, keepalive);
         }
     }
 
+    private final ITagLostListener tagLostListener = new ITagLostListener() {
+        public void onTagLost(ITagService tag, Exception cause) {
+            if (cause != null)
+                Log.e("PresenceKeepalive", String.valueOf(cause.getMessage()));
+            else
+                Log.d("PresenceKeepalive", "Tag lost");
+        }
+    };
+
 
-    private void doSomethingWithThisCard(Tag tag) {
+    private void doSomethingWithThisCard(Tag tag, PresenceKeepalive.Registration keepalive) {
         // You may want to use the basic IsoDep/Tag classes
         // final IsoDep communicator = IsoDep.get(tag);
         // communicator.transceive();
         // ...
 
+        final AndroidCommunicator communicator = new AndroidCommunicator(IsoDep.get(tag), true);
+        // 3) exchanges count as activity, and close() ends the keepalive
+        communicator.setKeepalive(keepalive);
         try {
-            final AndroidCommunicator communicator = new AndroidCommunicator(IsoDep.get(tag), true);
-
             final MifareDesfire desfireCard = communicator.get(tag); // we do not specify a key here!
             if (desfireCard == null) {
                 Log.d("NfcRemoteExample", "Not a desfire card");
@@ -191,5 +128,13 @@ public class MainActivity extends Activity {
         catch (Exception e) {
             Log.e("NfcRemoteExample", e.getMessage(), e);
         }
+        finally {
+            try {
+                communicator.close();
+            }
+            catch (IOException e) {
+                Log.e("NfcRemoteExample", e.getMessage());
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.common.Challenge;
+import org.dematte.nfc.common.MifareDesfire;
+import org.dematte.nfc.common.SimulatedDesfireCard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The 3DES authentication crypto path, alone and as a full exchange with a simulated card;
+ * AES (EV1) authentication, which also sets up the session MAC
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AuthenticationBenchmark {
+
+    private static final byte[] UID = new byte[]{0x04, 0x12, 0x34, 0x56, 0x78, (byte)0x9A, (byte)0xBC};
+
+    private MifareDesfire desfire;
+    private byte[] key;
+    private byte[] rndB;
+    private byte[] cardResponse;
+    private byte[] plainChallenge;
+
+    @Setup
+    public void setup() throws Exception {
+        SimulatedDesfireCard card = new SimulatedDesfireCard(UID, 42);
+        key = new byte[16];
+        card.addApplication(new byte[]{0x01, 0x02, 0x03}, (byte)0x0F, 1).setKey(0, key);
+
+        desfire = new MifareDesfire(card, UID);
+        desfire.connect();
+        desfire.selectApplication(new byte[]{0x01, 0x02, 0x03});
+
+        // A real challenge/answer pair, so that verifyCardResponse does all of its work
+        rndB = desfire.getCardChallenge((byte)0);
+        Challenge challenge = desfire.cardChallengeToCouplerChallenge(rndB, key);
+        cardResponse = card.transceive(challenge.getChallenge());
+        plainChallenge = challenge.getChallengeResponse();
+    }
+
+    @Benchmark
+    public Challenge cardChallengeToCouplerChallenge() throws Exception {
+        return desfire.cardChallengeToCouplerChallenge(rndB, key);
+    }
+
+    @Benchmark
+    public boolean verifyCardResponse() throws Exception {
+        return desfire.verifyCardResponse(cardResponse, plainChallenge, key);
+    }
+
+    @Benchmark
+    public boolean authenticate() throws Exception {
+        return desfire.authenticate((byte)0, key);
+    }
+
+    @Benchmark
+    public boolean authenticateAes() throws Exception {
+        return desfire.authenticateAes((byte)0, key);
+    }
+}
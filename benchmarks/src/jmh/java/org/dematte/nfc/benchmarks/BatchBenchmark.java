@@ -0,0 +1,65 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.common.DesfireBatch;
+import org.dematte.nfc.common.MifareDesfire;
+import org.dematte.nfc.common.SimulatedDesfireCard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A typical tap (select, authenticate, read, get file settings) over a slow remote link,
+ * one command at a time and as a batch
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BatchBenchmark {
+
+    private static final byte[] UID = new byte[]{0x04, 0x12, 0x34, 0x56, 0x78, (byte)0x9A, (byte)0xBC};
+    private static final byte[] AID = new byte[]{0x01, 0x02, 0x03};
+
+    // Round trip time to the remote coupler
+    @Param({"1", "5"})
+    public int rttMillis;
+
+    private MifareDesfire desfire;
+    private byte[] key;
+
+    @Setup
+    public void setup() throws Exception {
+        SimulatedDesfireCard card = new SimulatedDesfireCard(UID, 42);
+        key = new byte[16];
+        card.addApplication(AID, (byte)0x0F, 1).setKey(0, key)
+                .addStandardFile((byte)1, (byte)0, 0xEEEE, new byte[256]);
+        card.setLatency(rttMillis, TimeUnit.MILLISECONDS);
+
+        desfire = new MifareDesfire(card, UID);
+        desfire.connect();
+    }
+
+    @Benchmark
+    public byte[] sequential() throws Exception {
+        desfire.selectApplication(AID);
+        desfire.authenticate((byte)0, key);
+        desfire.readFile((byte)1, 0, 200);
+        return desfire.getFileSettings((byte)1);
+    }
+
+    @Benchmark
+    public DesfireBatch.StepResult[] batch() {
+        return desfire.batch()
+                .selectApplication(AID)
+                .authenticate((byte)0, key)
+                .readFile((byte)1, 0, 200)
+                .getFileSettings((byte)1)
+                .execute();
+    }
+}
@@ -0,0 +1,143 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.common.ByteArray;
+import org.dematte.nfc.common.ByteRope;
+import org.dematte.nfc.common.HexCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ByteArray building blocks, as used to build every command and to assemble every answer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ByteArrayBenchmark {
+
+    // A short command, a full frame, and a "large" file
+    @Param({"8", "48", "4096"})
+    public int size;
+
+    private byte[] data;
+    private byte[] other;
+    private byte[] answer;
+    private String hex;
+    private ByteArray builder;
+    private char[] hexBuffer;
+    private byte[] decodeBuffer;
+    private StringBuilder logLine;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        data = new byte[size];
+        other = new byte[size];
+        random.nextBytes(data);
+        random.nextBytes(other);
+        answer = new byte[size + 1];
+        System.arraycopy(data, 0, answer, 1, size);
+        hex = ByteArray.byteArrayToHexString(data);
+        builder = new ByteArray();
+        hexBuffer = new char[size * 2];
+        decodeBuffer = new byte[size];
+        logLine = new StringBuilder(size * 2 + 16);
+    }
+
+    @Benchmark
+    public byte[] appendBytes() {
+        ByteArray array = new ByteArray();
+        for (int i = 0; i < size; ++i)
+            array.append(data[i]);
+        return array.toArray();
+    }
+
+    @Benchmark
+    public byte[] appendFrames() {
+        // The way readFile assembles a file, one 48 bytes frame at a time
+        ByteArray array = new ByteArray();
+        for (int i = 0; i < size; i += 48)
+            array.append(data, i, Math.min(48, size - i));
+        return array.toArray();
+    }
+
+    @Benchmark
+    public byte[] ropeFrames() {
+        // The same, keeping the frames (as readFile gets them from sendBytes) and copying once
+        ByteRope rope = new ByteRope();
+        for (int i = 0; i < size; i += 48) {
+            int n = Math.min(48, size - i);
+            byte[] frame = new byte[n];
+            System.arraycopy(data, i, frame, 0, n);
+            rope.append(frame);
+        }
+        return rope.toArray();
+    }
+
+    @Benchmark
+    public byte[] appendCommand() {
+        return builder.clear().append((byte)0xBD).append((byte)1).append(0, 3).append(size, 3).toArray();
+    }
+
+    @Benchmark
+    public byte[] toArray() {
+        return builder.clear().append(data).toArray();
+    }
+
+    @Benchmark
+    public byte[] appendCut() {
+        return ByteArray.appendCut(data, answer);
+    }
+
+    @Benchmark
+    public byte[] xor() {
+        return ByteArray.xor(data, other);
+    }
+
+    @Benchmark
+    public byte[] shiftLT() {
+        return ByteArray.shiftLT(data);
+    }
+
+    @Benchmark
+    public byte[] shiftRT() {
+        return ByteArray.shiftRT(data);
+    }
+
+    @Benchmark
+    public String byteArrayToHexString() {
+        return ByteArray.byteArrayToHexString(data);
+    }
+
+    @Benchmark
+    public byte[] hexStringToByteArray() {
+        return ByteArray.hexStringToByteArray(hex);
+    }
+
+    @Benchmark
+    public char[] hexEncodeIntoBuffer() {
+        HexCodec.encode(data, 0, size, hexBuffer, 0);
+        return hexBuffer;
+    }
+
+    @Benchmark
+    public StringBuilder hexEncodeIntoLogLine() {
+        // An APDU debug log line, built in a reused StringBuilder
+        logLine.setLength(0);
+        return HexCodec.encode(data, 0, size, logLine.append("APDU > "));
+    }
+
+    @Benchmark
+    public byte[] hexDecodeIntoBuffer() {
+        HexCodec.decode(hex, 0, hex.length(), decodeBuffer, 0, true);
+        return decodeBuffer;
+    }
+}
@@ -0,0 +1,78 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.common.DesfireCrc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * DESFire CRC32 over a frame and over a whole file: slicing by 8, a byte at a time with the
+ * same table, and java.util.zip.CRC32 (intrinsic on most JVMs, but not on every Android)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CrcBenchmark {
+
+    @Param({"48", "4096"})
+    public int size;
+
+    private byte[] data;
+    private ByteBuffer direct;
+    private final DesfireCrc crc = DesfireCrc.crc32();
+    private final CRC32 zip = new CRC32();
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int n = 0; n < 256; ++n) {
+            int c = n;
+            for (int bit = 0; bit < 8; ++bit)
+                c = (c & 1) != 0 ? (c >>> 1) ^ 0xEDB88320 : c >>> 1;
+            TABLE[n] = c;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        data = new byte[size];
+        new Random(1).nextBytes(data);
+        direct = ByteBuffer.allocateDirect(size);
+        direct.put(data).flip();
+    }
+
+    @Benchmark
+    public int slicingBy8() {
+        return crc.reset().update(data, 0, data.length).getValue();
+    }
+
+    @Benchmark
+    public int slicingBy8Direct() {
+        direct.rewind();
+        return crc.reset().update(direct).getValue();
+    }
+
+    @Benchmark
+    public int byteAtATime() {
+        int c = 0xFFFFFFFF;
+        for (byte b : data)
+            c = (c >>> 8) ^ TABLE[(c ^ b) & 0xff];
+        return c;
+    }
+
+    @Benchmark
+    public int javaUtilZip() {
+        zip.reset();
+        zip.update(data, 0, data.length);
+        return (int)~zip.getValue();
+    }
+}
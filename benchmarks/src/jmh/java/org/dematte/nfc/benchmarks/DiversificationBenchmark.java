@@ -0,0 +1,99 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.common.KeyDiversifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AN10922 key diversification: one card (derived, or from the cache), and a list of cards
+ * derived in bulk, on one thread or in parallel
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiversificationBenchmark {
+
+    private static final byte[] MASTER_KEY = new byte[]{
+            0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77,
+            (byte)0x88, (byte)0x99, (byte)0xAA, (byte)0xBB, (byte)0xCC, (byte)0xDD, (byte)0xEE, (byte)0xFF};
+    private static final byte[] AID = new byte[]{0x01, 0x02, 0x03};
+    private static final int CARDS = 1000;
+
+    @Param({"TDES_2K", "AES_128"})
+    public KeyDiversifier.Algorithm algorithm;
+
+    private KeyDiversifier diversifier;
+    private List<byte[]> uids;
+
+    // Bulk runs get their own diversifier, emptied before each run so keys are derived
+    @State(Scope.Thread)
+    public static class Bulk {
+        KeyDiversifier diversifier;
+        ExecutorService executor;
+        int parallelism;
+
+        @Setup
+        public void setup(DiversificationBenchmark benchmark) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+            executor = Executors.newFixedThreadPool(parallelism);
+            diversifier = new KeyDiversifier(benchmark.algorithm, MASTER_KEY, null, CARDS);
+        }
+
+        @Setup(Level.Invocation)
+        public void clear() {
+            diversifier.clear();
+        }
+
+        @TearDown
+        public void tearDown() {
+            executor.shutdown();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        uids = new ArrayList<byte[]>(CARDS);
+        for (int i = 0; i < CARDS; ++i) {
+            byte[] uid = new byte[7];
+            random.nextBytes(uid);
+            uids.add(uid);
+        }
+        diversifier = new KeyDiversifier(algorithm, MASTER_KEY, null, CARDS);
+    }
+
+    @Benchmark
+    public byte[] deriveOne() throws Exception {
+        return diversifier.derive(uids.get(0), AID);
+    }
+
+    @Benchmark
+    public byte[] cachedRepeatTap() throws Exception {
+        return diversifier.diversify(uids.get(0), AID);
+    }
+
+    @Benchmark
+    public byte[][] bulkSequential(Bulk bulk) throws Exception {
+        return bulk.diversifier.diversifyAll(uids, AID, null, 1);
+    }
+
+    @Benchmark
+    public byte[][] bulkParallel(Bulk bulk) throws Exception {
+        return bulk.diversifier.diversifyAll(uids, AID, bulk.executor, bulk.parallelism);
+    }
+}
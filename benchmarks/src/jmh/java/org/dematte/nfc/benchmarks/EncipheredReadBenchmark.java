@@ -0,0 +1,80 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.common.MifareDesfire;
+import org.dematte.nfc.common.SimulatedDesfireCard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing an enciphered file within an AES session: cipher work done in line,
+ * between exchanges, or on a background lane while the next frame is on the air
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EncipheredReadBenchmark {
+
+    private static final byte[] UID = new byte[]{0x04, 0x12, 0x34, 0x56, 0x78, (byte)0x9A, (byte)0xBC};
+    private static final byte[] AID = new byte[]{0x01, 0x02, 0x03};
+    private static final int FILE_SIZE = 4096;
+
+    private static final Executor INLINE = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Param({"inline", "pipelined"})
+    public String crypto;
+
+    private ExecutorService lane;
+    private MifareDesfire desfire;
+    private byte[] data;
+
+    @Setup
+    public void setup() throws Exception {
+        data = new byte[FILE_SIZE];
+        new Random(7).nextBytes(data);
+        byte[] key = new byte[16];
+        SimulatedDesfireCard card = new SimulatedDesfireCard(UID, 42);
+        card.addApplication(AID, (byte)0x0F, 1).setKey(0, key)
+                .addStandardFile((byte)1, (byte)3, 0x0000, data.clone());
+        // Per exchange cost of a fast local reader
+        card.setLatency(200, TimeUnit.MICROSECONDS);
+
+        desfire = new MifareDesfire(card, UID);
+        lane = Executors.newSingleThreadExecutor();
+        desfire.setCryptoExecutor("inline".equals(crypto) ? INLINE : lane);
+        desfire.connect();
+        desfire.selectApplication(AID);
+        desfire.authenticateAes((byte)0, key);
+    }
+
+    @TearDown
+    public void tearDown() {
+        lane.shutdown();
+    }
+
+    @Benchmark
+    public int read() throws Exception {
+        return desfire.readFile((byte)1, 0, FILE_SIZE, MifareDesfire.CommunicationMode.ENCIPHERED).length;
+    }
+
+    @Benchmark
+    public void write() throws Exception {
+        desfire.writeFile(data, 1, 0, 0, MifareDesfire.CommunicationMode.ENCIPHERED);
+    }
+}
@@ -0,0 +1,65 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.android.AndroidCommunicator;
+import org.dematte.nfc.common.IsoApduCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wrapping of native commands in ISO 7816 APDUs, and unwrapping of the answers.
+ * No IsoDep is involved: the communicator is only used for its framing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IsoFramingBenchmark {
+
+    @Param({"1", "8", "56"})
+    public int commandSize;
+
+    private AndroidCommunicator communicator;
+    private IsoApduCodec codec;
+    private byte[] nativeCommand;
+    private byte[] isoAnswer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        communicator = new AndroidCommunicator(null, true);
+        codec = new IsoApduCodec(false);
+        nativeCommand = new byte[commandSize];
+        random.nextBytes(nativeCommand);
+        nativeCommand[0] = (byte)0xBD;
+
+        // A full read answer: data, 0x91, 0x00
+        isoAnswer = new byte[48 + 2];
+        random.nextBytes(isoAnswer);
+        isoAnswer[48] = (byte)0x91;
+        isoAnswer[49] = 0x00;
+    }
+
+    @Benchmark
+    public byte[] isoFrame() {
+        return communicator.isoFrame(nativeCommand);
+    }
+
+    // As transceive does it: in an array recycled per length
+    @Benchmark
+    public byte[] recycledIsoFrame() {
+        return codec.wrap(nativeCommand);
+    }
+
+    @Benchmark
+    public byte[] fromIsoAnswer() {
+        return communicator.fromIsoAnswer(isoAnswer);
+    }
+}
@@ -0,0 +1,61 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.common.ReflectiveTagService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One watchdog re-arm (connect + isPresent) through reflection: methods looked up on every
+ * call, as the per-tap thread did, or once, as ReflectiveTagService does. The tag service is
+ * a fake with the INfcTag signatures, so only the reflection cost is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeepaliveBenchmark {
+
+    public static class FakeTagService {
+        private int connects;
+
+        public int connect(int nativeHandle, int technology) {
+            ++connects;
+            return 0;
+        }
+
+        public boolean isPresent(int nativeHandle) {
+            return nativeHandle != 0;
+        }
+    }
+
+    private FakeTagService fake;
+    private ReflectiveTagService service;
+
+    @Setup
+    public void setup() throws Exception {
+        fake = new FakeTagService();
+        service = new ReflectiveTagService(fake, 42, 0);
+    }
+
+    @Benchmark
+    public boolean lookupEveryCall() throws Exception {
+        Class<?> c = Class.forName(FakeTagService.class.getName());
+        Method connect = c.getMethod("connect", int.class, int.class);
+        connect.invoke(fake, 42, 0);
+        Method isPresent = c.getMethod("isPresent", int.class);
+        return (Boolean)isPresent.invoke(fake, 42);
+    }
+
+    @Benchmark
+    public boolean cachedMethods() throws Exception {
+        service.rearm();
+        return service.isPresent();
+    }
+}
@@ -0,0 +1,53 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.common.MifareDesfire;
+import org.dematte.nfc.common.SimulatedDesfireCard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a whole file with one ReadData per frame, or with a single ReadData and 0xAF frames
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReadModeBenchmark {
+
+    private static final byte[] UID = new byte[]{0x04, 0x12, 0x34, 0x56, 0x78, (byte)0x9A, (byte)0xBC};
+    private static final byte[] AID = new byte[]{0x01, 0x02, 0x03};
+
+    @Param({"256", "4096"})
+    public int fileSize;
+
+    @Param({"SPLIT", "CHAINED"})
+    public MifareDesfire.ReadMode readMode;
+
+    private MifareDesfire desfire;
+
+    @Setup
+    public void setup() throws Exception {
+        SimulatedDesfireCard card = new SimulatedDesfireCard(UID, 42);
+        card.addApplication(AID, (byte)0x0F, 1)
+                .addStandardFile((byte)1, (byte)0, 0xEEEE, new byte[fileSize]);
+        // Per exchange cost of a fast local reader
+        card.setLatency(200, TimeUnit.MICROSECONDS);
+
+        desfire = new MifareDesfire(card, UID);
+        desfire.setReadMode(readMode);
+        desfire.connect();
+        desfire.selectApplication(AID);
+    }
+
+    @Benchmark
+    public byte[] readWholeFile() throws Exception {
+        return desfire.readFile((byte)1, 0, 0);
+    }
+}
@@ -0,0 +1,78 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.common.MifareDesfire;
+import org.dematte.nfc.common.RecordCursor;
+import org.dematte.nfc.common.SimulatedDesfireCard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A transit log, a cyclic file of 300 records of 32 bytes, read from the simulated card: whole,
+ * as one array split up by hand, through a cursor, and only the last 10 records written
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RecordReadBenchmark {
+
+    private static final byte[] UID = new byte[]{0x04, 0x12, 0x34, 0x56, 0x78, (byte)0x9A, (byte)0xBC};
+    private static final byte[] AID = new byte[]{0x01, 0x02, 0x03};
+    private static final int RECORDS = 300;
+    private static final int RECORD_SIZE = 32;
+
+    private MifareDesfire desfire;
+    private final RecordCursor cursor = new RecordCursor();
+
+    @Setup
+    public void setup() throws Exception {
+        SimulatedDesfireCard card = new SimulatedDesfireCard(UID, 42);
+        SimulatedDesfireCard.Application application = card.addApplication(AID, (byte)0x0F, 1)
+                .setKey(0, new byte[16]).addRecordFile((byte)1, true, (byte)0, 0xEEEE, RECORD_SIZE, RECORDS);
+        for (int i = 1; i <= RECORDS; ++i) {
+            byte[] record = new byte[RECORD_SIZE];
+            record[0] = (byte)i;
+            record[1] = (byte)(i >> 8);
+            application.addRecord((byte)1, record);
+        }
+        desfire = new MifareDesfire(card, UID);
+        desfire.connect();
+        desfire.selectApplication(AID);
+    }
+
+    @Benchmark
+    public long arrays() throws Exception {
+        byte[] data = desfire.readRecordFile((byte)1, 0, 0);
+        long sum = 0;
+        for (int i = 0; i < data.length; i += RECORD_SIZE) {
+            byte[] record = new byte[RECORD_SIZE];
+            System.arraycopy(data, i, record, 0, RECORD_SIZE);
+            sum += (record[0] & 0xff) | (record[1] & 0xff) << 8;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long cursor() throws Exception {
+        desfire.readRecords((byte)1, 0, 0, cursor);
+        long sum = 0;
+        while (cursor.next())
+            sum += cursor.getShort(0);
+        return sum;
+    }
+
+    @Benchmark
+    public long lastTen() throws Exception {
+        desfire.readRecordsSince((byte)1, 0, 2, RECORDS - 10, cursor);
+        long sum = 0;
+        while (cursor.next())
+            sum += cursor.getShort(0);
+        return sum;
+    }
+}
@@ -0,0 +1,70 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.common.CardTrace;
+import org.dematte.nfc.common.CardTraceWriter;
+import org.dematte.nfc.common.ICardCommunicator;
+import org.dematte.nfc.common.INonceSource;
+import org.dematte.nfc.common.MifareDesfire;
+import org.dematte.nfc.common.NoncePool;
+import org.dematte.nfc.common.RecordingCardCommunicator;
+import org.dematte.nfc.common.ReplayCardCommunicator;
+import org.dematte.nfc.common.SimulatedDesfireCard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole tap (select, authenticate, read 1 KB), recorded once against the simulated card and
+ * replayed at full speed: what is left is the time MifareDesfire itself takes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReplayBenchmark {
+
+    private static final byte[] UID = new byte[]{0x04, 0x12, 0x34, 0x56, 0x78, (byte)0x9A, (byte)0xBC};
+    private static final byte[] AID = new byte[]{0x01, 0x02, 0x03};
+    private static final byte[] KEY = new byte[16];
+
+    private ReplayCardCommunicator replay;
+
+    @Setup
+    public void setup() throws Exception {
+        SimulatedDesfireCard card = new SimulatedDesfireCard(UID, 42);
+        card.addApplication(AID, (byte)0x0F, 1).setKey(0, KEY)
+                .addStandardFile((byte)1, (byte)0, 0xEEEE, new byte[1024]);
+
+        File file = File.createTempFile("tap", ".trace");
+        file.deleteOnExit();
+        CardTraceWriter writer = new CardTraceWriter(file);
+        RecordingCardCommunicator recording = RecordingCardCommunicator.wrap(card, writer);
+        tap(recording, recording.recordNonces(NoncePool.getDefault()));
+        writer.close();
+
+        replay = ReplayCardCommunicator.of(CardTrace.read(file), false);
+    }
+
+    @Benchmark
+    public int replayTap() throws Exception {
+        replay.rewind();
+        return tap(replay, replay.getNonceSource());
+    }
+
+    private static int tap(ICardCommunicator communicator, INonceSource nonces) throws Exception {
+        MifareDesfire desfire = new MifareDesfire(communicator, UID);
+        desfire.setNonceSource(nonces);
+        desfire.connect();
+        desfire.selectApplication(AID);
+        desfire.authenticate((byte)0, KEY);
+        int n = desfire.readFile((byte)1, 0, 1024).length;
+        desfire.close();
+        return n;
+    }
+}
@@ -0,0 +1,51 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.common.FileSettings;
+import org.dematte.nfc.common.MifareDesfire;
+import org.dematte.nfc.common.SimulatedDesfireCard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GetFileSettings against the simulated card: the copied answer decoded by hand, against a
+ * FileSettings view reused from one call to the next
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResponseViewBenchmark {
+
+    private static final byte[] UID = new byte[]{0x04, 0x12, 0x34, 0x56, 0x78, (byte)0x9A, (byte)0xBC};
+    private static final byte[] AID = new byte[]{0x01, 0x02, 0x03};
+
+    private MifareDesfire desfire;
+    private final FileSettings settings = new FileSettings();
+
+    @Setup
+    public void setup() throws Exception {
+        SimulatedDesfireCard card = new SimulatedDesfireCard(UID, 42);
+        card.addApplication(AID, (byte)0x0F, 1).setKey(0, new byte[16])
+                .addStandardFile((byte)1, (byte)0, 0xEEEE, new byte[1024]);
+        desfire = new MifareDesfire(card, UID);
+        desfire.connect();
+        desfire.selectApplication(AID);
+    }
+
+    @Benchmark
+    public int copied() throws Exception {
+        byte[] data = desfire.getFileSettings((byte)1);
+        return (data[4] & 0xff) | (data[5] & 0xff) << 8 | (data[6] & 0xff) << 16;
+    }
+
+    @Benchmark
+    public int view() throws Exception {
+        return desfire.getFileSettings((byte)1, settings).getFileSize();
+    }
+}
@@ -0,0 +1,63 @@
+package org.dematte.nfc.benchmarks;
+
+import org.dematte.nfc.common.MifareDesfire;
+import org.dematte.nfc.common.SimulatedDesfireCard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A handful of reads which need authentication: authenticating before each one, as callers
+ * did when the session was thrown away, or authenticating once and MACing every read
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SecureMessagingBenchmark {
+
+    private static final byte[] UID = new byte[]{0x04, 0x12, 0x34, 0x56, 0x78, (byte)0x9A, (byte)0xBC};
+    private static final byte[] AID = new byte[]{0x01, 0x02, 0x03};
+    private static final int READS = 8;
+
+    private MifareDesfire desfire;
+    private byte[] key;
+
+    @Setup
+    public void setup() throws Exception {
+        SimulatedDesfireCard card = new SimulatedDesfireCard(UID, 42);
+        key = new byte[16];
+        card.addApplication(AID, (byte)0x0F, 1).setKey(0, key)
+                .addStandardFile((byte)1, (byte)1, 0x0000, new byte[READS * 32]);
+        // Per exchange cost of a fast local reader
+        card.setLatency(200, TimeUnit.MICROSECONDS);
+
+        desfire = new MifareDesfire(card, UID);
+        desfire.connect();
+        desfire.selectApplication(AID);
+    }
+
+    @Benchmark
+    public int authenticateEachRead() throws Exception {
+        int n = 0;
+        for (int i = 0; i < READS; ++i) {
+            desfire.authenticate((byte)0, key);
+            n += desfire.readFile((byte)1, i * 32, 32).length;
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int oneAesSession() throws Exception {
+        int n = 0;
+        desfire.authenticateAes((byte)0, key);
+        for (int i = 0; i < READS; ++i)
+            n += desfire.readFile((byte)1, i * 32, 32).length;
+        return n;
+    }
+}
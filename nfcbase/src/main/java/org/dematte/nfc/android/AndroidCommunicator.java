@@ -1,22 +1,63 @@
 package org.dematte.nfc.android;
 
 import android.nfc.Tag;
+import android.os.Build;
 import android.nfc.tech.IsoDep;
-import org.dematte.nfc.common.ICardCommunicator;
+import org.dematte.nfc.common.AdaptiveCommunicationPolicy;
+import org.dematte.nfc.common.ByteArray;
+import org.dematte.nfc.common.FramingModeCache;
+import org.dematte.nfc.common.IFramedCardCommunicator;
+import org.dematte.nfc.common.ITimeoutCardCommunicator;
+import org.dematte.nfc.common.IsoApduCodec;
 import org.dematte.nfc.common.MifareDesfire;
+import org.dematte.nfc.common.PresenceKeepalive;
 
 import java.io.IOException;
 
 
 // Facade wrapper for android card communication logic
-public class AndroidCommunicator implements ICardCommunicator {
+public class AndroidCommunicator implements IFramedCardCommunicator, ITimeoutCardCommunicator {
+
+    // What ISO 14443-4 guarantees without knowing the reader (FSD 64, less PCB and CRC)
+    private static final int MIN_FRAME_SIZE = 61;
 
     private final IsoDep isoDep;
+    private final IsoApduCodec codec;
     private boolean useIsoMode;
+    private int timeout = AdaptiveCommunicationPolicy.DEFAULT_INITIAL_TIMEOUT;
+    // Card types which do not take ISO APDUs
+    private FramingModeCache framingModes = FramingModeCache.getDefault();
+    private String cardType;
+    // Told about every exchange, and cancelled on close; may be null
+    private volatile PresenceKeepalive.Registration keepalive;
 
     public AndroidCommunicator(IsoDep isoDep, boolean useIsoMode) {
         this.isoDep = isoDep;
         this.useIsoMode = useIsoMode;
+        // Extended APDUs only where the reader takes them (known from Jelly Bean on)
+        this.codec = new IsoApduCodec(isoDep != null && Build.VERSION.SDK_INT >= 16
+                && isoDep.isExtendedLengthApduSupported());
+    }
+
+    public FramingModeCache getFramingModes() {
+        return framingModes;
+    }
+
+    // Null: the framing is found out again on every tap
+    public void setFramingModes(FramingModeCache framingModes) {
+        this.framingModes = framingModes;
+    }
+
+    public PresenceKeepalive.Registration getKeepalive() {
+        return keepalive;
+    }
+
+    /**
+     * The keepalive registration of this tag: exchanges re-arm the watchdog themselves, so
+     * the keepalive skips the tag while it has traffic, and close() ends the registration.
+     */
+    public void setKeepalive(PresenceKeepalive.Registration keepalive) {
+        this.keepalive = keepalive;
     }
 
     // Factory method to correctly initialize a MifareDesfire card from a generic tag
@@ -36,33 +77,9 @@ public class AndroidCommunicator implements ICardCommunicator {
         return null;
     }
 
+    // A fresh APDU, the caller's to keep: transceive wraps in recycled arrays of its own
     public byte[] isoFrame(byte[] nativeCommand) {
-        // 90, command(1), 00, 00, args.lenght(), args, 00
-
-        byte command = nativeCommand[0];
-
-        int length = nativeCommand.length + 4;
-
-        // Add space for 0 termination. This should be required, but Android... does not want it!
-        // go figure...
-        if (nativeCommand.length > 1)
-            ++length;
-
-        byte[] isoFrame = new byte[length];
-        // INF
-        isoFrame[0] = (byte)0x90;
-        isoFrame[1] = command;
-        isoFrame[2] = 0;
-        isoFrame[3] = 0;
-        isoFrame[4] = (byte)(nativeCommand.length - 1); // args without command
-
-        System.arraycopy(nativeCommand, 1, isoFrame, 5, nativeCommand.length - 1);
-
-        // Set last to 0
-        if (nativeCommand.length > 1)
-            isoFrame[isoFrame.length - 1] = 0;
-
-        return isoFrame;
+        return codec.wrap(nativeCommand).clone();
     }
 
     public byte[] fromIsoAnswer(byte[] isoAnswer) {
@@ -70,44 +87,95 @@ public class AndroidCommunicator implements ICardCommunicator {
         // OR
         // error_code, 0x00
 
-        if (isoAnswer.length == 1) {
+        if (IsoApduCodec.isNativeAnswer(isoAnswer)) {
             // Is this a native answer?
             // (typically: 0x1C - I don't understand your command)
-            // switch back to native
+            // switch back to native, for this card and the ones like it
             this.useIsoMode = false;
+            if (framingModes != null)
+                framingModes.setIsoMode(cardType, false);
             return null;
         }
+        return codec.unwrap(isoAnswer);
+    }
 
-        int commandPosition = isoAnswer.length - 2;
-        if (commandPosition < 0)
-            return null;
-
-        byte isoCode = isoAnswer[commandPosition];
-        if (isoCode != (byte)0x91)
-            return null;
+    public byte[] transceive(byte[] data) throws IOException {
+        if (!useIsoMode)
+            return exchange(data);
+
+        int max = codec.maxArguments(getTransceiveLength());
+        if (data.length - 1 <= max)
+            return fromIsoAnswer(exchange(codec.wrap(data)));
+
+        // Too long for one APDU: the rest follows in additional (0xAF) frames
+        byte[] answer = fromIsoAnswer(exchange(codec.wrap(data[0], data, 1, max)));
+        for (int at = 1 + max; at < data.length; at += max) {
+            if (answer == null || answer.length != 1 || answer[0] != (byte)0xAF)
+                return answer;
+            int n = Math.min(max, data.length - at);
+            answer = fromIsoAnswer(exchange(codec.wrap((byte)0xAF, data, at, n)));
+        }
+        return answer;
+    }
 
-        byte[] nativeFrame = new byte[isoAnswer.length - 1];
-        // INF
-        nativeFrame[0] = isoAnswer[commandPosition + 1];
+    private byte[] exchange(byte[] frame) throws IOException {
+        byte[] answer = isoDep.transceive(frame);
+        PresenceKeepalive.Registration keepalive = this.keepalive;
+        if (keepalive != null)
+            keepalive.touch();
+        return answer;
+    }
 
-        System.arraycopy(isoAnswer, 0, nativeFrame, 1, isoAnswer.length - 2);
+    public int getMaxFrameSize() {
+        int maxLength = getTransceiveLength();
+        return useIsoMode ? codec.maxArguments(maxLength) + 1 : maxLength;
+    }
 
-        return nativeFrame;
+    private int getTransceiveLength() {
+        // Only known from ICS on
+        if (Build.VERSION.SDK_INT >= 14)
+            return isoDep.getMaxTransceiveLength();
+        return MIN_FRAME_SIZE;
     }
 
-    public byte[] transceive(byte[] data) throws IOException {
-        if (useIsoMode) {
-            byte[] isoCommand = isoFrame(data);
-            byte[] isoAnswer = isoDep.transceive(isoCommand);
-            return fromIsoAnswer(isoAnswer);
-        } else {
-            return isoDep.transceive(data);
-        }
+    public boolean isIsoMode() {
+        return useIsoMode;
     }
 
     public void connect() throws IOException {
         isoDep.connect();
-        isoDep.setTimeout(500);
+        isoDep.setTimeout(timeout);
+
+        cardType = cardTypeOf(isoDep);
+        Boolean isoMode = framingModes == null ? null : framingModes.getIsoMode(cardType);
+        // Cards of this type were found not to take ISO APDUs
+        if (isoMode != null && !isoMode)
+            useIsoMode = false;
+    }
+
+    // NFC-A cards tell their type in the historical bytes of the ATS, NFC-B ones in the ATTRIB answer
+    private static String cardTypeOf(IsoDep isoDep) {
+        byte[] historical = isoDep.getHistoricalBytes();
+        if (historical != null)
+            return "A:" + ByteArray.byteArrayToHexString(historical);
+        byte[] hiLayer = isoDep.getHiLayerResponse();
+        if (hiLayer != null)
+            return "B:" + ByteArray.byteArrayToHexString(hiLayer);
+        return null;
+    }
+
+    // MifareDesfire sets it before each exchange, as its ICommunicationPolicy says
+    public void setTimeout(int millis) {
+        // Each call to the tag is a call to the NFC service: skip it if nothing changes
+        if (millis == timeout)
+            return;
+        timeout = millis;
+        if (isoDep.isConnected())
+            isoDep.setTimeout(millis);
+    }
+
+    public int getTimeout() {
+        return timeout;
     }
 
     public boolean isConnected() throws IOException {
@@ -115,6 +183,9 @@ public class AndroidCommunicator implements ICardCommunicator {
     }
 
     public void close() throws IOException {
+        PresenceKeepalive.Registration keepalive = this.keepalive;
+        if (keepalive != null)
+            keepalive.cancel();
         isoDep.close();
     }
 }
@@ -0,0 +1,168 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The default ICommunicationPolicy.
+ *
+ * Timeouts follow the round trips observed for each command (a high percentile, plus margin),
+ * and double on every new attempt, so a link which got slower is caught up with.
+ * Only idempotent commands are tried again, after a short exponential backoff, and only if
+ * the deadline leaves room for a typical round trip.
+ */
+public class AdaptiveCommunicationPolicy implements ICommunicationPolicy {
+
+    // What readers were always given, until there are round trips to go by
+    public static final int DEFAULT_INITIAL_TIMEOUT = 500;
+
+    // Round trips kept per command: older ones fade out, so timeouts follow the link
+    private static final int WINDOW = 256;
+    // Fewer round trips than this do not make a percentile
+    private static final int MIN_SAMPLES = 16;
+
+    private static final AdaptiveCommunicationPolicy defaultPolicy = new AdaptiveCommunicationPolicy();
+
+    // Shared by default, so what is learnt about the reader outlives each card
+    public static AdaptiveCommunicationPolicy getDefault() {
+        return defaultPolicy;
+    }
+
+    private int initialTimeout = DEFAULT_INITIAL_TIMEOUT;
+    private int minTimeout = 50;
+    private int maxTimeout = 5000;
+    private double percentile = 99;
+    private double margin = 1.5;
+    private int maxAttempts = 3;
+    private long baseRetryDelay = 5;
+    private long maxRetryDelay = 100;
+
+    private final AtomicReferenceArray<RoundTrips> commands = new AtomicReferenceArray<RoundTrips>(256);
+
+    public AdaptiveCommunicationPolicy setInitialTimeout(int millis) {
+        this.initialTimeout = millis;
+        return this;
+    }
+
+    public AdaptiveCommunicationPolicy setTimeoutBounds(int minMillis, int maxMillis) {
+        if (minMillis <= 0 || maxMillis < minMillis)
+            throw new IllegalArgumentException("Bad timeout bounds");
+        this.minTimeout = minMillis;
+        this.maxTimeout = maxMillis;
+        return this;
+    }
+
+    // Timeout: this percentile of the round trips, times margin
+    public AdaptiveCommunicationPolicy setPercentile(double percentile, double margin) {
+        this.percentile = percentile;
+        this.margin = margin;
+        return this;
+    }
+
+    // Attempts in all, the first one included
+    public AdaptiveCommunicationPolicy setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public AdaptiveCommunicationPolicy setRetryDelay(long baseMillis, long maxMillis) {
+        this.baseRetryDelay = baseMillis;
+        this.maxRetryDelay = maxMillis;
+        return this;
+    }
+
+    /**
+     * Commands which do the same thing when sent twice: reads, selects, authentication starts,
+     * and WriteData (same bytes, same place). Continuation frames, value and record operations,
+     * commits and changes to the card structure are not.
+     */
+    public static boolean isIdempotent(byte command) {
+        switch (command) {
+            case (byte)0x60: // GetVersion
+            case (byte)0x6A: // GetApplicationIDs
+            case (byte)0x6F: // GetFileIDs
+            case (byte)0xF5: // GetFileSettings
+            case (byte)0x45: // GetKeySettings
+            case (byte)0x64: // GetKeyVersion
+            case (byte)0x6E: // FreeMemory
+            case (byte)0x51: // GetCardUID
+            case (byte)0x5A: // SelectApplication
+            case (byte)0xBD: // ReadData
+            case (byte)0xBB: // ReadRecords
+            case (byte)0x6C: // GetValue
+            case (byte)0x0A: // Authenticate (legacy, ISO, AES): starts over
+            case (byte)0x1A:
+            case (byte)0xAA:
+            case (byte)0x3D: // WriteData
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public int getTimeout(byte command, int attempt) {
+        long timeout;
+        long estimate = estimateMicros(command, percentile);
+        if (estimate < 0)
+            timeout = initialTimeout;
+        else
+            timeout = Math.max(minTimeout, (long)Math.ceil(estimate * margin / 1000));
+        // Each new attempt waits twice as long
+        timeout <<= Math.min(attempt - 1, 16);
+        return (int)Math.min(timeout, maxTimeout);
+    }
+
+    public long getRetryDelay(byte[] command, int attempt, IOException error, Deadline deadline) {
+        if (attempt >= maxAttempts || command.length == 0 || !isIdempotent(command[0]))
+            return -1;
+
+        long delay = Math.min(maxRetryDelay, baseRetryDelay << Math.min(attempt - 1, 16));
+        // A typical round trip must fit in what is left
+        long typical = estimateMicros(command[0], 90);
+        long needed = delay + (typical < 0 ? minTimeout : typical / 1000);
+        if (deadline != null && deadline.remainingMillis() < needed)
+            return -1;
+        return delay;
+    }
+
+    public void recordRoundTrip(byte command, long micros) {
+        RoundTrips roundTrips = commands.get(command & 0xff);
+        if (roundTrips == null) {
+            commands.compareAndSet(command & 0xff, null, new RoundTrips());
+            roundTrips = commands.get(command & 0xff);
+        }
+        roundTrips.record(micros);
+    }
+
+    // The round trip percentile for the command, in microseconds; -1 if not known yet
+    public long estimateMicros(byte command, double percentile) {
+        RoundTrips roundTrips = commands.get(command & 0xff);
+        if (roundTrips == null)
+            return -1;
+        LatencyHistogram histogram = roundTrips.recent();
+        return histogram == null ? -1 : histogram.getValueAtPercentile(percentile);
+    }
+
+    // Recent round trips of a command: the current window, or the previous one while the current is too small
+    private static class RoundTrips {
+        private final AtomicReference<LatencyHistogram> current =
+                new AtomicReference<LatencyHistogram>(new LatencyHistogram());
+        private volatile LatencyHistogram previous;
+
+        void record(long micros) {
+            LatencyHistogram histogram = current.get();
+            histogram.record(micros);
+            if (histogram.getCount() >= WINDOW && current.compareAndSet(histogram, new LatencyHistogram()))
+                previous = histogram;
+        }
+
+        LatencyHistogram recent() {
+            LatencyHistogram histogram = current.get();
+            if (histogram.getCount() >= MIN_SAMPLES)
+                return histogram;
+            // May be null: nothing to go by yet
+            return previous;
+        }
+    }
+}
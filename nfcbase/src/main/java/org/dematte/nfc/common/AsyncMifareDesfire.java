@@ -0,0 +1,321 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking facade over MifareDesfire: every operation returns a CardFuture at once, and
+ * multi-frame operations (reads, writes, authentication) chain their frames through callbacks,
+ * so no thread waits for the card in between.
+ *
+ * The MifareDesfire instance provides crypto and command building; frames go through the
+ * IAsyncCardCommunicator, in plain mode: EV1 sessions are only kept by MifareDesfire itself.
+ * While MifareDesfire has one open, commands other than selectApplication and authenticate
+ * throw IllegalStateException: the card would count them in its CMAC chain, and the session not.
+ */
+public class AsyncMifareDesfire {
+
+    private final MifareDesfire desfire;
+    private final IAsyncCardCommunicator communicator;
+
+    public AsyncMifareDesfire(MifareDesfire desfire, IAsyncCardCommunicator communicator) {
+        this.desfire = desfire;
+        this.communicator = communicator;
+    }
+
+    // Runs the card's own (blocking) communicator on the executor
+    public AsyncMifareDesfire(MifareDesfire desfire, Executor executor) {
+        this(desfire, new ExecutorCardCommunicator(desfire.cardCommunicator, executor));
+    }
+
+    public MifareDesfire getDesfire() {
+        return desfire;
+    }
+
+    public CardFuture<Void> connect() {
+        return communicator.connect();
+    }
+
+    public CardFuture<Void> close() {
+        return communicator.close();
+    }
+
+    public CardFuture<byte[]> getVersion() {
+        return data(sendBytes(new byte[]{0x60}));
+    }
+
+    public CardFuture<byte[]> getApplications() {
+        return data(sendBytes(new byte[]{0x6a}));
+    }
+
+    public CardFuture<byte[]> getFileIds() {
+        return data(sendBytes(new byte[]{0x6f}));
+    }
+
+    public CardFuture<byte[]> getFileSettings(byte fid) {
+        return data(sendBytes(new byte[]{(byte)0xf5, fid}));
+    }
+
+    public CardFuture<byte[]> getKeySettings() {
+        return data(sendBytes(new byte[]{(byte)0x45}));
+    }
+
+    public CardFuture<Boolean> selectApplication(final byte[] applicationId) {
+        final CardFuture<Boolean> ret = new CardFuture<Boolean>();
+        byte[] params = ByteArray.from((byte)0x5a).append(applicationId).toArray();
+        desfire.applicationSelected(null);
+        desfire.endSession();
+        communicator.transceive(params).addCallback(new Continuation<byte[], Boolean>(ret) {
+            void handle(byte[] res) {
+                boolean selected = res != null && res.length == 1 && res[0] == 0;
+                if (selected)
+                    desfire.applicationSelected(applicationId);
+                ret.complete(selected);
+            }
+        });
+        return ret;
+    }
+
+    public CardFuture<Void> commit() {
+        requirePlain();
+        final CardFuture<Void> ret = new CardFuture<Void>();
+        desfire.applicationChanged();
+        communicator.transceive(new byte[]{(byte)0xC7}).addCallback(new Continuation<byte[], Void>(ret) {
+            void handle(byte[] result) throws IOException {
+                if (result == null || result.length == 0)
+                    throw new IOException("Commit returned an empty response");
+                if (!(result[0] == 0x00 || result[0] == 0x0C))
+                    throw new IOException("Commit error: " + ByteArray.byteArrayToHexString(result));
+                ret.complete(null);
+            }
+        });
+        return ret;
+    }
+
+    // Same frames as MifareDesfire.readFile, chained instead of looped
+    public CardFuture<byte[]> readFile(byte fid, int start, int count) {
+        requirePlain();
+        CardFuture<byte[]> ret = new CardFuture<byte[]>();
+        if (desfire.getReadMode() == MifareDesfire.ReadMode.CHAINED)
+            new ChainedReadLoop(ret, fid, start, count).next();
+        else
+            new ReadLoop(ret, fid, start, count).next();
+        return ret;
+    }
+
+    public CardFuture<Void> writeFile(byte[] data, int file, int offset, int size) {
+        requirePlain();
+        CardFuture<Void> ret = new CardFuture<Void>();
+        new WriteLoop(ret, data, file, offset, size == 0 ? data.length : size).next();
+        return ret;
+    }
+
+    public CardFuture<Boolean> authenticate(byte keyNumber, byte[] key) {
+        CardFuture<Boolean> ret = new CardFuture<Boolean>();
+        desfire.endSession();
+        authenticate(new byte[]{0x0A, keyNumber}, key, 1, ret);
+        return ret;
+    }
+
+    // As the blocking authenticate: a failed handshake starts over, if the policy says so
+    private void authenticate(final byte[] cmd, final byte[] key, final int attempt, final CardFuture<Boolean> ret) {
+        final CardFuture<Boolean> handshake = new CardFuture<Boolean>();
+        communicator.transceive(cmd).addCallback(new Continuation<byte[], Boolean>(handshake) {
+            void handle(byte[] rndB) throws Exception {
+                final Challenge challenge = desfire.cardChallengeToCouplerChallenge(rndB, key);
+                communicator.transceive(challenge.getChallenge())
+                        .addCallback(new Continuation<byte[], Boolean>(handshake) {
+                            void handle(byte[] cardResponse) throws Exception {
+                                handshake.complete(desfire.verifyCardResponse(cardResponse,
+                                        challenge.getChallengeResponse(), key));
+                            }
+                        });
+            }
+        });
+        handshake.addCallback(new ICardCallback<Boolean>() {
+            public void onSuccess(Boolean result) {
+                ret.complete(result);
+            }
+
+            public void onFailure(Exception error) {
+                if (shouldRetry(cmd, attempt, error))
+                    authenticate(cmd, key, attempt + 1, ret);
+                else
+                    ret.fail(error);
+            }
+        });
+    }
+
+    public CardFuture<MifareDesfire.MifareResult> sendBytes(byte[] cmd) {
+        requirePlain();
+        final CardFuture<MifareDesfire.MifareResult> ret = new CardFuture<MifareDesfire.MifareResult>();
+        communicator.transceive(cmd).addCallback(new Continuation<byte[], MifareDesfire.MifareResult>(ret) {
+            void handle(byte[] response) throws IOException {
+                ret.complete(desfire.toResult(response));
+            }
+        });
+        return ret;
+    }
+
+    private void requirePlain() {
+        if (desfire.getSession() != null)
+            throw new IllegalStateException("EV1 session open: select an application or authenticate first");
+    }
+
+    // Transport errors only; there is no timer to wait on here, so retries go at once
+    private boolean shouldRetry(byte[] cmd, int attempt, Exception error) {
+        return error instanceof IOException
+                && desfire.getPolicy().getRetryDelay(cmd, attempt, (IOException)error, desfire.getDeadline()) >= 0;
+    }
+
+    private static CardFuture<byte[]> data(CardFuture<MifareDesfire.MifareResult> result) {
+        final CardFuture<byte[]> ret = new CardFuture<byte[]>();
+        result.addCallback(new Continuation<MifareDesfire.MifareResult, byte[]>(ret) {
+            void handle(MifareDesfire.MifareResult result) {
+                ret.complete(result.data);
+            }
+        });
+        return ret;
+    }
+
+    // Handles the outcome of a step; failures (and exceptions thrown by handle) fail the target
+    private abstract static class Continuation<A, B> implements ICardCallback<A> {
+        final CardFuture<B> target;
+
+        Continuation(CardFuture<B> target) {
+            this.target = target;
+        }
+
+        abstract void handle(A result) throws Exception;
+
+        public void onSuccess(A result) {
+            try {
+                handle(result);
+            } catch (Exception e) {
+                target.fail(e);
+            }
+        }
+
+        public void onFailure(Exception error) {
+            target.fail(error);
+        }
+    }
+
+    private class ReadLoop extends Continuation<MifareDesfire.MifareResult, byte[]> {
+        private final byte fid;
+        private final int count;
+        private final ByteRope ret = new ByteRope();
+        private int start;
+        private int bytesToGo;
+        private int upTo;
+        private boolean eof;
+
+        ReadLoop(CardFuture<byte[]> target, byte fid, int start, int count) {
+            super(target);
+            this.fid = fid;
+            this.start = start;
+            this.count = count;
+            this.bytesToGo = count;
+        }
+
+        void next() {
+            if (count == 0)
+                upTo = desfire.getMaxDataSize();
+            else
+                upTo = Math.min(desfire.getMaxDataSize(), bytesToGo);
+            sendBytes(desfire.readDataCommand(new ByteArray(8), fid, start, upTo)).addCallback(this);
+        }
+
+        void handle(MifareDesfire.MifareResult result) {
+            if (!eof && result.resultType == MifareDesfire.MifareResultType.EOF) {
+                // We reached the end of the file: ensure we get anything that was left
+                eof = true;
+                sendBytes(desfire.readDataCommand(new ByteArray(8), fid, start, 0)).addCallback(this);
+                return;
+            }
+
+            ret.append(result.data);
+            start += upTo;
+            if (count > 0)
+                bytesToGo -= upTo;
+
+            if (eof || (count > 0 && bytesToGo == 0))
+                target.complete(ret.toArray());
+            else
+                next();
+        }
+    }
+
+    private class ChainedReadLoop extends Continuation<MifareDesfire.MifareResult, byte[]> {
+        private final byte fid;
+        private final int start;
+        private final int count;
+        private final ByteRope ret = new ByteRope();
+        private boolean first = true;
+
+        ChainedReadLoop(CardFuture<byte[]> target, byte fid, int start, int count) {
+            super(target);
+            this.fid = fid;
+            this.start = start;
+            this.count = count;
+        }
+
+        void next() {
+            sendBytes(desfire.readDataCommand(new ByteArray(8), fid, start, count)).addCallback(this);
+        }
+
+        void handle(MifareDesfire.MifareResult result) {
+            if (first && result.resultType == MifareDesfire.MifareResultType.EOF) {
+                // Less than count bytes left: read up to the end of the file
+                first = false;
+                sendBytes(desfire.readDataCommand(new ByteArray(8), fid, start, 0)).addCallback(this);
+                return;
+            }
+            first = false;
+
+            ret.append(result.data);
+            if (result.resultType == MifareDesfire.MifareResultType.MORE_DATA)
+                sendBytes(new byte[]{(byte)0xAF}).addCallback(this);
+            else
+                target.complete(ret.toArray());
+        }
+    }
+
+    private class WriteLoop extends Continuation<byte[], Void> {
+        private final byte[] data;
+        private final int file;
+        private int offset;
+        private int dataOffset;
+        private int toGo;
+
+        WriteLoop(CardFuture<Void> target, byte[] data, int file, int offset, int size) {
+            super(target);
+            this.data = data;
+            this.file = file;
+            this.offset = offset;
+            this.toGo = size;
+        }
+
+        void next() {
+            if (toGo <= 0) {
+                desfire.applicationChanged();
+                target.complete(null);
+                return;
+            }
+            int n = Math.min(toGo, desfire.getMaxWriteDataSize());
+            byte[] message = desfire.writeDataCommand(new ByteArray(8 + n), (byte)0x3D, file, offset, data, dataOffset, n);
+            offset += n;
+            dataOffset += n;
+            toGo -= n;
+            communicator.transceive(message).addCallback(this);
+        }
+
+        void handle(byte[] result) throws IOException {
+            if (result == null || result.length == 0)
+                throw new IOException("Transceive returned an empty response");
+            if (result[0] != 0)
+                throw new IOException("Transceive error: " + ByteArray.byteArrayToHexString(result));
+            next();
+        }
+    }
+}
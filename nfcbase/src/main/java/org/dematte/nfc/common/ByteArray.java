@@ -1,15 +1,12 @@
 package org.dematte.nfc.common;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 
 /**
  * Created by ldematte on 11/24/14.
  */
 public class ByteArray {
 
-
-    private static HashMap<String, Byte> hexMap = null;
-
     public static byte[] appendCut(byte[] first, byte[] last) {
         byte[] ret;
         if (last == null || last.length == 0) {
@@ -30,83 +27,12 @@ public class ByteArray {
     }
 
     public static String byteArrayToHexString(byte[] array) {
-        int i, j, in;
-        String[] hex = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D", "E", "F"};
-        String out = "";
-
-        for (j = 0; j < array.length; ++j) {
-            in = (int)array[j] & 0xff;
-            i = (in >> 4) & 0x0f;
-            out += hex[i];
-            i = in & 0x0f;
-            out += hex[i];
-        }
-        return out;
+        return HexCodec.encode(array);
     }
 
+    // Non hex characters are skipped; returns null on an odd number of hex digits
     public static byte[] hexStringToByteArray(String s) {
-        s = s.replaceAll("[^A-Fa-f0-9]", "");
-
-        byte[] ret;
-        if (s.length() % 2 != 0)
-            return null;
-        if (ByteArray.hexMap == null) {
-            ByteArray.hexMap = new HashMap<String, Byte>();
-            hexMap.put("l0", (byte)0x00);
-            hexMap.put("l1", (byte)0x01);
-            hexMap.put("l2", (byte)0x02);
-            hexMap.put("l3", (byte)0x03);
-            hexMap.put("l4", (byte)0x04);
-            hexMap.put("l5", (byte)0x05);
-            hexMap.put("l6", (byte)0x06);
-            hexMap.put("l7", (byte)0x07);
-            hexMap.put("l8", (byte)0x08);
-            hexMap.put("l9", (byte)0x09);
-            hexMap.put("lA", (byte)0x0a);
-            hexMap.put("lB", (byte)0x0b);
-            hexMap.put("lC", (byte)0x0c);
-            hexMap.put("lD", (byte)0x0d);
-            hexMap.put("lE", (byte)0x0e);
-            hexMap.put("lF", (byte)0x0f);
-            //lowercase
-            hexMap.put("la", (byte)0x0a);
-            hexMap.put("lb", (byte)0x0b);
-            hexMap.put("lc", (byte)0x0c);
-            hexMap.put("ld", (byte)0x0d);
-            hexMap.put("le", (byte)0x0e);
-            hexMap.put("lf", (byte)0x0f);
-
-            hexMap.put("h0", (byte)0x00);
-            hexMap.put("h1", (byte)0x10);
-            hexMap.put("h2", (byte)0x20);
-            hexMap.put("h3", (byte)0x30);
-            hexMap.put("h4", (byte)0x40);
-            hexMap.put("h5", (byte)0x50);
-            hexMap.put("h6", (byte)0x60);
-            hexMap.put("h7", (byte)0x70);
-            hexMap.put("h8", (byte)0x80);
-            hexMap.put("h9", (byte)0x90);
-            hexMap.put("hA", (byte)0xa0);
-            hexMap.put("hB", (byte)0xb0);
-            hexMap.put("hC", (byte)0xc0);
-            hexMap.put("hD", (byte)0xd0);
-            hexMap.put("hE", (byte)0xe0);
-            hexMap.put("hF", (byte)0xf0);
-            //lowercase
-            hexMap.put("ha", (byte)0xa0);
-            hexMap.put("hb", (byte)0xb0);
-            hexMap.put("hc", (byte)0xc0);
-            hexMap.put("hd", (byte)0xd0);
-            hexMap.put("he", (byte)0xe0);
-            hexMap.put("hf", (byte)0xf0);
-        }
-        ret = new byte[s.length() / 2];
-        for (int i = 0; i < ret.length; i++) {
-            byte h = ByteArray.hexMap.get("h" + s.charAt(2 * i));
-            byte l = ByteArray.hexMap.get("l" + s.charAt(2 * i + 1));
-            ret[i] = (byte)(h ^ l);
-        }
-        return ret;
+        return HexCodec.decode(s, false);
     }
 
 
@@ -178,14 +104,23 @@ public class ByteArray {
         return this;
     }
 
+    // Grows geometrically, so that appending n bytes one frame at a time costs O(n) copies
     private void checkResize(int n) {
-        if (count + n >= buffer.length) {
-            byte[] tmp = new byte[count + n + INITIAL_SIZE];
+        int needed = count + n;
+        if (needed > buffer.length) {
+            int size = Math.max(Math.max(buffer.length * 2, needed), INITIAL_SIZE);
+            byte[] tmp = new byte[size];
             System.arraycopy(buffer, 0, tmp, 0, count);
             buffer = tmp;
         }
     }
 
+    // Makes room for n more bytes in a single step
+    public ByteArray ensureCapacity(int n) {
+        checkResize(n);
+        return this;
+    }
+
     public ByteArray append(byte b) {
         checkResize(1);
         buffer[count] = b;
@@ -217,6 +152,37 @@ public class ByteArray {
         return data;
     }
 
+    public int length() {
+        return count;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public byte byteAt(int index) {
+        if (index >= count)
+            throw new IndexOutOfBoundsException("Index " + index + ", length " + count);
+        return buffer[index];
+    }
+
+    public int copyTo(byte[] dst, int dstOffset) {
+        System.arraycopy(buffer, 0, dst, dstOffset, count);
+        return count;
+    }
+
+    // A view over the content, sharing memory with this ByteArray: no copy is made.
+    // The view is only valid until the next append that grows the buffer
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(buffer, 0, count).slice();
+    }
+
+    public ByteBuffer slice(int from, int length) {
+        if (from < 0 || length < 0 || from + length > count)
+            throw new IndexOutOfBoundsException("Slice " + from + "+" + length + ", length " + count);
+        return ByteBuffer.wrap(buffer, from, length).slice();
+    }
+
     public byte[] rawData() {
         return buffer;
     }
@@ -0,0 +1,56 @@
+package org.dematte.nfc.common;
+
+import java.util.ArrayList;
+
+/**
+ * A small pool of recyclable ByteArray builders, meant to live as long as a card session.
+ *
+ * Not thread-safe: a session talks to one card, from one thread at a time.
+ * Builders that grew too large are dropped instead of being kept around.
+ */
+public class ByteArrayPool {
+
+    public static final int DEFAULT_POOL_SIZE = 4;
+    public static final int DEFAULT_MAX_RETAINED_CAPACITY = 4096;
+
+    private final int poolSize;
+    private final int maxRetainedCapacity;
+    private final ArrayList<ByteArray> free;
+
+    private long acquired;
+    private long allocated;
+
+    public ByteArrayPool() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_MAX_RETAINED_CAPACITY);
+    }
+
+    public ByteArrayPool(int poolSize, int maxRetainedCapacity) {
+        this.poolSize = poolSize;
+        this.maxRetainedCapacity = maxRetainedCapacity;
+        this.free = new ArrayList<ByteArray>(poolSize);
+    }
+
+    // Returns an empty builder; give it back with release() when done
+    public ByteArray acquire() {
+        ++acquired;
+        if (free.isEmpty()) {
+            ++allocated;
+            return new ByteArray();
+        }
+        return free.remove(free.size() - 1).clear();
+    }
+
+    public void release(ByteArray array) {
+        if (array != null && free.size() < poolSize && array.capacity() <= maxRetainedCapacity)
+            free.add(array.clear());
+    }
+
+    public long getAcquired() {
+        return acquired;
+    }
+
+    // Builders that had to be allocated, because the pool was empty
+    public long getAllocated() {
+        return allocated;
+    }
+}
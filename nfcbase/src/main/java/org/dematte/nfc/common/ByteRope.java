@@ -0,0 +1,99 @@
+package org.dematte.nfc.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A sequence of bytes kept as a list of chunks, never concatenated until asked to.
+ *
+ * Meant for large reads, which arrive one frame at a time: appending a frame copies nothing,
+ * as the rope takes ownership of the appended arrays.
+ */
+public class ByteRope {
+
+    private static final int INITIAL_CHUNKS = 16;
+
+    private byte[][] chunks = new byte[INITIAL_CHUNKS][];
+    private int[] offsets = new int[INITIAL_CHUNKS];
+    private int[] lengths = new int[INITIAL_CHUNKS];
+    private int chunkCount;
+    private int length;
+
+    // The rope keeps a reference to chunk: it must not be modified afterwards
+    public ByteRope append(byte[] chunk) {
+        return append(chunk, 0, chunk.length);
+    }
+
+    public ByteRope append(byte[] chunk, int offset, int n) {
+        if (n <= 0)
+            return this;
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+            offsets = Arrays.copyOf(offsets, chunkCount * 2);
+            lengths = Arrays.copyOf(lengths, chunkCount * 2);
+        }
+        chunks[chunkCount] = chunk;
+        offsets[chunkCount] = offset;
+        lengths[chunkCount] = n;
+        ++chunkCount;
+        length += n;
+        return this;
+    }
+
+    public ByteRope clear() {
+        Arrays.fill(chunks, 0, chunkCount, null);
+        chunkCount = 0;
+        length = 0;
+        return this;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int chunkCount() {
+        return chunkCount;
+    }
+
+    public byte byteAt(int index) {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("Index " + index + ", length " + length);
+        int i = 0;
+        while (index >= lengths[i]) {
+            index -= lengths[i];
+            ++i;
+        }
+        return chunks[i][offsets[i] + index];
+    }
+
+    public int copyTo(byte[] dst, int dstOffset) {
+        int at = dstOffset;
+        for (int i = 0; i < chunkCount; ++i) {
+            System.arraycopy(chunks[i], offsets[i], dst, at, lengths[i]);
+            at += lengths[i];
+        }
+        return length;
+    }
+
+    public ByteArray copyTo(ByteArray dst) {
+        dst.ensureCapacity(length);
+        for (int i = 0; i < chunkCount; ++i)
+            dst.append(chunks[i], offsets[i], lengths[i]);
+        return dst;
+    }
+
+    // The only copy: one exactly sized array with the whole content
+    public byte[] toArray() {
+        byte[] ret = new byte[length];
+        copyTo(ret, 0);
+        return ret;
+    }
+
+    // One view per chunk, e.g. for a gathering write; no copy is made
+    public ByteBuffer[] asByteBuffers() {
+        ByteBuffer[] ret = new ByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; ++i)
+            ret[i] = ByteBuffer.wrap(chunks[i], offsets[i], lengths[i]).slice();
+        return ret;
+    }
+}
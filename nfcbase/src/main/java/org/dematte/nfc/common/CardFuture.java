@@ -0,0 +1,130 @@
+package org.dematte.nfc.common;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous card operation: a Future which can be completed once,
+ * and which runs callbacks on completion.
+ */
+public class CardFuture<T> implements Future<T> {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private ArrayList<ICardCallback<? super T>> callbacks = new ArrayList<ICardCallback<? super T>>(2);
+    private T value;
+    private Exception error;
+    private boolean cancelled;
+
+    public static <T> CardFuture<T> completed(T value) {
+        CardFuture<T> future = new CardFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    public static <T> CardFuture<T> failed(Exception error) {
+        CardFuture<T> future = new CardFuture<T>();
+        future.fail(error);
+        return future;
+    }
+
+    // Returns false if the future was already done
+    public boolean complete(T value) {
+        ArrayList<ICardCallback<? super T>> toRun;
+        synchronized (this) {
+            if (callbacks == null)
+                return false;
+            this.value = value;
+            toRun = callbacks;
+            callbacks = null;
+        }
+        done.countDown();
+        for (ICardCallback<? super T> callback : toRun)
+            callback.onSuccess(value);
+        return true;
+    }
+
+    public boolean fail(Exception error) {
+        ArrayList<ICardCallback<? super T>> toRun;
+        synchronized (this) {
+            if (callbacks == null)
+                return false;
+            this.error = error;
+            toRun = callbacks;
+            callbacks = null;
+        }
+        done.countDown();
+        for (ICardCallback<? super T> callback : toRun)
+            callback.onFailure(error);
+        return true;
+    }
+
+    // Runs the callback on completion, or right away (on this thread) if already done
+    public CardFuture<T> addCallback(ICardCallback<? super T> callback) {
+        synchronized (this) {
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        if (error == null)
+            callback.onSuccess(value);
+        else
+            callback.onFailure(error);
+        return this;
+    }
+
+    // Completes "other" with the outcome of this future
+    public CardFuture<T> forwardTo(final CardFuture<T> other) {
+        return addCallback(new ICardCallback<T>() {
+            public void onSuccess(T result) {
+                other.complete(result);
+            }
+
+            public void onFailure(Exception e) {
+                other.fail(e);
+            }
+        });
+    }
+
+    // The operation in progress is not interrupted: only the future is
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (callbacks == null)
+                return false;
+            cancelled = true;
+        }
+        return fail(new CancellationException());
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit))
+            throw new TimeoutException();
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (error instanceof CancellationException)
+            throw (CancellationException)error;
+        if (error != null)
+            throw new ExecutionException(error);
+        return value;
+    }
+}
@@ -0,0 +1,242 @@
+package org.dematte.nfc.common;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the data files of the cards seen hold, as far as we know: the bytes read from them,
+ * and those written and committed, by card UID, application and file. Bytes sent to a file
+ * and not committed yet are not known, nor are those written by any other means.
+ *
+ * MifareDesfire.writeFileChanges goes by the image, and only writes what differs from it:
+ * the image must not outlive what the card holds, so it should only be trusted where nobody
+ * else writes those files. Images expire after a time to live, and the least recently used
+ * ones are dropped past maxBytes. Thread-safe.
+ */
+public class CardImageCache {
+
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    // Rough per image cost of the map entry, key, image and bit set
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final LinkedHashMap<Key, Image> images = new LinkedHashMap<Key, Image>(64, 0.75f, true);
+    private final Key probe = new Key();
+    private long bytes;
+
+    public CardImageCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public CardImageCache(long maxBytes, long ttl, TimeUnit unit) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Cache bounds must be positive");
+        if (ttl <= 0)
+            throw new IllegalArgumentException("Time to live must be positive");
+        this.maxBytes = maxBytes;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    // The card holds these bytes at offset of the file: read, or written and committed
+    public synchronized void record(byte[] uid, byte[] aid, int fid, int offset, byte[] data, int from, int length) {
+        if (offset + length > maxBytes)
+            return;
+        Image image = images.get(probe.set(uid, aid, fid));
+        if (image == null || isExpired(image)) {
+            remove(probe);
+            image = new Image();
+            images.put(new Key().set(uid.clone(), aid.clone(), fid), image);
+            bytes += image.size();
+        }
+        image.expiresAt = System.nanoTime() + ttlNanos;
+        bytes -= image.size();
+        image.record(offset, data, from, length);
+        bytes += image.size();
+
+        Iterator<Image> eldest = images.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    // The card may hold anything there now
+    public synchronized void forget(byte[] uid, byte[] aid, int fid, int offset, int length) {
+        Image image = images.get(probe.set(uid, aid, fid));
+        if (image != null)
+            image.known.clear(offset, offset + length);
+    }
+
+    /**
+     * The ranges of data (to go at offset of the file) which the image does not know to be on
+     * the card already, as pairs of offset into data and length. Two ranges are merged, with
+     * what lies between them, unless that takes more frames of frameData bytes than they do.
+     * Returns the number of ranges; all of data is one range if the file is not in the cache.
+     */
+    synchronized int changes(byte[] uid, byte[] aid, int fid, int offset, byte[] data, int from, int length,
+                             int frameData, IntList ranges) {
+        ranges.clear();
+        Image image = images.get(probe.set(uid, aid, fid));
+        if (image != null && isExpired(image)) {
+            remove(probe);
+            image = null;
+        }
+        if (image == null) {
+            if (length > 0)
+                ranges.add(from).add(length);
+            return ranges.size() / 2;
+        }
+
+        int start = -1;
+        int end = -1;
+        for (int i = 0; i < length; ++i) {
+            if (image.holds(offset + i, data[from + i]))
+                continue;
+            // i differs: it starts a range, or extends the one open
+            int next = i;
+            while (next < length && !image.holds(offset + next, data[from + next]))
+                ++next;
+            if (start >= 0 && frames(next - start, frameData)
+                    > frames(end - start, frameData) + frames(next - i, frameData)) {
+                ranges.add(from + start).add(end - start);
+                start = -1;
+            }
+            if (start < 0)
+                start = i;
+            end = next;
+            i = next;
+        }
+        if (start >= 0)
+            ranges.add(from + start).add(end - start);
+        return ranges.size() / 2;
+    }
+
+    public synchronized void invalidate(byte[] uid) {
+        Iterator<Map.Entry<Key, Image>> it = images.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Image> e = it.next();
+            if (Arrays.equals(e.getKey().uid, uid)) {
+                bytes -= e.getValue().size();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        images.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return images.size();
+    }
+
+    // Estimated memory taken by the images
+    public synchronized long getMemoryUsage() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CardImageCache[images=%d, bytes=%d]", size(), getMemoryUsage());
+    }
+
+    private static int frames(int length, int frameData) {
+        return (length + frameData - 1) / frameData;
+    }
+
+    private boolean isExpired(Image image) {
+        return System.nanoTime() - image.expiresAt >= 0;
+    }
+
+    private void remove(Key key) {
+        Image image = images.remove(key);
+        if (image != null)
+            bytes -= image.size();
+    }
+
+    // A growable list of ints, reused from write to write
+    static class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        IntList add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+            return this;
+        }
+
+        int get(int index) {
+            if (index >= size)
+                throw new IndexOutOfBoundsException();
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    // File content from offset 0, and which bytes of it are known
+    private static class Image {
+        private byte[] content = new byte[0];
+        private final BitSet known = new BitSet();
+        private long expiresAt;
+
+        void record(int offset, byte[] data, int from, int length) {
+            if (offset + length > content.length)
+                content = Arrays.copyOf(content, Math.max(offset + length, content.length * 2));
+            System.arraycopy(data, from, content, offset, length);
+            known.set(offset, offset + length);
+        }
+
+        boolean holds(int offset, byte b) {
+            return offset < content.length && known.get(offset) && content[offset] == b;
+        }
+
+        int size() {
+            return content.length + ENTRY_OVERHEAD;
+        }
+    }
+
+    // Card UID, application ID and file; the probe instance just points at the caller's arrays
+    private static class Key {
+        private byte[] uid;
+        private byte[] aid;
+        private int fid;
+        private int hash;
+
+        Key set(byte[] uid, byte[] aid, int fid) {
+            this.uid = uid;
+            this.aid = aid;
+            this.fid = fid;
+            this.hash = (Arrays.hashCode(uid) * 31 + Arrays.hashCode(aid)) * 31 + fid;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key)o;
+            return fid == other.fid && Arrays.equals(uid, other.uid) && Arrays.equals(aid, other.aid);
+        }
+    }
+}
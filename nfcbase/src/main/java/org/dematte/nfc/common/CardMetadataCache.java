@@ -0,0 +1,211 @@
+package org.dematte.nfc.common;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe ICardMetadataCache.
+ *
+ * Entries expire after a time to live, and the least recently used ones are evicted when
+ * there are more than maxEntries of them, or when they take more than maxBytes (estimated).
+ * Answers are copied in and out, so callers can not change what is cached.
+ */
+public class CardMetadataCache implements ICardMetadataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    // Rough per entry cost of the map entry, key, cached entry and arrays headers
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final LinkedHashMap<Key, CachedAnswer> entries = new LinkedHashMap<Key, CachedAnswer>(64, 0.75f, true);
+    // Used to look up entries without allocating; guarded by "this", like entries
+    private final Key probe = new Key();
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public CardMetadataCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public CardMetadataCache(int maxEntries, long maxBytes, long ttl, TimeUnit unit) {
+        if (maxEntries <= 0 || maxBytes <= 0)
+            throw new IllegalArgumentException("Cache bounds must be positive");
+        if (ttl <= 0)
+            throw new IllegalArgumentException("Time to live must be positive");
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    public byte[] get(byte[] uid, byte[] aid, byte[] command) {
+        synchronized (this) {
+            CachedAnswer answer = entries.get(probe.set(uid, aid, command));
+            if (answer != null) {
+                if (System.nanoTime() - answer.expiresAt < 0) {
+                    hits.incrementAndGet();
+                    return answer.data.clone();
+                }
+                remove(probe);
+                expirations.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(byte[] uid, byte[] aid, byte[] command, byte[] data) {
+        Key key = new Key().set(uid.clone(), aid.clone(), command.clone());
+        CachedAnswer answer = new CachedAnswer(data.clone(), System.nanoTime() + ttlNanos, key.size() + data.length);
+        if (answer.size > maxBytes)
+            return;
+
+        synchronized (this) {
+            CachedAnswer previous = entries.put(key, answer);
+            if (previous != null)
+                bytes -= previous.size;
+            bytes += answer.size;
+
+            Iterator<CachedAnswer> eldest = entries.values().iterator();
+            while (entries.size() > maxEntries || bytes > maxBytes) {
+                bytes -= eldest.next().size;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized void invalidate(byte[] uid, byte[] aid) {
+        Iterator<Map.Entry<Key, CachedAnswer>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, CachedAnswer> e = it.next();
+            Key key = e.getKey();
+            if (Arrays.equals(key.uid, uid) && (aid == null || Arrays.equals(key.aid, aid))) {
+                bytes -= e.getValue().size;
+                it.remove();
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Estimated memory taken by the cached entries
+    public synchronized long getMemoryUsage() {
+        return bytes;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // Hits over lookups, 0 before the first lookup
+    public double getHitRate() {
+        long h = hits.get();
+        long lookups = h + misses.get();
+        return lookups == 0 ? 0 : (double)h / lookups;
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CardMetadataCache[entries=%d, bytes=%d, hits=%d, misses=%d, hitRate=%.2f, " +
+                        "evictions=%d, expirations=%d, invalidations=%d]",
+                size(), getMemoryUsage(), getHits(), getMisses(), getHitRate(),
+                getEvictions(), getExpirations(), getInvalidations());
+    }
+
+    private void remove(Key key) {
+        CachedAnswer answer = entries.remove(key);
+        if (answer != null)
+            bytes -= answer.size;
+    }
+
+    private static class CachedAnswer {
+        final byte[] data;
+        final long expiresAt;
+        final int size;
+
+        CachedAnswer(byte[] data, long expiresAt, int size) {
+            this.data = data;
+            this.expiresAt = expiresAt;
+            this.size = size + ENTRY_OVERHEAD;
+        }
+    }
+
+    // Card UID, application ID and command; the probe instance just points at the caller's arrays
+    private static class Key {
+        private byte[] uid;
+        private byte[] aid;
+        private byte[] command;
+        private int hash;
+
+        Key set(byte[] uid, byte[] aid, byte[] command) {
+            this.uid = uid;
+            this.aid = aid;
+            this.command = command;
+            this.hash = (Arrays.hashCode(uid) * 31 + Arrays.hashCode(aid)) * 31 + Arrays.hashCode(command);
+            return this;
+        }
+
+        int size() {
+            return uid.length + aid.length + command.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key)o;
+            return Arrays.equals(uid, other.uid) && Arrays.equals(aid, other.aid) && Arrays.equals(command, other.command);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.dematte.nfc.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Metrics of the exchanges with the cards, per Desfire command and framing mode (ISO or native),
+ * as recorded by InstrumentedCardCommunicators. One instance can be shared by every reader of
+ * a process, and exported as plain text or JSON.
+ *
+ * Recording is lock-free, and allocates only the first time a command is seen.
+ */
+public class CardMetrics {
+
+    private static final CardMetrics defaultMetrics = new CardMetrics();
+
+    public static CardMetrics getDefault() {
+        return defaultMetrics;
+    }
+
+    // Native commands at 0..255, ISO wrapped ones at 256..511
+    private final AtomicReferenceArray<CommandMetrics> commands = new AtomicReferenceArray<CommandMetrics>(512);
+
+    public CommandMetrics get(byte command, boolean isoMode) {
+        int index = (isoMode ? 256 : 0) + (command & 0xff);
+        CommandMetrics metrics = commands.get(index);
+        if (metrics == null) {
+            commands.compareAndSet(index, null, new CommandMetrics(command, isoMode));
+            metrics = commands.get(index);
+        }
+        return metrics;
+    }
+
+    // Metrics of the commands seen so far
+    public List<CommandMetrics> getCommands() {
+        ArrayList<CommandMetrics> ret = new ArrayList<CommandMetrics>();
+        for (int i = 0; i < commands.length(); ++i) {
+            CommandMetrics metrics = commands.get(i);
+            if (metrics != null)
+                ret.add(metrics);
+        }
+        return ret;
+    }
+
+    public void reset() {
+        for (int i = 0; i < commands.length(); ++i) {
+            CommandMetrics metrics = commands.get(i);
+            if (metrics != null)
+                metrics.reset();
+        }
+    }
+
+    // One line per command
+    public String toText() {
+        StringBuilder out = new StringBuilder();
+        for (CommandMetrics metrics : getCommands()) {
+            metrics.appendText(out);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    public String toJson() {
+        StringBuilder out = new StringBuilder("{\"commands\":[");
+        boolean first = true;
+        for (CommandMetrics metrics : getCommands()) {
+            if (!first)
+                out.append(',');
+            first = false;
+            metrics.appendJson(out);
+        }
+        return out.append("]}").toString();
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+}
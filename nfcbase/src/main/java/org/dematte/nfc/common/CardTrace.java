@@ -0,0 +1,267 @@
+package org.dematte.nfc.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A trace of the exchanges with cards, as written by a RecordingCardCommunicator and served
+ * back by a ReplayCardCommunicator.
+ *
+ * The file starts with "NFCT" and a version byte, and is made of records, appended as they
+ * happen: type, flags, session id, start (nanoseconds after the start of the previous record),
+ * duration (nanoseconds), then commands and answers, or the error message. Numbers are unsigned
+ * LEB128 varints, byte strings a varint length and the bytes. A SESSION record (flags, session
+ * id, wall clock time, frame size) opens each recording, so several of them can share a file,
+ * one after the other or interleaved: records go with the latest SESSION of their id.
+ * Version 1 traces, without session ids, are still read: records go with the latest SESSION.
+ */
+public class CardTrace {
+
+    static final byte[] MAGIC = new byte[]{'N', 'F', 'C', 'T'};
+    static final byte VERSION = 2;
+
+    // Record types
+    public static final byte SESSION = 0;
+    public static final byte EXCHANGE = 1;
+    public static final byte BATCH = 2;
+    public static final byte CONNECT = 3;
+    public static final byte CLOSE = 4;
+    // An authentication challenge (RndA) we generated: the command is the nonce
+    public static final byte NONCE = 5;
+
+    // Record flags
+    static final int ISO_MODE = 0x01;
+    static final int FAILED = 0x02;
+    // SESSION only: the recorded communicator took batches
+    static final int BATCHING = 0x04;
+
+    public static class Entry {
+        private final byte type;
+        private final int flags;
+        private final int session;
+        private final long startNanos;
+        private final long durationNanos;
+        private final byte[][] commands;
+        private final byte[][] answers;
+        private final String error;
+
+        Entry(byte type, int flags, int session, long startNanos, long durationNanos, byte[][] commands,
+              byte[][] answers, String error) {
+            this.type = type;
+            this.flags = flags;
+            this.session = session;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.commands = commands;
+            this.answers = answers;
+            this.error = error;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        // True if the exchange went through ISO 7816 APDUs
+        public boolean isIsoMode() {
+            return (flags & ISO_MODE) != 0;
+        }
+
+        // True if the communicator threw; getError() has the message
+        public boolean isFailed() {
+            return (flags & FAILED) != 0;
+        }
+
+        // Index of the recording (SESSION record) it belongs to, among those of the trace; -1 if none
+        public int getSession() {
+            return session;
+        }
+
+        // Since the start of the trace; for SESSION records, the wall clock time, in milliseconds
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        // For SESSION records, the frame size of the recorded communicator
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public byte[][] getCommands() {
+            return commands;
+        }
+
+        public byte[][] getAnswers() {
+            return answers;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        int getFlags() {
+            return flags;
+        }
+    }
+
+    private final List<Entry> entries;
+
+    CardTrace(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    // Reads a whole trace file, memory mapped
+    public static CardTrace read(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            input.close();
+        }
+    }
+
+    public static CardTrace parse(ByteBuffer buffer) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        try {
+            for (byte b : MAGIC) {
+                if (buffer.get() != b)
+                    throw new IOException("Not a card trace");
+            }
+            byte version = buffer.get();
+            if (version != VERSION && version != 1)
+                throw new IOException("Unknown card trace version");
+            boolean sessionIds = version != 1;
+
+            // Session ids of the writers, to the index of their latest SESSION record
+            HashMap<Long, Integer> sessions = new HashMap<Long, Integer>();
+            int sessionCount = 0;
+            // One time base for the whole trace: SESSION records do not start it over
+            long at = 0;
+            while (buffer.hasRemaining()) {
+                byte type = buffer.get();
+                int flags = buffer.get() & 0xff;
+                long id = sessionIds ? readVarint(buffer) : 0;
+                if (type == SESSION) {
+                    // Wall clock and frame size in place of start and duration
+                    long millis = readVarint(buffer);
+                    long frameSize = readVarint(buffer);
+                    sessions.put(id, sessionCount);
+                    entries.add(new Entry(type, flags, sessionCount++, millis, frameSize, new byte[0][],
+                            new byte[0][], null));
+                    continue;
+                }
+                Integer session = sessions.get(id);
+                at += readVarint(buffer);
+                long duration = readVarint(buffer);
+                byte[][] commands = readBytes(buffer, type == BATCH ? (int)readVarint(buffer) : 1);
+                byte[][] answers;
+                String error = null;
+                if ((flags & FAILED) != 0) {
+                    byte[] message = readBytes(buffer);
+                    error = message == null ? null : new String(message, "UTF-8");
+                    answers = new byte[0][];
+                } else {
+                    answers = readBytes(buffer, type == BATCH ? (int)readVarint(buffer) : 1);
+                }
+                entries.add(new Entry(type, flags, session == null ? -1 : session, at, duration, commands,
+                        answers, error));
+            }
+        } catch (BufferUnderflowException e) {
+            // A recording cut short: keep what is complete
+        }
+        return new CardTrace(entries);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    // The entries of one recording, its SESSION record first
+    public List<Entry> getEntries(int session) {
+        ArrayList<Entry> ret = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            if (entry.getSession() == session)
+                ret.add(entry);
+        }
+        return Collections.unmodifiableList(ret);
+    }
+
+    // The first SESSION record, null if there is none
+    public Entry getSession() {
+        return getSession(0);
+    }
+
+    // The SESSION record of the given recording, null if there is no such one
+    public Entry getSession(int session) {
+        for (Entry entry : entries) {
+            if (entry.getType() == SESSION && entry.getSession() == session)
+                return entry;
+        }
+        return null;
+    }
+
+    // Number of recordings in the trace
+    public int getSessionCount() {
+        int ret = 0;
+        for (Entry entry : entries) {
+            if (entry.getType() == SESSION)
+                ++ret;
+        }
+        return ret;
+    }
+
+    static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long)(b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IOException("Bad varint in card trace");
+    }
+
+    static void writeVarint(ByteArray out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.append((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.append((byte)value);
+    }
+
+    // Null byte strings (e.g. no answer at all) are written as length 0, plus one for the others
+    private static byte[][] readBytes(ByteBuffer buffer, int count) throws IOException {
+        byte[][] ret = new byte[count][];
+        for (int i = 0; i < count; ++i)
+            ret[i] = readBytes(buffer);
+        return ret;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) throws IOException {
+        long length = readVarint(buffer);
+        if (length == 0)
+            return null;
+        if (length - 1 > buffer.remaining())
+            throw new BufferUnderflowException();
+        byte[] ret = new byte[(int)(length - 1)];
+        buffer.get(ret);
+        return ret;
+    }
+
+    static void writeBytes(ByteArray out, byte[] bytes) {
+        if (bytes == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        writeVarint(out, bytes.length + 1L);
+        out.append(bytes);
+    }
+}
@@ -0,0 +1,138 @@
+package org.dematte.nfc.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends records to a CardTrace file, through a direct buffer which is written out when full,
+ * on flush() and on close(); records are encoded in a reused builder.
+ * Thread-safe: several cards can share a writer, each recording under the session id that
+ * session() gave it. Record times all count from the same origin.
+ */
+public class CardTraceWriter implements Closeable, Flushable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final ByteArray record = new ByteArray(256);
+    private final long origin = System.nanoTime();
+    // Start of the previous record, since origin
+    private long last;
+    private int sessions;
+    private long records;
+    private boolean closed;
+
+    public CardTraceWriter(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    // Appends to the file if it is a trace (of this version) already
+    public CardTraceWriter(File file, int bufferSize) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        this.channel = output.getChannel();
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        try {
+            if (channel.size() == 0) {
+                buffer.put(CardTrace.MAGIC).put(CardTrace.VERSION);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(CardTrace.MAGIC.length + 1);
+                channel.read(header, 0);
+                if (header.hasRemaining() || header.get(CardTrace.MAGIC.length) != CardTrace.VERSION)
+                    throw new IOException("Not a card trace of version " + CardTrace.VERSION + ": " + file);
+                channel.position(channel.size());
+            }
+        } catch (IOException e) {
+            output.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a recording: what replays need to know about the communicator. Returns the id its
+     * records are to be written with.
+     */
+    public synchronized int session(boolean isoMode, boolean batching, int maxFrameSize) throws IOException {
+        int session = sessions++;
+        record.clear().append(CardTrace.SESSION)
+                .append((byte)((isoMode ? CardTrace.ISO_MODE : 0) | (batching ? CardTrace.BATCHING : 0)));
+        CardTrace.writeVarint(record, session);
+        CardTrace.writeVarint(record, System.currentTimeMillis());
+        CardTrace.writeVarint(record, Math.max(0, maxFrameSize));
+        write();
+        return session;
+    }
+
+    // An exchange of the given session that started at startNanos (System.nanoTime()); answers is null if it failed
+    public synchronized void exchange(int session, byte type, boolean isoMode, long startNanos, long endNanos,
+                                      byte[][] commands, byte[][] answers, String error) throws IOException {
+        long start = Math.max(last, startNanos - origin);
+        record.clear().append(type).append((byte)((isoMode ? CardTrace.ISO_MODE : 0)
+                | (answers == null ? CardTrace.FAILED : 0)));
+        CardTrace.writeVarint(record, session);
+        CardTrace.writeVarint(record, start - last);
+        CardTrace.writeVarint(record, Math.max(0, endNanos - startNanos));
+        last = start;
+
+        if (type == CardTrace.BATCH)
+            CardTrace.writeVarint(record, commands.length);
+        for (byte[] command : commands)
+            CardTrace.writeBytes(record, command);
+        if (answers == null) {
+            CardTrace.writeBytes(record, error == null ? null : error.getBytes("UTF-8"));
+        } else {
+            if (type == CardTrace.BATCH)
+                CardTrace.writeVarint(record, answers.length);
+            for (byte[] answer : answers)
+                CardTrace.writeBytes(record, answer);
+        }
+        write();
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    private void write() throws IOException {
+        ensureOpen();
+        ++records;
+        if (record.length() > buffer.remaining())
+            flush();
+        if (record.length() > buffer.capacity()) {
+            ByteBuffer large = record.asByteBuffer();
+            while (large.hasRemaining())
+                channel.write(large);
+            return;
+        }
+        buffer.put(record.rawData(), 0, record.length());
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Trace closed");
+    }
+}
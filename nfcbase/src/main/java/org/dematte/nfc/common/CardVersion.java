@@ -0,0 +1,96 @@
+package org.dematte.nfc.common;
+
+/**
+ * GetVersion (0x60) answer: hardware and software information (vendor, type, subtype, major
+ * and minor version, storage size, protocol), then UID, batch number and production date.
+ */
+public class CardVersion extends ResponseView {
+
+    public static final int VENDOR_NXP = 0x04;
+
+    private static final int HARDWARE = 0;
+    private static final int SOFTWARE = 7;
+    private static final int UID = 14;
+    private static final int BATCH = 21;
+    private static final int WEEK = 26;
+    private static final int YEAR = 27;
+
+    @Override
+    public CardVersion wrap(byte[] data) {
+        return (CardVersion)super.wrap(data);
+    }
+
+    @Override
+    public CardVersion wrap(byte[] data, int offset, int length) {
+        return (CardVersion)super.wrap(data, offset, length);
+    }
+
+    // The hardware part comes in the first frame: the rest may be missing
+    @Override
+    protected int getMinLength() {
+        return 7;
+    }
+
+    public int getVendor() {
+        return u8(HARDWARE);
+    }
+
+    public int getHardwareType() {
+        return u8(HARDWARE + 1);
+    }
+
+    public int getHardwareSubtype() {
+        return u8(HARDWARE + 2);
+    }
+
+    public int getHardwareMajor() {
+        return u8(HARDWARE + 3);
+    }
+
+    public int getHardwareMinor() {
+        return u8(HARDWARE + 4);
+    }
+
+    // Bytes of storage; an odd size code means "more than this, less than twice as much"
+    public int getStorageSize() {
+        return 1 << (u8(HARDWARE + 5) >> 1);
+    }
+
+    public boolean isStorageSizeExact() {
+        return (u8(HARDWARE + 5) & 1) == 0;
+    }
+
+    public int getSoftwareMajor() {
+        return u8(SOFTWARE + 3);
+    }
+
+    public int getSoftwareMinor() {
+        return u8(SOFTWARE + 4);
+    }
+
+    // True once the software and production parts (additional frames) are there
+    public boolean isComplete() {
+        return length() >= YEAR + 1;
+    }
+
+    public byte[] getUid() {
+        return bytes(UID, 7);
+    }
+
+    public byte[] getBatchNumber() {
+        return bytes(BATCH, 5);
+    }
+
+    // BCD coded, as printed on the production data
+    public int getProductionWeek() {
+        return bcd(u8(WEEK));
+    }
+
+    public int getProductionYear() {
+        return bcd(u8(YEAR));
+    }
+
+    private static int bcd(int value) {
+        return (value >> 4) * 10 + (value & 0x0f);
+    }
+}
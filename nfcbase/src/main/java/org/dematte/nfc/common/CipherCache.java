@@ -0,0 +1,200 @@
+package org.dematte.nfc.common;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe cache of initialized DESede/ECB ciphers, keyed by (diversified) key.
+ *
+ * Ciphers are not thread-safe, so they are lent: acquire one, use it, release it with the same
+ * key. A hit hands back an idle cipher whose key schedule is already done; a miss pays for
+ * provider lookup and init. Least recently used keys are evicted, and their key material zeroed.
+ */
+public class CipherCache {
+
+    public static final int DEFAULT_CAPACITY = 32;
+
+    // Idle ciphers kept for each key (one per thread authenticating with that key, at most)
+    private static final int MAX_IDLE_CIPHERS = 4;
+
+    private static final CipherCache defaultCache = new CipherCache(DEFAULT_CAPACITY);
+
+    public static CipherCache getDefault() {
+        return defaultCache;
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<KeyBytes, CachedKey> entries;
+    // Used to look up entries without allocating; guarded by "this", like entries
+    private final KeyBytes probe = new KeyBytes();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CipherCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<KeyBytes, CachedKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<KeyBytes, CachedKey> eldest) {
+                if (size() <= CipherCache.this.capacity)
+                    return false;
+                eldest.getKey().zero();
+                eldest.getValue().zero();
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns a cipher initialized in DECRYPT_MODE with the given DES, 2K3DES or 3K3DES key.
+     * Give it back with release() when done.
+     */
+    public Cipher acquire(byte[] diversifiedKey)
+            throws InvalidKeyException, NoSuchPaddingException, NoSuchAlgorithmException {
+        TripleDesKey key;
+        synchronized (this) {
+            CachedKey entry = entries.get(probe.set(diversifiedKey));
+            if (entry != null && !entry.idle.isEmpty()) {
+                hits.incrementAndGet();
+                return entry.idle.remove(entry.idle.size() - 1);
+            }
+            if (entry == null) {
+                entry = new CachedKey(MifareDesfire.tripleDesKey(diversifiedKey));
+                entries.put(new KeyBytes().set(diversifiedKey.clone()), entry);
+            }
+            // A private copy: the entry may be evicted (and zeroed) before we are done
+            key = new TripleDesKey(entry.key.getEncoded());
+        }
+
+        // All ciphers for this key are in use (or it is a new key): make a new one, outside the lock
+        misses.incrementAndGet();
+        try {
+            Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key);
+            return cipher;
+        } finally {
+            key.zero();
+        }
+    }
+
+    public void release(byte[] diversifiedKey, Cipher cipher) {
+        synchronized (this) {
+            CachedKey entry = entries.get(probe.set(diversifiedKey));
+            // An evicted key does not come back with its ciphers
+            if (entry != null && entry.idle.size() < MAX_IDLE_CIPHERS)
+                entry.idle.add(cipher);
+        }
+    }
+
+    // Drops every cached cipher, zeroing the key material
+    public synchronized void clear() {
+        Iterator<Map.Entry<KeyBytes, CachedKey>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<KeyBytes, CachedKey> e = it.next();
+            e.getKey().zero();
+            e.getValue().zero();
+            it.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private static class CachedKey {
+        private final TripleDesKey key;
+        private final ArrayList<Cipher> idle = new ArrayList<Cipher>(MAX_IDLE_CIPHERS);
+
+        CachedKey(byte[] tripleDesKey) {
+            this.key = new TripleDesKey(tripleDesKey);
+        }
+
+        void zero() {
+            key.zero();
+            idle.clear();
+        }
+    }
+
+    // Map key over the raw key bytes; the probe instance just points at the caller's array
+    private static class KeyBytes {
+        private byte[] bytes;
+        private int hash;
+
+        KeyBytes set(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+            return this;
+        }
+
+        void zero() {
+            Arrays.fill(bytes, (byte)0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof KeyBytes && Arrays.equals(bytes, ((KeyBytes)o).bytes);
+        }
+    }
+
+    // A SecretKey whose material we own, so it can be zeroed on eviction.
+    // Providers copy the encoded key on init, so this is as far as zeroing can go from here.
+    private static class TripleDesKey implements SecretKey {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] key;
+
+        TripleDesKey(byte[] key) {
+            this.key = key;
+        }
+
+        public String getAlgorithm() {
+            return "DESede";
+        }
+
+        public String getFormat() {
+            return "RAW";
+        }
+
+        public byte[] getEncoded() {
+            return key.clone();
+        }
+
+        void zero() {
+            Arrays.fill(key, (byte)0);
+        }
+    }
+}
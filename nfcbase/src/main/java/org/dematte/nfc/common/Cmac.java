@@ -0,0 +1,122 @@
+package org.dematte.nfc.common;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * CMAC (NIST SP 800-38B) over AES or DESede, as used by Desfire EV1 and by AN10922 key
+ * diversification. Not thread-safe: one instance per thread, or lend them.
+ */
+public class Cmac {
+
+    private final Cipher cipher;
+    private final int blockSize;
+    private final byte[] k1;
+    private final byte[] k2;
+    private final byte[] state;
+
+    /**
+     * A CMAC with an AES-128 key (16 bytes), or a DES/3DES key (8, 16 or 24 bytes).
+     */
+    public static Cmac aes(byte[] key) throws GeneralSecurityException {
+        return new Cmac("AES", key);
+    }
+
+    public static Cmac tripleDes(byte[] key) throws GeneralSecurityException {
+        return new Cmac("DESede", MifareDesfire.tripleDesKey(key));
+    }
+
+    private Cmac(String algorithm, byte[] key) throws GeneralSecurityException {
+        cipher = Cipher.getInstance(algorithm + "/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, algorithm));
+        blockSize = cipher.getBlockSize();
+        state = new byte[blockSize];
+
+        // Subkeys: L = E(K, 0), K1 = L << 1, K2 = K1 << 1 (xored with Rb on carry)
+        byte[] l = cipher.doFinal(new byte[blockSize]);
+        k1 = shiftAndReduce(l);
+        k2 = shiftAndReduce(k1);
+        Arrays.fill(l, (byte)0);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    byte[] getK1() {
+        return k1.clone();
+    }
+
+    byte[] getK2() {
+        return k2.clone();
+    }
+
+    public byte[] mac(byte[] data) throws GeneralSecurityException {
+        return mac(data, 0, data.length);
+    }
+
+    public byte[] mac(byte[] data, int offset, int length) throws GeneralSecurityException {
+        int padded = Math.max(1, (length + blockSize - 1) / blockSize) * blockSize;
+        return mac(data, offset, length, padded);
+    }
+
+    /**
+     * CMAC of length bytes of data, padded (when short) to paddedLength bytes instead of the next
+     * block boundary, as AN10922 asks. The full last block is returned.
+     */
+    byte[] mac(byte[] data, int offset, int length, int paddedLength) throws GeneralSecurityException {
+        return mac(null, data, offset, length, paddedLength);
+    }
+
+    /**
+     * CMAC chained on a previous one, as Desfire EV1 secure messaging does: iv (null for zeros)
+     * is where the CBC starts, instead of zeros.
+     */
+    byte[] mac(byte[] iv, byte[] data, int offset, int length) throws GeneralSecurityException {
+        int padded = Math.max(1, (length + blockSize - 1) / blockSize) * blockSize;
+        return mac(iv, data, offset, length, padded);
+    }
+
+    private byte[] mac(byte[] iv, byte[] data, int offset, int length, int paddedLength) throws GeneralSecurityException {
+        if (paddedLength % blockSize != 0 || paddedLength < length || paddedLength == 0)
+            throw new IllegalArgumentException("Bad padded length: " + paddedLength);
+
+        boolean complete = length == paddedLength;
+        int lastStart = paddedLength - blockSize;
+        if (iv == null)
+            Arrays.fill(state, (byte)0);
+        else
+            System.arraycopy(iv, 0, state, 0, blockSize);
+        for (int block = 0; block < paddedLength; block += blockSize) {
+            for (int i = 0; i < blockSize; ++i) {
+                int at = block + i;
+                byte b;
+                if (at < length)
+                    b = data[offset + at];
+                else if (at == length)
+                    b = (byte)0x80;
+                else
+                    b = 0;
+                if (block == lastStart)
+                    b ^= complete ? k1[i] : k2[i];
+                state[i] ^= b;
+            }
+            // CBC, one block at a time
+            cipher.doFinal(state, 0, blockSize, state, 0);
+        }
+        return state.clone();
+    }
+
+    private byte[] shiftAndReduce(byte[] in) {
+        byte[] out = new byte[in.length];
+        for (int i = 0; i < in.length; ++i) {
+            int next = i + 1 < in.length ? (in[i + 1] & 0xff) >>> 7 : 0;
+            out[i] = (byte)((in[i] << 1) | next);
+        }
+        if ((in[0] & 0x80) != 0)
+            out[in.length - 1] ^= in.length == 16 ? (byte)0x87 : (byte)0x1B;
+        return out;
+    }
+}
@@ -0,0 +1,164 @@
+package org.dematte.nfc.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What happened to one Desfire command (e.g. 0xBD, ReadData) in one framing mode:
+ * latency, bytes sent and received, answer status codes, failures and retries.
+ */
+public class CommandMetrics {
+
+    private final byte command;
+    private final boolean isoMode;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong transportErrors = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    // Answers by status code
+    private final AtomicLongArray statuses = new AtomicLongArray(256);
+
+    CommandMetrics(byte command, boolean isoMode) {
+        this.command = command;
+        this.isoMode = isoMode;
+    }
+
+    void recordExchange(long micros, int sent, int received, int status) {
+        latency.record(micros);
+        bytesOut.addAndGet(sent);
+        bytesIn.addAndGet(received);
+        if (status < 0) {
+            errors.incrementAndGet();
+            return;
+        }
+        statuses.incrementAndGet(status);
+        if (status != 0x00 && status != 0xAF && status != 0x0C)
+            errors.incrementAndGet();
+    }
+
+    // An exchange which did not get an answer (the communicator threw)
+    void recordTransportError(long micros, int sent) {
+        latency.record(micros);
+        bytesOut.addAndGet(sent);
+        transportErrors.incrementAndGet();
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    public byte getCommand() {
+        return command;
+    }
+
+    public boolean isIsoMode() {
+        return isoMode;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    // Answers with an error status (anything but OK, additional frame, no changes), or no status at all
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getTransportErrors() {
+        return transportErrors.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getStatusCount(byte status) {
+        return statuses.get(status & 0xff);
+    }
+
+    public void reset() {
+        latency.reset();
+        bytesOut.set(0);
+        bytesIn.set(0);
+        errors.set(0);
+        transportErrors.set(0);
+        retries.set(0);
+        for (int i = 0; i < 256; ++i)
+            statuses.set(i, 0);
+    }
+
+    void appendText(StringBuilder out) {
+        out.append("command=");
+        HexCodec.encode(new byte[]{command}, 0, 1, out);
+        out.append(" mode=").append(isoMode ? "iso" : "native")
+                .append(" count=").append(latency.getCount())
+                .append(" errors=").append(getErrors())
+                .append(" transportErrors=").append(getTransportErrors())
+                .append(" retries=").append(getRetries())
+                .append(" bytesOut=").append(getBytesOut())
+                .append(" bytesIn=").append(getBytesIn())
+                .append(" latencyUs[min=").append(latency.getMin())
+                .append(" mean=").append(Math.round(latency.getMean()))
+                .append(" p50=").append(latency.getValueAtPercentile(50))
+                .append(" p90=").append(latency.getValueAtPercentile(90))
+                .append(" p99=").append(latency.getValueAtPercentile(99))
+                .append(" p999=").append(latency.getValueAtPercentile(99.9))
+                .append(" max=").append(latency.getMax())
+                .append("] statuses={");
+        boolean first = true;
+        for (int i = 0; i < 256; ++i) {
+            long n = statuses.get(i);
+            if (n == 0)
+                continue;
+            if (!first)
+                out.append(", ");
+            first = false;
+            HexCodec.encode(new byte[]{(byte)i}, 0, 1, out);
+            out.append('=').append(n);
+        }
+        out.append('}');
+    }
+
+    void appendJson(StringBuilder out) {
+        out.append("{\"command\":\"");
+        HexCodec.encode(new byte[]{command}, 0, 1, out);
+        out.append("\",\"mode\":\"").append(isoMode ? "iso" : "native")
+                .append("\",\"count\":").append(latency.getCount())
+                .append(",\"errors\":").append(getErrors())
+                .append(",\"transportErrors\":").append(getTransportErrors())
+                .append(",\"retries\":").append(getRetries())
+                .append(",\"bytesOut\":").append(getBytesOut())
+                .append(",\"bytesIn\":").append(getBytesIn())
+                .append(",\"latencyMicros\":{\"min\":").append(latency.getMin())
+                .append(",\"mean\":").append(Math.round(latency.getMean()))
+                .append(",\"p50\":").append(latency.getValueAtPercentile(50))
+                .append(",\"p90\":").append(latency.getValueAtPercentile(90))
+                .append(",\"p99\":").append(latency.getValueAtPercentile(99))
+                .append(",\"p999\":").append(latency.getValueAtPercentile(99.9))
+                .append(",\"max\":").append(latency.getMax())
+                .append("},\"statuses\":{");
+        boolean first = true;
+        for (int i = 0; i < 256; ++i) {
+            long n = statuses.get(i);
+            if (n == 0)
+                continue;
+            if (!first)
+                out.append(',');
+            first = false;
+            out.append('"');
+            HexCodec.encode(new byte[]{(byte)i}, 0, 1, out);
+            out.append("\":").append(n);
+        }
+        out.append("}}");
+    }
+}
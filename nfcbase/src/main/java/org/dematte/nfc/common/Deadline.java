@@ -0,0 +1,37 @@
+package org.dematte.nfc.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which an operation (e.g. a whole tap) must be over.
+ */
+public final class Deadline {
+
+    // No deadline at all
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private final long deadlineNanos;
+
+    private Deadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public static Deadline after(long budget, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(budget));
+    }
+
+    public long remainingMillis() {
+        if (this == NONE)
+            return Long.MAX_VALUE;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return this != NONE && deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return this == NONE ? "Deadline[none]" : "Deadline[" + remainingMillis() + " ms left]";
+    }
+}
@@ -0,0 +1,453 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+
+/**
+ * A sequence of Desfire commands, sent to the card in as few exchanges as possible.
+ *
+ * With an IBatchCardCommunicator, every command whose content is known in advance goes in the
+ * same exchange; only authentication needs the card answer before going on, so e.g.
+ * select, authenticate, read, get file settings takes two exchanges instead of five.
+ * Other communicators get the same commands one at a time.
+ *
+ * The first failing step stops the batch: later steps are reported as not executed.
+ */
+public class DesfireBatch {
+
+    public static class StepResult {
+        private final String name;
+        private byte[] data;
+        private Exception error;
+        private boolean executed;
+
+        StepResult(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // The answer data, without status code (empty for commands returning no data)
+        public byte[] getData() {
+            return data;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isExecuted() {
+            return executed;
+        }
+
+        public boolean isSuccess() {
+            return executed && error == null;
+        }
+
+        @Override
+        public String toString() {
+            if (!executed)
+                return name + ": not executed";
+            if (error != null)
+                return name + ": " + error.getMessage();
+            return name + ": " + ByteArray.byteArrayToHexString(data);
+        }
+    }
+
+    // Status codes which do not stop a batch: OK, additional frame, no changes
+    public static boolean isError(byte[] answer) {
+        if (answer == null || answer.length == 0)
+            return true;
+        byte code = answer[0];
+        return !(code == (byte)0x00 || code == (byte)0xAF || code == (byte)0x0C);
+    }
+
+    // A step sends its frames in one or more rounds; a round can depend on the answers to the previous one
+    abstract static class Step {
+        final StepResult result;
+
+        Step(String name) {
+            this.result = new StepResult(name);
+        }
+
+        // Frames that can be sent now
+        abstract byte[][] nextFrames() throws Exception;
+
+        // True if more frames will follow, once the answers to this round are in
+        abstract boolean awaitsAnswers();
+
+        abstract void onAnswer(byte[] answer) throws Exception;
+
+        void complete() throws Exception {
+        }
+    }
+
+    private final MifareDesfire desfire;
+    private final ArrayList<Step> steps = new ArrayList<Step>();
+    private int exchanges;
+
+    DesfireBatch(MifareDesfire desfire) {
+        this.desfire = desfire;
+    }
+
+    public DesfireBatch selectApplication(byte[] applicationId) {
+        steps.add(new SelectStep(applicationId));
+        return this;
+    }
+
+    public DesfireBatch authenticate(byte keyNumber, byte[] key) {
+        steps.add(new AuthenticateStep(keyNumber, key));
+        return this;
+    }
+
+    // Up to 19 applications fit one frame: past that, the rest is fetched before the batch goes on
+    public DesfireBatch getApplications() {
+        steps.add(new ChainedCommandStep("getApplications", new byte[]{0x6a}));
+        return this;
+    }
+
+    public DesfireBatch getFileIds() {
+        steps.add(new CommandStep("getFileIds", new byte[]{0x6f}));
+        return this;
+    }
+
+    public DesfireBatch getFileSettings(byte fid) {
+        steps.add(new CommandStep("getFileSettings", new byte[]{(byte)0xf5, fid}));
+        return this;
+    }
+
+    public DesfireBatch getKeySettings() {
+        steps.add(new CommandStep("getKeySettings", new byte[]{0x45}));
+        return this;
+    }
+
+    // Reads must have an explicit length: every frame is built before the card answers
+    public DesfireBatch readFile(byte fid, int start, int count) {
+        if (count <= 0)
+            throw new IllegalArgumentException("Batched reads need an explicit length");
+        steps.add(new ReadStep(fid, start, count));
+        return this;
+    }
+
+    public DesfireBatch writeFile(byte[] data, int file, int offset) {
+        steps.add(new WriteStep(data, file, offset));
+        return this;
+    }
+
+    public DesfireBatch commit() {
+        steps.add(new CommandStep("commit", new byte[]{(byte)0xC7}) {
+            void complete() {
+                desfire.applicationChanged();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Any other native command. Its answer may take additional frames (0xAF), which are all
+     * fetched before the batch goes on: the command ends its exchange.
+     */
+    public DesfireBatch command(String name, byte[] cmd) {
+        steps.add(new ChainedCommandStep(name, cmd.clone()));
+        return this;
+    }
+
+    // Number of exchanges (round trips) used by execute()
+    public int getExchangeCount() {
+        return exchanges;
+    }
+
+    /**
+     * Runs the batch. Card errors and transport errors are reported per step, not thrown.
+     * A transport error is charged to every step with frames in the failed exchange.
+     */
+    public StepResult[] execute() {
+        ArrayList<byte[]> frames = new ArrayList<byte[]>();
+        ArrayList<Step> owners = new ArrayList<Step>();
+        int next = 0;
+        boolean failed = false;
+
+        while (!failed && next < steps.size()) {
+            frames.clear();
+            owners.clear();
+
+            // Fill the exchange, up to (and including) the first step waiting on an answer
+            while (next < steps.size()) {
+                Step step = steps.get(next);
+                try {
+                    for (byte[] frame : step.nextFrames()) {
+                        frames.add(frame);
+                        owners.add(step);
+                    }
+                } catch (Exception e) {
+                    fail(step, e);
+                    failed = true;
+                    break;
+                }
+                if (step.awaitsAnswers())
+                    break;
+                ++next;
+            }
+            if (frames.isEmpty())
+                break;
+
+            byte[][] answers;
+            try {
+                answers = send(frames.toArray(new byte[frames.size()][]));
+            } catch (IOException e) {
+                for (Step owner : owners)
+                    fail(owner, e);
+                break;
+            }
+
+            for (int i = 0; i < owners.size() && !failed; ++i) {
+                Step owner = owners.get(i);
+                owner.result.executed = true;
+                if (i >= answers.length) {
+                    fail(owner, new IOException("No answer from the card"));
+                    failed = true;
+                } else if (isError(answers[i])) {
+                    fail(owner, new IOException("Error in card response: " + ByteArray.byteArrayToHexString(answers[i])));
+                    failed = true;
+                } else {
+                    try {
+                        owner.onAnswer(answers[i]);
+                        // Last frame of a step which is done: wrap it up
+                        boolean last = i + 1 == owners.size() || owners.get(i + 1) != owner;
+                        if (last && !owner.awaitsAnswers())
+                            owner.complete();
+                    } catch (Exception e) {
+                        fail(owner, e);
+                        failed = true;
+                    }
+                }
+            }
+        }
+
+        StepResult[] results = new StepResult[steps.size()];
+        for (int i = 0; i < results.length; ++i)
+            results[i] = steps.get(i).result;
+        return results;
+    }
+
+    private byte[][] send(byte[][] frames) throws IOException {
+        // Without batch support (or within an EV1 session), each frame is its own exchange
+        exchanges += desfire.sendsFramesTogether() ? 1 : frames.length;
+        return desfire.transceiveFrames(frames);
+    }
+
+    // Sends the frames in one exchange if the communicator can, one at a time (with the same early stop) if not
+    public static byte[][] transceiveBatch(ICardCommunicator communicator, byte[][] frames) throws IOException {
+        if (communicator instanceof IBatchCardCommunicator)
+            return ((IBatchCardCommunicator)communicator).transceiveBatch(frames);
+
+        ArrayList<byte[]> answers = new ArrayList<byte[]>(frames.length);
+        for (byte[] frame : frames) {
+            byte[] answer = communicator.transceive(frame);
+            answers.add(answer);
+            if (isError(answer))
+                break;
+        }
+        return answers.toArray(new byte[answers.size()][]);
+    }
+
+    private static void fail(Step step, Exception e) {
+        step.result.executed = true;
+        step.result.error = e;
+    }
+
+    private static class CommandStep extends Step {
+        private final byte[] cmd;
+
+        CommandStep(String name, byte[] cmd) {
+            super(name);
+            this.cmd = cmd;
+        }
+
+        byte[][] nextFrames() {
+            return new byte[][]{cmd};
+        }
+
+        boolean awaitsAnswers() {
+            return false;
+        }
+
+        void onAnswer(byte[] answer) throws IOException {
+            // The next frame of the batch has gone out already, and ended the answer
+            if (answer[0] == (byte)0xAF)
+                throw new IOException("Answer longer than one frame");
+            result.data = ByteArray.appendCut(null, answer);
+        }
+    }
+
+    // A command whose answer may come in several frames: each additional frame is asked for in turn
+    private static class ChainedCommandStep extends Step {
+        private final byte[] cmd;
+        private final ByteRope data = new ByteRope();
+        private boolean sent;
+        private boolean done;
+
+        ChainedCommandStep(String name, byte[] cmd) {
+            super(name);
+            this.cmd = cmd;
+        }
+
+        byte[][] nextFrames() {
+            if (done)
+                return new byte[0][];
+            byte[] frame = sent ? new byte[]{(byte)0xAF} : cmd;
+            sent = true;
+            return new byte[][]{frame};
+        }
+
+        boolean awaitsAnswers() {
+            return !done;
+        }
+
+        void onAnswer(byte[] answer) {
+            data.append(answer, 1, answer.length - 1);
+            done = answer[0] != (byte)0xAF;
+        }
+
+        void complete() {
+            result.data = data.toArray();
+        }
+    }
+
+    private class SelectStep extends CommandStep {
+        private final byte[] applicationId;
+
+        SelectStep(byte[] applicationId) {
+            super("selectApplication", ByteArray.from((byte)0x5a).append(applicationId).toArray());
+            this.applicationId = applicationId.clone();
+        }
+
+        byte[][] nextFrames() {
+            // Until the card answers, we can not tell what is selected
+            desfire.applicationSelected(null);
+            return super.nextFrames();
+        }
+
+        void complete() {
+            desfire.applicationSelected(applicationId);
+        }
+    }
+
+    private class AuthenticateStep extends Step {
+        private final byte keyNumber;
+        private final byte[] key;
+        private int round;
+        private Challenge challenge;
+        private byte[] cardResponse;
+
+        AuthenticateStep(byte keyNumber, byte[] key) {
+            super("authenticate");
+            this.keyNumber = keyNumber;
+            this.key = key;
+        }
+
+        byte[][] nextFrames() {
+            ++round;
+            if (round == 1)
+                return new byte[][]{new byte[]{0x0A, keyNumber}};
+            return new byte[][]{challenge.getChallenge()};
+        }
+
+        boolean awaitsAnswers() {
+            // After the card challenge, we still have to send our own
+            return round == 1;
+        }
+
+        void onAnswer(byte[] answer) throws GeneralSecurityException {
+            if (round == 1)
+                challenge = desfire.cardChallengeToCouplerChallenge(answer, key);
+            else
+                cardResponse = answer;
+        }
+
+        void complete() throws Exception {
+            if (!desfire.verifyCardResponse(cardResponse, challenge.getChallengeResponse(), key))
+                throw new IOException("Authentication failed");
+            result.data = new byte[0];
+        }
+    }
+
+    private class ReadStep extends Step {
+        private final byte fid;
+        private final int start;
+        private final int count;
+        private final ByteRope data = new ByteRope();
+
+        ReadStep(byte fid, int start, int count) {
+            super("readFile");
+            this.fid = fid;
+            this.start = start;
+            this.count = count;
+        }
+
+        byte[][] nextFrames() {
+            int frameSize = desfire.getMaxDataSize();
+            byte[][] frames = new byte[(count + frameSize - 1) / frameSize][];
+            ByteArray array = desfire.buffers.acquire();
+            for (int i = 0; i < frames.length; ++i) {
+                int offset = i * frameSize;
+                frames[i] = desfire.readDataCommand(array, fid, start + offset, Math.min(frameSize, count - offset));
+            }
+            desfire.buffers.release(array);
+            return frames;
+        }
+
+        boolean awaitsAnswers() {
+            return false;
+        }
+
+        void onAnswer(byte[] answer) {
+            data.append(answer, 1, answer.length - 1);
+        }
+
+        void complete() {
+            result.data = data.toArray();
+        }
+    }
+
+    private class WriteStep extends Step {
+        private final byte[] data;
+        private final int file;
+        private final int offset;
+
+        WriteStep(byte[] data, int file, int offset) {
+            super("writeFile");
+            this.data = data;
+            this.file = file;
+            this.offset = offset;
+        }
+
+        byte[][] nextFrames() {
+            int frameSize = desfire.getMaxWriteDataSize();
+            byte[][] frames = new byte[(data.length + frameSize - 1) / frameSize][];
+            ByteArray array = desfire.buffers.acquire();
+            for (int i = 0; i < frames.length; ++i) {
+                int at = i * frameSize;
+                frames[i] = desfire.writeDataCommand(array, (byte)0x3D, file, offset + at, data, at,
+                        Math.min(frameSize, data.length - at));
+            }
+            desfire.buffers.release(array);
+            return frames;
+        }
+
+        boolean awaitsAnswers() {
+            return false;
+        }
+
+        void onAnswer(byte[] answer) {
+        }
+
+        void complete() {
+            result.data = new byte[0];
+            desfire.applicationChanged();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.dematte.nfc.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The CRCs DESFire puts on secured data: CRC16 (ISO 14443-3 CRC_A) for legacy authentication,
+ * CRC32 (IEEE 802.3, without the final complement) for EV1. Both are reflected, and appended
+ * least significant byte first.
+ *
+ * Incremental, table driven, slicing by 8: eight bytes per step, out of eight tables of 256
+ * entries each, shared by all instances. Ranges of arrays, ByteArrays and ByteBuffers are
+ * read where they are. Not thread-safe.
+ */
+public final class DesfireCrc {
+
+    public enum Algorithm {
+        CRC16(0x8408, 0x6363, 2),
+        CRC32(0xEDB88320, 0xFFFFFFFF, 4);
+
+        private final int initial;
+        private final int length;
+        // Table k, entry n at [k * 256 + n]: n followed by k zero bytes
+        private final int[] table = new int[8 * 256];
+
+        Algorithm(int polynomial, int initial, int length) {
+            this.initial = initial;
+            this.length = length;
+            for (int n = 0; n < 256; ++n) {
+                int crc = n;
+                for (int bit = 0; bit < 8; ++bit)
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ polynomial : crc >>> 1;
+                table[n] = crc;
+            }
+            for (int k = 1; k < 8; ++k) {
+                for (int n = 0; n < 256; ++n) {
+                    int previous = table[(k - 1) * 256 + n];
+                    table[k * 256 + n] = (previous >>> 8) ^ table[previous & 0xff];
+                }
+            }
+        }
+
+        // Bytes the CRC takes once appended
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private final Algorithm algorithm;
+    private final int[] table;
+    private int crc;
+
+    public DesfireCrc(Algorithm algorithm) {
+        this.algorithm = algorithm;
+        this.table = algorithm.table;
+        this.crc = algorithm.initial;
+    }
+
+    public static DesfireCrc crc16() {
+        return new DesfireCrc(Algorithm.CRC16);
+    }
+
+    public static DesfireCrc crc32() {
+        return new DesfireCrc(Algorithm.CRC32);
+    }
+
+    // One-shot CRC32 of a range, as EV1 appends it
+    public static int crc32(byte[] data, int offset, int length) {
+        return crc32().update(data, offset, length).getValue();
+    }
+
+    public static int crc16(byte[] data, int offset, int length) {
+        return crc16().update(data, offset, length).getValue();
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public DesfireCrc reset() {
+        crc = algorithm.initial;
+        return this;
+    }
+
+    // Same algorithm and state, for trying out what comes next
+    public DesfireCrc copy() {
+        DesfireCrc ret = new DesfireCrc(algorithm);
+        ret.crc = crc;
+        return ret;
+    }
+
+    // The CRC so far; updating goes on from here
+    public int getValue() {
+        return algorithm == Algorithm.CRC16 ? crc & 0xffff : crc;
+    }
+
+    public DesfireCrc update(byte b) {
+        crc = (crc >>> 8) ^ table[(crc ^ b) & 0xff];
+        return this;
+    }
+
+    public DesfireCrc update(byte[] data) {
+        return update(data, 0, data.length);
+    }
+
+    public DesfireCrc update(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || length > data.length - offset)
+            throw new IndexOutOfBoundsException();
+        int[] t = table;
+        int c = crc;
+        int end = offset + length;
+        for (; offset <= end - 8; offset += 8) {
+            c ^= (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+                    | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+            c = t[7 * 256 + (c & 0xff)] ^ t[6 * 256 + ((c >>> 8) & 0xff)]
+                    ^ t[5 * 256 + ((c >>> 16) & 0xff)] ^ t[4 * 256 + (c >>> 24)]
+                    ^ t[3 * 256 + (data[offset + 4] & 0xff)] ^ t[2 * 256 + (data[offset + 5] & 0xff)]
+                    ^ t[256 + (data[offset + 6] & 0xff)] ^ t[data[offset + 7] & 0xff];
+        }
+        for (; offset < end; ++offset)
+            c = (c >>> 8) ^ t[(c ^ data[offset]) & 0xff];
+        crc = c;
+        return this;
+    }
+
+    public DesfireCrc update(ByteArray data, int from, int length) {
+        if (from < 0 || length > data.length() - from)
+            throw new IndexOutOfBoundsException();
+        return update(data.rawData(), from, length);
+    }
+
+    // The buffer's remaining bytes; its position moves to the limit, as with java.util.zip.CRC32
+    public DesfireCrc update(ByteBuffer buffer) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + position, limit - position);
+            buffer.position(limit);
+            return this;
+        }
+
+        int[] t = table;
+        int c = crc;
+        boolean swap = buffer.order() != ByteOrder.LITTLE_ENDIAN;
+        for (; position <= limit - 8; position += 8) {
+            long word = buffer.getLong(position);
+            if (swap)
+                word = Long.reverseBytes(word);
+            c ^= (int)word;
+            int high = (int)(word >>> 32);
+            c = t[7 * 256 + (c & 0xff)] ^ t[6 * 256 + ((c >>> 8) & 0xff)]
+                    ^ t[5 * 256 + ((c >>> 16) & 0xff)] ^ t[4 * 256 + (c >>> 24)]
+                    ^ t[3 * 256 + (high & 0xff)] ^ t[2 * 256 + ((high >>> 8) & 0xff)]
+                    ^ t[256 + ((high >>> 16) & 0xff)] ^ t[high >>> 24];
+        }
+        for (; position < limit; ++position)
+            c = (c >>> 8) ^ t[(c ^ buffer.get(position)) & 0xff];
+        crc = c;
+        buffer.position(limit);
+        return this;
+    }
+
+    // Appends the CRC so far, least significant byte first
+    public ByteArray appendTo(ByteArray array) {
+        return array.append(getValue(), algorithm.length);
+    }
+
+    // True if the CRC so far is the one stored at data[offset], least significant byte first
+    public boolean matches(byte[] data, int offset) {
+        int stored = 0;
+        for (int i = algorithm.length - 1; i >= 0; --i)
+            stored = stored << 8 | (data[offset + i] & 0xff);
+        return stored == getValue();
+    }
+}
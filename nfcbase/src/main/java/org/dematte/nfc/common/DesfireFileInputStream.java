@@ -0,0 +1,284 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Streams a data file from the card, a frame at a time, instead of reading it all in memory.
+ *
+ * With an Executor, the next frame is fetched while the caller consumes the current one,
+ * so parsing overlaps with the radio. Frames are read as the MifareDesfire read mode says
+ * (one ReadData per frame, or a single ReadData and 0xAF frames).
+ *
+ * The card belongs to the stream until it is closed: do not send other commands meanwhile.
+ */
+public class DesfireFileInputStream extends InputStream implements ReadableByteChannel {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final MifareDesfire desfire;
+    private final byte fid;
+    // Where the stream ends, 0 for the end of the file
+    private final int end;
+    private final Executor executor;
+    // Owned by whoever is fetching: the caller or (at most one) prefetch task
+    private final ByteArray command = new ByteArray(8);
+
+    private byte[] current = EMPTY;
+    private int index;
+    // File offset of current[0]
+    private int currentOffset;
+    private boolean currentIsLast;
+
+    // Next frame: fetched, or being fetched, or (without executor) fetched on demand
+    private CardFuture<Frame> next;
+    private int nextOffset;
+    private boolean continuation;
+    private boolean closed;
+
+    private static class Frame {
+        final byte[] data;
+        final boolean last;
+
+        Frame(byte[] data, boolean last) {
+            this.data = data;
+            this.last = last;
+        }
+    }
+
+    /**
+     * A stream over count bytes of file fid from start; count 0 streams up to the end of the file.
+     * A null executor reads each frame when it is needed.
+     */
+    public DesfireFileInputStream(MifareDesfire desfire, byte fid, int start, int count, Executor executor) {
+        if (start < 0 || count < 0)
+            throw new IllegalArgumentException("Negative offset or length");
+        this.desfire = desfire;
+        this.fid = fid;
+        this.end = count == 0 ? 0 : start + count;
+        this.executor = executor;
+        this.currentOffset = start;
+        this.nextOffset = start;
+        prefetch();
+    }
+
+    // File offset of the next byte read
+    public int position() {
+        return currentOffset + index;
+    }
+
+    /**
+     * Moves to a file offset. Within the current frame this is free; otherwise the prefetched
+     * frame is dropped, and reading starts again at the new offset.
+     */
+    public void seek(int offset) throws IOException {
+        ensureOpen();
+        if (offset < 0 || (end > 0 && offset > end))
+            throw new IllegalArgumentException("Offset outside the stream: " + offset);
+
+        if (offset >= currentOffset && offset <= currentOffset + current.length) {
+            index = offset - currentOffset;
+            return;
+        }
+        drain();
+        current = EMPTY;
+        index = 0;
+        currentOffset = offset;
+        currentIsLast = false;
+        nextOffset = offset;
+        continuation = false;
+        prefetch();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill())
+            return -1;
+        return current[index++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+        int n = Math.min(len, current.length - index);
+        System.arraycopy(current, index, b, off, n);
+        index += n;
+        return n;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+        if (!dst.hasRemaining())
+            return 0;
+        if (!fill())
+            return -1;
+        int n = Math.min(dst.remaining(), current.length - index);
+        dst.put(current, index, n);
+        index += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0)
+            return 0;
+        int from = position();
+        long to = from + n;
+        if (end > 0)
+            to = Math.min(to, end);
+        seek((int)Math.min(to, Integer.MAX_VALUE));
+        return position() - from;
+    }
+
+    // Bytes that can be read without waiting for the card
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        int ret = current.length - index;
+        if (next != null && next.isDone()) {
+            try {
+                ret += next.get().data.length;
+            } catch (Exception e) {
+                // reported by the next read
+            }
+        }
+        return ret;
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    // Waits for a prefetch in progress, so the card is free again; the card itself stays connected
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        drain();
+        current = EMPTY;
+    }
+
+    // Makes sure the current frame has something left; false at the end of the stream
+    private boolean fill() throws IOException {
+        ensureOpen();
+        while (index == current.length) {
+            if (currentIsLast || next == null)
+                return false;
+
+            Frame frame = take();
+            currentOffset += current.length;
+            current = frame.data;
+            index = 0;
+            currentIsLast = frame.last;
+            prefetch();
+        }
+        return true;
+    }
+
+    private Frame take() throws IOException {
+        CardFuture<Frame> frame = next;
+        next = null;
+        try {
+            if (executor == null)
+                return fetch();
+            return frame.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading from the card");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause().getMessage());
+        }
+    }
+
+    // Starts fetching the frame after the current one, if there is one
+    private void prefetch() {
+        if (currentIsLast || (end > 0 && nextOffset >= end)) {
+            currentIsLast = true;
+            return;
+        }
+        final CardFuture<Frame> frame = new CardFuture<Frame>();
+        next = frame;
+        if (executor == null)
+            return;
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    frame.complete(fetch());
+                } catch (Exception e) {
+                    frame.fail(e);
+                }
+            }
+        });
+    }
+
+    // Reads the frame at nextOffset; runs on the caller thread or in the prefetch task
+    private Frame fetch() throws IOException {
+        MifareDesfire.MifareResult result;
+        int requested;
+        if (continuation) {
+            result = desfire.sendBytes(new byte[]{(byte)0xAF});
+            requested = 0;
+        } else {
+            if (desfire.getReadMode() == MifareDesfire.ReadMode.CHAINED)
+                requested = end > 0 ? end - nextOffset : 0;
+            else
+                requested = end > 0 ? Math.min(desfire.getMaxDataSize(), end - nextOffset) : desfire.getMaxDataSize();
+            result = desfire.sendBytes(desfire.readDataCommand(command, fid, nextOffset, requested));
+            if (result.resultType == MifareDesfire.MifareResultType.EOF) {
+                // Less than requested left: read up to the end of the file
+                requested = 0;
+                result = desfire.sendBytes(desfire.readDataCommand(command, fid, nextOffset, 0));
+            }
+        }
+
+        byte[] data = result.data;
+        boolean more = result.resultType == MifareDesfire.MifareResultType.MORE_DATA;
+        continuation = more;
+        nextOffset += data.length;
+
+        boolean last;
+        if (more)
+            last = false;
+        else if (requested == 0 || result.resultType == MifareDesfire.MifareResultType.EOF)
+            last = true; // read to the end of the file
+        else if (desfire.getReadMode() == MifareDesfire.ReadMode.CHAINED)
+            last = true; // the whole range came in
+        else
+            last = data.length < requested || (end > 0 && nextOffset >= end);
+        return new Frame(data, last);
+    }
+
+    // Waits for the frame being fetched, and forgets it
+    private void drain() {
+        CardFuture<Frame> frame = next;
+        next = null;
+        if (frame == null || executor == null)
+            return;
+        try {
+            frame.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // nobody wants this frame anymore
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+    }
+}
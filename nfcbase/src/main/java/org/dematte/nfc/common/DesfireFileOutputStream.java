@@ -0,0 +1,231 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Writes a data file through a frame sized buffer: small writes are coalesced into full
+ * WriteData frames, and close() sends what is left and commits the transaction.
+ *
+ * With an Executor, full frames are sent in the background while the caller keeps writing;
+ * frames filled in the meantime go out together, in a single exchange if the communicator
+ * takes batches. Card errors are reported by the next write, flush or close.
+ *
+ * The card belongs to the stream until it is closed: do not send other commands meanwhile.
+ */
+public class DesfireFileOutputStream extends OutputStream implements WritableByteChannel {
+
+    private final MifareDesfire desfire;
+    private final int file;
+    private final Executor executor;
+    private final boolean commitOnClose;
+    private final ByteArray command = new ByteArray(64);
+
+    private final byte[] frame;
+    private int count;
+    // File offset of frame[0]
+    private int offset;
+
+    // WriteData commands waiting to be sent
+    private final ArrayList<byte[]> ready = new ArrayList<byte[]>();
+    private CardFuture<Void> inFlight;
+    private boolean closed;
+
+    private long bytesWritten;
+    // Updated by the background send too
+    private volatile int framesSent;
+    private volatile int exchanges;
+
+    /**
+     * A stream writing file "file" from offset. A null executor sends each frame as soon as it
+     * is full, from the writing thread.
+     */
+    public DesfireFileOutputStream(MifareDesfire desfire, int file, int offset, Executor executor,
+                                   boolean commitOnClose) {
+        if (offset < 0)
+            throw new IllegalArgumentException("Negative offset");
+        this.desfire = desfire;
+        this.file = file;
+        this.offset = offset;
+        this.executor = executor;
+        this.commitOnClose = commitOnClose;
+        this.frame = new byte[desfire.getMaxWriteDataSize()];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        frame[count++] = (byte)b;
+        ++bytesWritten;
+        if (count == frame.length)
+            frameFull();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, frame.length - count);
+            System.arraycopy(b, off, frame, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            bytesWritten += n;
+            if (count == frame.length)
+                frameFull();
+        }
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+        int ret = src.remaining();
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), frame.length - count);
+            src.get(frame, count, n);
+            count += n;
+            bytesWritten += n;
+            if (count == frame.length)
+                frameFull();
+        }
+        return ret;
+    }
+
+    /**
+     * Sends everything written so far (including a partial frame) and waits for the card.
+     * Nothing is committed.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        queueFrame();
+        await();
+        if (!ready.isEmpty())
+            send(takeReady());
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    // Sends what is left, then commits (if asked to); the card itself stays connected
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+        }
+        if (commitOnClose)
+            desfire.commit();
+        else
+            desfire.applicationChanged();
+    }
+
+    // Bytes accepted by the stream, sent or not
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // WriteData frames the card has acknowledged
+    public int getFramesSent() {
+        return framesSent;
+    }
+
+    public int getExchanges() {
+        return exchanges;
+    }
+
+    private void frameFull() throws IOException {
+        queueFrame();
+        if (executor == null) {
+            send(takeReady());
+            return;
+        }
+        // One send at a time: frames filled meanwhile wait for the next one
+        if (inFlight != null && !inFlight.isDone())
+            return;
+        await();
+        sendInBackground(takeReady());
+    }
+
+    private void queueFrame() {
+        if (count == 0)
+            return;
+        ready.add(desfire.writeDataCommand(command, (byte)0x3D, file, offset, frame, 0, count));
+        offset += count;
+        count = 0;
+    }
+
+    private byte[][] takeReady() {
+        byte[][] frames = ready.toArray(new byte[ready.size()][]);
+        ready.clear();
+        return frames;
+    }
+
+    private void sendInBackground(final byte[][] frames) {
+        final CardFuture<Void> sent = new CardFuture<Void>();
+        inFlight = sent;
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    send(frames);
+                    sent.complete(null);
+                } catch (Exception e) {
+                    sent.fail(e);
+                }
+            }
+        });
+    }
+
+    // Runs on the writing thread, or in the (single) background send
+    private void send(byte[][] frames) throws IOException {
+        if (frames.length == 0)
+            return;
+        boolean batch = desfire.sendsFramesTogether();
+        byte[][] answers = desfire.transceiveFrames(frames);
+        exchanges += batch ? 1 : answers.length;
+        for (byte[] answer : answers) {
+            if (answer == null || answer.length == 0)
+                throw new IOException("Transceive returned an empty response");
+            if (answer[0] != 0)
+                throw new IOException("Transceive error: " + ByteArray.byteArrayToHexString(answer));
+            ++framesSent;
+        }
+        if (answers.length < frames.length)
+            throw new IOException("No answer from the card");
+    }
+
+    // Waits for the background send, and reports its failure
+    private void await() throws IOException {
+        CardFuture<Void> sent = inFlight;
+        inFlight = null;
+        if (sent == null)
+            return;
+        try {
+            sent.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing to the card");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause().getMessage());
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+    }
+}
@@ -0,0 +1,236 @@
+package org.dematte.nfc.common;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * What an EV1 authentication (AES 0xAA, or ISO 0x1A) leaves behind: the session key, and the
+ * CMAC chain over the commands and answers that follow.
+ *
+ * Both sides MAC every command and every answer, carrying the last CMAC over as the next IV;
+ * answers end with the first 8 bytes of their CMAC. Enciphered data is chained on the same IV.
+ * The CMAC subkeys and ciphers are set up once, when the session starts.
+ * Not thread-safe: commands to a card go one at a time anyway.
+ */
+public class DesfireSession {
+
+    // Bytes of CMAC appended to answers (and to MACed commands)
+    public static final int MAC_LENGTH = 8;
+
+    public enum Mode {
+        // ISO authentication (0x1A), with a DES, 2K3DES or 3K3DES key
+        ISO((byte)0x1A),
+        // AES authentication (0xAA), with an AES-128 key
+        AES((byte)0xAA);
+
+        final byte command;
+
+        Mode(byte command) {
+            this.command = command;
+        }
+
+        public byte getCommand() {
+            return command;
+        }
+    }
+
+    private final Mode mode;
+    private final byte keyNumber;
+    private final byte[] sessionKey;
+    private final Cmac cmac;
+    // For enciphered data; made on first use
+    private Cipher encipher;
+    private Cipher decipher;
+    private byte[] iv;
+    // Answer data and status, as the card MACs them
+    private final ByteArray macInput = new ByteArray(64);
+
+    DesfireSession(Mode mode, byte keyNumber, byte[] sessionKey) throws GeneralSecurityException {
+        this.mode = mode;
+        this.keyNumber = keyNumber;
+        this.sessionKey = sessionKey;
+        this.cmac = mode == Mode.AES ? Cmac.aes(sessionKey) : Cmac.tripleDes(sessionKey);
+        this.iv = new byte[cmac.getBlockSize()];
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public byte getKeyNumber() {
+        return keyNumber;
+    }
+
+    byte[] getSessionKey() {
+        return sessionKey;
+    }
+
+    int getBlockSize() {
+        return cmac.getBlockSize();
+    }
+
+    byte[] ivCopy() {
+        return iv.clone();
+    }
+
+    // Enciphered data moves the chain on to its last block
+    void chainOn(byte[] data, int offset) {
+        System.arraycopy(data, offset, iv, 0, iv.length);
+    }
+
+    Cipher encipher() throws GeneralSecurityException {
+        if (encipher == null)
+            encipher = cipher(mode, sessionKey, Cipher.ENCRYPT_MODE);
+        return encipher;
+    }
+
+    Cipher decipher() throws GeneralSecurityException {
+        if (decipher == null)
+            decipher = cipher(mode, sessionKey, Cipher.DECRYPT_MODE);
+        return decipher;
+    }
+
+    // Enciphers whole blocks in place, chained on the session IV
+    void encipher(byte[] data, int offset, int length) throws GeneralSecurityException {
+        cbc(encipher(), true, iv, data, offset, length);
+    }
+
+    void decipher(byte[] data, int offset, int length) throws GeneralSecurityException {
+        cbc(decipher(), false, iv, data, offset, length);
+    }
+
+    // Plain data length, rounded up to whole blocks once its CRC is appended
+    int encipheredLength(int length) {
+        int blockSize = getBlockSize();
+        return (length + 4 + blockSize - 1) / blockSize * blockSize;
+    }
+
+    // The whole command goes in the chain; the CMAC is returned, for commands which carry it
+    byte[] commandSent(byte[] cmd) throws IOException {
+        try {
+            iv = cmac.mac(iv, cmd, 0, cmd.length);
+            return iv.clone();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot MAC the command: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks the CMAC at the end of a successful answer (status, data, CMAC), and returns the
+     * answer without it. Error answers carry no CMAC, and are returned as they are.
+     */
+    byte[] answerReceived(byte[] answer) throws IOException {
+        if (answer.length == 0 || (answer[0] != (byte)0x00 && answer[0] != (byte)0x0C))
+            return answer;
+        if (answer.length < 1 + MAC_LENGTH) {
+            // "No changes" may come without a MAC; anything else must have one
+            if (answer[0] == (byte)0x0C)
+                return answer;
+            throw new IOException("Answer too short for its MAC: " + ByteArray.byteArrayToHexString(answer));
+        }
+
+        int dataLength = answer.length - 1 - MAC_LENGTH;
+        byte[] saved = iv;
+        byte[] expected = answerMac(answer[0], answer, 1, dataLength);
+        byte[] received = Arrays.copyOfRange(answer, 1 + dataLength, answer.length);
+        if (!MessageDigest.isEqual(expected, received)) {
+            iv = saved;
+            throw new IOException("Wrong MAC in card answer");
+        }
+        return Arrays.copyOf(answer, 1 + dataLength);
+    }
+
+    // The MAC (MAC_LENGTH bytes) of an answer: its data, then its status. Moves the chain on
+    byte[] answerMac(byte status, byte[] data, int offset, int length) throws IOException {
+        macInput.clear().append(data, offset, length).append(status);
+        try {
+            iv = cmac.mac(iv, macInput.rawData(), 0, macInput.length());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot MAC the answer: " + e.getMessage());
+        }
+        return Arrays.copyOf(iv, MAC_LENGTH);
+    }
+
+    // Commands which end a session on the card: a new authentication, or selecting an application
+    static boolean endsSession(byte command) {
+        return command == (byte)0x5A || command == (byte)0x0A || command == (byte)0x1A || command == (byte)0xAA;
+    }
+
+    /**
+     * Session key from the two random numbers, as the card derives it. 3DES keys whose
+     * halves are the same (single DES) give a single DES session key.
+     */
+    static byte[] sessionKey(Mode mode, byte[] key, byte[] rndA, byte[] rndB) {
+        ByteArray ret = new ByteArray(24);
+        ret.append(rndA, 0, 4).append(rndB, 0, 4);
+        if (mode == Mode.AES) {
+            ret.append(rndA, 12, 4).append(rndB, 12, 4);
+        } else if (key.length == 24) {
+            ret.append(rndA, 6, 4).append(rndB, 6, 4).append(rndA, 12, 4).append(rndB, 12, 4);
+        } else if (key.length == 16 && !isSingleDes(key)) {
+            ret.append(rndA, 4, 4).append(rndB, 4, 4);
+        }
+        return ret.toArray();
+    }
+
+    private static boolean isSingleDes(byte[] key) {
+        // Parity (key version) bits do not count
+        for (int i = 0; i < 8; ++i) {
+            if ((key[i] & 0xfe) != (key[i + 8] & 0xfe))
+                return false;
+        }
+        return true;
+    }
+
+    // Random numbers are a cipher block long (two DES blocks with 3K3DES keys)
+    static int randomLength(Mode mode, byte[] key) {
+        return mode == Mode.AES || key.length == 24 ? 16 : 8;
+    }
+
+    static Cipher cipher(Mode mode, byte[] key, int cipherMode) throws GeneralSecurityException {
+        if (mode == Mode.AES) {
+            if (key.length != 16)
+                throw new IllegalArgumentException("AES keys are 16 bytes long");
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(cipherMode, new SecretKeySpec(key, "AES"));
+            return cipher;
+        }
+        Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
+        cipher.init(cipherMode, new SecretKeySpec(MifareDesfire.tripleDesKey(key), "DESede"));
+        return cipher;
+    }
+
+    /**
+     * CBC over an ECB cipher, in place, starting from iv; iv ends up holding the last
+     * ciphertext block, as the EV1 authentication chains it.
+     */
+    static void cbc(Cipher cipher, boolean encrypt, byte[] iv, byte[] data) throws GeneralSecurityException {
+        cbc(cipher, encrypt, iv, data, 0, data.length);
+    }
+
+    static void cbc(Cipher cipher, boolean encrypt, byte[] iv, byte[] data, int offset, int length)
+            throws GeneralSecurityException {
+        int blockSize = iv.length;
+        if (length % blockSize != 0)
+            throw new IllegalArgumentException("Not a whole number of blocks: " + length);
+        byte[] block = new byte[blockSize];
+        for (int at = offset; at < offset + length; at += blockSize) {
+            if (encrypt) {
+                for (int i = 0; i < blockSize; ++i)
+                    data[at + i] ^= iv[i];
+                cipher.doFinal(data, at, blockSize, data, at);
+                System.arraycopy(data, at, iv, 0, blockSize);
+            } else {
+                System.arraycopy(data, at, block, 0, blockSize);
+                cipher.doFinal(data, at, blockSize, data, at);
+                for (int i = 0; i < blockSize; ++i)
+                    data[at + i] ^= iv[i];
+                System.arraycopy(block, 0, iv, 0, blockSize);
+            }
+        }
+    }
+}
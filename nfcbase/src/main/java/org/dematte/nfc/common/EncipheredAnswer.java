@@ -0,0 +1,147 @@
+package org.dematte.nfc.common;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * An enciphered EV1 answer: data, the CRC32 of data and status, and padding (zeros, possibly
+ * after a 0x80), CBC enciphered with the session key.
+ *
+ * Frames are handed in as they arrive, and deciphered (and, when the length is known,
+ * run through the CRC) on a serial lane, while the next frames are still on the air.
+ * finish() waits for the lane and checks CRC and padding.
+ */
+class EncipheredAnswer {
+
+    private final Executor lane;
+    private final Cipher cipher;
+    private final int blockSize;
+    // Plain data length; -1 if the answer runs up to the end of the file
+    private final int length;
+
+    // Owned by the lane until finish()
+    private final ByteArray plain;
+    private final byte[] iv;
+    private final DesfireCrc crc = DesfireCrc.crc32();
+    private int deciphered;
+    private int checked;
+    private volatile Exception error;
+
+    // Owned by the thread talking to the card
+    private final byte[] lastBlock;
+    private int received;
+
+    EncipheredAnswer(DesfireSession session, int length, ByteArray buffer, Executor lane) throws IOException {
+        try {
+            this.cipher = session.decipher();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot decipher: " + e.getMessage());
+        }
+        this.lane = lane;
+        this.blockSize = session.getBlockSize();
+        this.length = length;
+        this.plain = buffer.clear();
+        if (length >= 0)
+            buffer.ensureCapacity(session.encipheredLength(length));
+        this.iv = session.ivCopy();
+        this.lastBlock = new byte[blockSize];
+    }
+
+    // Frames come in order; the bytes are copied before feed() returns
+    void feed(byte[] frame, int offset, int count) {
+        if (count >= blockSize) {
+            System.arraycopy(frame, offset + count - blockSize, lastBlock, 0, blockSize);
+        } else {
+            System.arraycopy(lastBlock, count, lastBlock, 0, blockSize - count);
+            System.arraycopy(frame, offset, lastBlock, blockSize - count, count);
+        }
+        received += count;
+
+        final byte[] chunk = Arrays.copyOfRange(frame, offset, offset + count);
+        lane.execute(new Runnable() {
+            public void run() {
+                if (error != null)
+                    return;
+                try {
+                    decipher(chunk);
+                } catch (Exception e) {
+                    error = e;
+                }
+            }
+        });
+    }
+
+    // The last enciphered block, where the session IV moves on to
+    byte[] lastBlock() throws IOException {
+        if (received == 0 || received % blockSize != 0)
+            throw new IOException("Enciphered answer is not made of whole blocks: " + received + " bytes");
+        return lastBlock;
+    }
+
+    // Waits for the lane, and returns the data once CRC and padding are right
+    byte[] finish(byte status) throws IOException {
+        final CardFuture<Void> done = new CardFuture<Void>();
+        lane.execute(new Runnable() {
+            public void run() {
+                done.complete(null);
+            }
+        });
+        MifareDesfire.await(done, "deciphering");
+        if (error != null)
+            throw new IOException("Cannot decipher: " + error.getMessage());
+
+        lastBlock();
+        byte[] raw = plain.rawData();
+        if (length >= 0) {
+            if (received != (length + 4 + blockSize - 1) / blockSize * blockSize)
+                throw new IOException("Enciphered answer of unexpected length: " + received + " bytes");
+            crc.update(raw, checked, length - checked);
+            if (!crc.update(status).matches(raw, length))
+                throw new IOException("Wrong CRC in enciphered answer");
+            if (!paddingFrom(length + 4))
+                throw new IOException("Wrong padding in enciphered answer");
+            return Arrays.copyOf(raw, length);
+        }
+
+        // Up to the end of the file: the CRC ends within the last block, the padding after it
+        int found = -1;
+        int candidate = Math.max(0, received - 3 - blockSize);
+        crc.update(raw, 0, candidate);
+        for (; candidate <= received - 4; ++candidate) {
+            if (paddingFrom(candidate + 4) && crc.copy().update(status).matches(raw, candidate))
+                found = candidate;
+            crc.update(raw[candidate]);
+        }
+        if (found < 0)
+            throw new IOException("Wrong CRC in enciphered answer");
+        return Arrays.copyOf(raw, found);
+    }
+
+    private void decipher(byte[] chunk) throws GeneralSecurityException {
+        plain.append(chunk);
+        int whole = plain.length() - plain.length() % blockSize;
+        if (whole > deciphered) {
+            DesfireSession.cbc(cipher, false, iv, plain.rawData(), deciphered, whole - deciphered);
+            deciphered = whole;
+        }
+        // The CRC follows the data as it comes
+        if (length >= 0) {
+            int upTo = Math.min(deciphered, length);
+            if (upTo > checked) {
+                crc.update(plain.rawData(), checked, upTo - checked);
+                checked = upTo;
+            }
+        }
+    }
+
+    private boolean paddingFrom(int from) {
+        byte[] raw = plain.rawData();
+        for (int i = from; i < received; ++i)
+            if (raw[i] != 0 && !(i == from && raw[i] == (byte)0x80))
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,138 @@
+package org.dematte.nfc.common;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a blocking ICardCommunicator on an Executor, as an IAsyncCardCommunicator.
+ *
+ * Calls for this card are queued, and run one at a time and in order; each call is a separate
+ * task, so many cards can share a small pool without one of them hogging it.
+ * Any Executor works: a bounded pool (see newBoundedExecutor), or one thread per task where
+ * threads are cheap.
+ */
+public class ExecutorCardCommunicator implements IAsyncCardCommunicator {
+
+    private final ICardCommunicator communicator;
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<Call<?>> queue = new ConcurrentLinkedQueue<Call<?>>();
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final Runnable runNext = new Runnable() {
+        public void run() {
+            Call<?> call = queue.poll();
+            if (call != null)
+                call.run();
+            running.set(false);
+            schedule();
+        }
+    };
+
+    public ExecutorCardCommunicator(ICardCommunicator communicator, Executor executor) {
+        this.communicator = communicator;
+        this.executor = executor;
+    }
+
+    /**
+     * A pool of "threads" daemon threads, with room for "queueSize" waiting calls.
+     * When the queue is full, further calls fail with a RejectedExecutionException.
+     */
+    public static ExecutorService newBoundedExecutor(int threads, int queueSize) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "card-io-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    public ICardCommunicator getCommunicator() {
+        return communicator;
+    }
+
+    public CardFuture<byte[]> transceive(final byte[] data) {
+        return submit(new Call<byte[]>() {
+            byte[] call() throws Exception {
+                return communicator.transceive(data);
+            }
+        });
+    }
+
+    // Runs the commands as a single batch if the communicator supports it, one at a time if not
+    public CardFuture<byte[][]> transceiveBatch(final byte[][] commands) {
+        return submit(new Call<byte[][]>() {
+            byte[][] call() throws Exception {
+                return DesfireBatch.transceiveBatch(communicator, commands);
+            }
+        });
+    }
+
+    public CardFuture<Void> connect() {
+        return submit(new Call<Void>() {
+            Void call() throws Exception {
+                communicator.connect();
+                return null;
+            }
+        });
+    }
+
+    public CardFuture<Void> close() {
+        return submit(new Call<Void>() {
+            Void call() throws Exception {
+                communicator.close();
+                return null;
+            }
+        });
+    }
+
+    private <T> CardFuture<T> submit(Call<T> call) {
+        queue.add(call);
+        schedule();
+        return call.future;
+    }
+
+    private void schedule() {
+        if (queue.isEmpty() || !running.compareAndSet(false, true))
+            return;
+        try {
+            executor.execute(runNext);
+        } catch (RejectedExecutionException e) {
+            // Nobody will run the queued calls: fail them
+            Call<?> call;
+            while ((call = queue.poll()) != null)
+                call.future.fail(e);
+            running.set(false);
+        }
+    }
+
+    private abstract static class Call<T> implements Runnable {
+        final CardFuture<T> future = new CardFuture<T>();
+
+        abstract T call() throws Exception;
+
+        public void run() {
+            if (future.isDone())
+                return; // cancelled
+            T result;
+            try {
+                result = call();
+            } catch (Exception e) {
+                future.fail(e);
+                return;
+            }
+            future.complete(result);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.dematte.nfc.common;
+
+/**
+ * GetFileSettings (0xF5) answer: file type, communication mode and access rights, then the
+ * size of data files, the limits of value files, or the records of record files.
+ */
+public class FileSettings extends ResponseView {
+
+    public static final int STANDARD_DATA_FILE = 0x00;
+    public static final int BACKUP_DATA_FILE = 0x01;
+    public static final int VALUE_FILE = 0x02;
+    public static final int LINEAR_RECORD_FILE = 0x03;
+    public static final int CYCLIC_RECORD_FILE = 0x04;
+
+    // Access right nibble: free access, or no access at all
+    public static final int FREE = 0x0E;
+    public static final int DENIED = 0x0F;
+
+    @Override
+    public FileSettings wrap(byte[] data) {
+        return (FileSettings)super.wrap(data);
+    }
+
+    @Override
+    public FileSettings wrap(byte[] data, int offset, int length) {
+        return (FileSettings)super.wrap(data, offset, length);
+    }
+
+    @Override
+    protected int getMinLength() {
+        return 4;
+    }
+
+    public int getFileType() {
+        return u8(0);
+    }
+
+    public boolean isDataFile() {
+        return getFileType() == STANDARD_DATA_FILE || getFileType() == BACKUP_DATA_FILE;
+    }
+
+    public boolean isRecordFile() {
+        return getFileType() == LINEAR_RECORD_FILE || getFileType() == CYCLIC_RECORD_FILE;
+    }
+
+    public MifareDesfire.CommunicationMode getCommunicationMode() {
+        switch (u8(1) & 0x03) {
+            case 0x01:
+                return MifareDesfire.CommunicationMode.MACED;
+            case 0x03:
+                return MifareDesfire.CommunicationMode.ENCIPHERED;
+            default:
+                return MifareDesfire.CommunicationMode.PLAIN;
+        }
+    }
+
+    public int getAccessRights() {
+        return u16(2);
+    }
+
+    // Key numbers, or FREE, or DENIED
+    public int getReadKey() {
+        return getAccessRights() >> 12;
+    }
+
+    public int getWriteKey() {
+        return (getAccessRights() >> 8) & 0x0f;
+    }
+
+    public int getReadWriteKey() {
+        return (getAccessRights() >> 4) & 0x0f;
+    }
+
+    public int getChangeKey() {
+        return getAccessRights() & 0x0f;
+    }
+
+    // Data files
+    public int getFileSize() {
+        requireType(isDataFile(), "data");
+        return u24(4);
+    }
+
+    // Value files
+    public int getLowerLimit() {
+        requireType(getFileType() == VALUE_FILE, "value");
+        return s32(4);
+    }
+
+    public int getUpperLimit() {
+        requireType(getFileType() == VALUE_FILE, "value");
+        return s32(8);
+    }
+
+    public int getLimitedCreditValue() {
+        requireType(getFileType() == VALUE_FILE, "value");
+        return s32(12);
+    }
+
+    public boolean isLimitedCreditEnabled() {
+        requireType(getFileType() == VALUE_FILE, "value");
+        return (u8(16) & 0x01) != 0;
+    }
+
+    // Record files
+    public int getRecordSize() {
+        requireType(isRecordFile(), "record");
+        return u24(4);
+    }
+
+    public int getMaxRecords() {
+        requireType(isRecordFile(), "record");
+        return u24(7);
+    }
+
+    public int getRecordCount() {
+        requireType(isRecordFile(), "record");
+        return u24(10);
+    }
+
+    private void requireType(boolean ok, String type) {
+        if (!ok)
+            throw new IllegalStateException("Not a " + type + " file: type " + getFileType());
+    }
+}
@@ -0,0 +1,39 @@
+package org.dematte.nfc.common;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What framing (ISO wrapped or native) works with each type of card, as found out by the
+ * communicators, so a card which does not take ISO APDUs is spoken to natively from its
+ * first exchange on. Card types are whatever tells them apart, e.g. their historical bytes.
+ */
+public class FramingModeCache {
+
+    // Plenty for the card types a reader meets
+    private static final int MAX_TYPES = 256;
+
+    private static final FramingModeCache defaultCache = new FramingModeCache();
+
+    public static FramingModeCache getDefault() {
+        return defaultCache;
+    }
+
+    private final ConcurrentHashMap<String, Boolean> isoModes = new ConcurrentHashMap<String, Boolean>();
+
+    // True or false if the framing of this card type is known, null if not
+    public Boolean getIsoMode(String cardType) {
+        return cardType == null ? null : isoModes.get(cardType);
+    }
+
+    public void setIsoMode(String cardType, boolean isoMode) {
+        if (cardType == null)
+            return;
+        if (isoModes.size() >= MAX_TYPES && !isoModes.containsKey(cardType))
+            isoModes.clear();
+        isoModes.put(cardType, isoMode);
+    }
+
+    public void clear() {
+        isoModes.clear();
+    }
+}
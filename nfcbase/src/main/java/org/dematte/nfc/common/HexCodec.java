@@ -0,0 +1,145 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+
+/**
+ * Table driven hex encoding and decoding, into and from caller supplied buffers.
+ *
+ * Strict parsing accepts hex digits only; lenient parsing skips anything that is not a hex
+ * digit (spaces, colons...), as ByteArray.hexStringToByteArray always did. Only characters are
+ * skipped, not prefixes: the 0 of "0x" is a digit, so "0x1F" is 01 F, an odd number of digits.
+ */
+public final class HexCodec {
+
+    private static final char[] DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    // Nibble value of each ASCII character, -1 for non hex characters
+    private static final byte[] NIBBLES = new byte[128];
+
+    static {
+        for (int i = 0; i < NIBBLES.length; ++i)
+            NIBBLES[i] = -1;
+        for (int i = 0; i < 10; ++i)
+            NIBBLES['0' + i] = (byte)i;
+        for (int i = 0; i < 6; ++i) {
+            NIBBLES['A' + i] = (byte)(10 + i);
+            NIBBLES['a' + i] = (byte)(10 + i);
+        }
+    }
+
+    private HexCodec() {
+    }
+
+    public static String encode(byte[] src) {
+        char[] out = new char[src.length * 2];
+        encode(src, 0, src.length, out, 0);
+        return new String(out);
+    }
+
+    // Writes 2 * length uppercase hex digits into dst; returns the number of chars written
+    public static int encode(byte[] src, int offset, int length, char[] dst, int dstOffset) {
+        int j = dstOffset;
+        for (int i = offset; i < offset + length; ++i) {
+            int b = src[i] & 0xff;
+            dst[j++] = DIGITS[b >>> 4];
+            dst[j++] = DIGITS[b & 0x0f];
+        }
+        return j - dstOffset;
+    }
+
+    public static void encode(byte[] src, int offset, int length, Appendable out) throws IOException {
+        for (int i = offset; i < offset + length; ++i) {
+            int b = src[i] & 0xff;
+            out.append(DIGITS[b >>> 4]).append(DIGITS[b & 0x0f]);
+        }
+    }
+
+    // StringBuilder never throws: no need for callers to catch anything
+    public static StringBuilder encode(byte[] src, int offset, int length, StringBuilder out) {
+        out.ensureCapacity(out.length() + length * 2);
+        for (int i = offset; i < offset + length; ++i) {
+            int b = src[i] & 0xff;
+            out.append(DIGITS[b >>> 4]).append(DIGITS[b & 0x0f]);
+        }
+        return out;
+    }
+
+    /**
+     * Decodes a hex string.
+     * Strict mode throws IllegalArgumentException on non hex characters or an odd number of digits;
+     * lenient mode skips non hex characters, and returns null on an odd number of digits.
+     */
+    public static byte[] decode(CharSequence src, boolean strict) {
+        int digits = countDigits(src, 0, src.length(), strict);
+        if (digits % 2 != 0) {
+            if (strict)
+                throw new IllegalArgumentException("Odd number of hex digits");
+            return null;
+        }
+        byte[] ret = new byte[digits / 2];
+        decode(src, 0, src.length(), ret, 0, strict);
+        return ret;
+    }
+
+    /**
+     * Decodes length chars of src into dst, which must have room for them.
+     * Returns the number of bytes written. An odd trailing digit is always an error.
+     */
+    public static int decode(CharSequence src, int offset, int length, byte[] dst, int dstOffset, boolean strict) {
+        int j = dstOffset;
+        int high = -1;
+        for (int i = offset; i < offset + length; ++i) {
+            int nibble = nibble(src.charAt(i), strict);
+            if (nibble < 0)
+                continue;
+            if (high < 0) {
+                high = nibble;
+            } else {
+                dst[j++] = (byte)(high << 4 | nibble);
+                high = -1;
+            }
+        }
+        if (high >= 0)
+            throw new IllegalArgumentException("Odd number of hex digits");
+        return j - dstOffset;
+    }
+
+    public static int decode(char[] src, int offset, int length, byte[] dst, int dstOffset, boolean strict) {
+        int j = dstOffset;
+        int high = -1;
+        for (int i = offset; i < offset + length; ++i) {
+            int nibble = nibble(src[i], strict);
+            if (nibble < 0)
+                continue;
+            if (high < 0) {
+                high = nibble;
+            } else {
+                dst[j++] = (byte)(high << 4 | nibble);
+                high = -1;
+            }
+        }
+        if (high >= 0)
+            throw new IllegalArgumentException("Odd number of hex digits");
+        return j - dstOffset;
+    }
+
+    private static int countDigits(CharSequence src, int offset, int length, boolean strict) {
+        if (strict)
+            return length;
+        int digits = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            char c = src.charAt(i);
+            if (c < 128 && NIBBLES[c] >= 0)
+                ++digits;
+        }
+        return digits;
+    }
+
+    private static int nibble(char c, boolean strict) {
+        int nibble = c < 128 ? NIBBLES[c] : -1;
+        if (nibble < 0 && strict)
+            throw new IllegalArgumentException("Not a hex digit: '" + c + "'");
+        return nibble;
+    }
+}
@@ -0,0 +1,16 @@
+package org.dematte.nfc.common;
+
+/**
+ * Non-blocking counterpart of ICardCommunicator: transceive returns at once, and the
+ * answer completes the returned future.
+ *
+ * Frames sent to the same card are delivered in order, one at a time.
+ */
+public interface IAsyncCardCommunicator {
+
+    public CardFuture<byte[]> transceive(byte[] data);
+
+    public CardFuture<Void> connect();
+
+    public CardFuture<Void> close();
+}
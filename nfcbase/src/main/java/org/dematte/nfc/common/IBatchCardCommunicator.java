@@ -0,0 +1,16 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+
+/**
+ * A communicator able to deliver several commands to the card in a single exchange
+ * (e.g. one network round trip to a remote coupler).
+ *
+ * Commands run in order; the first answer with an error status (see DesfireBatch.isError)
+ * stops the batch, and the remaining commands are not sent to the card.
+ */
+public interface IBatchCardCommunicator extends ICardCommunicator {
+
+    // Returns one answer per command that was run: fewer than commands.length if the batch stopped early
+    public byte[][] transceiveBatch(byte[][] commands) throws IOException;
+}
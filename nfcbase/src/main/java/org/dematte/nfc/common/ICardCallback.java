@@ -0,0 +1,12 @@
+package org.dematte.nfc.common;
+
+/**
+ * Completion callback for asynchronous card operations.
+ * Callbacks run on the thread completing the operation: they should not block.
+ */
+public interface ICardCallback<T> {
+
+    public void onSuccess(T result);
+
+    public void onFailure(Exception error);
+}
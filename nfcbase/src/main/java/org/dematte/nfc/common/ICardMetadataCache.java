@@ -0,0 +1,19 @@
+package org.dematte.nfc.common;
+
+/**
+ * A store for card metadata (applications, file IDs, file and key settings), which almost never
+ * changes for a given card: answers are kept per card UID and application ID, and served
+ * without talking to the card.
+ */
+public interface ICardMetadataCache {
+
+    // Answer data (without status code) cached for this command, or null
+    public byte[] get(byte[] uid, byte[] aid, byte[] command);
+
+    public void put(byte[] uid, byte[] aid, byte[] command, byte[] data);
+
+    // Forgets everything about an application of a card; a null aid forgets the whole card
+    public void invalidate(byte[] uid, byte[] aid);
+
+    public void clear();
+}
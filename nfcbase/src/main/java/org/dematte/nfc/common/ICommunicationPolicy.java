@@ -0,0 +1,21 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+
+/**
+ * Decides how long to wait for the card, and whether (and when) to try a failed exchange again.
+ */
+public interface ICommunicationPolicy {
+
+    // Reader timeout for an attempt (from 1) at a command, in milliseconds
+    public int getTimeout(byte command, int attempt);
+
+    /**
+     * Milliseconds to wait before trying the command again after attempt "attempt" failed,
+     * or -1 to give up.
+     */
+    public long getRetryDelay(byte[] command, int attempt, IOException error, Deadline deadline);
+
+    // A successful exchange, to learn how long the card (or the link to it) takes
+    public void recordRoundTrip(byte command, long micros);
+}
@@ -0,0 +1,14 @@
+package org.dematte.nfc.common;
+
+/**
+ * A communicator which knows how frames travel between the reader and the card:
+ * how large they can be (e.g. the frame size negotiated at activation), and how they are wrapped.
+ */
+public interface IFramedCardCommunicator extends ICardCommunicator {
+
+    // Largest native command or answer, in bytes, that fits in a single exchange
+    public int getMaxFrameSize();
+
+    // True if native commands travel wrapped in ISO 7816 APDUs
+    public boolean isIsoMode();
+}
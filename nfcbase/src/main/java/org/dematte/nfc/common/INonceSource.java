@@ -0,0 +1,11 @@
+package org.dematte.nfc.common;
+
+/**
+ * Where MifareDesfire takes its authentication challenges (RndA) from: a NoncePool, or a
+ * trace being recorded or replayed.
+ */
+public interface INonceSource {
+
+    // A fresh nonce of the given length, owned by the caller
+    public byte[] next(int length);
+}
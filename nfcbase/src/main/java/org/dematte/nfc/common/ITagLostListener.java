@@ -0,0 +1,10 @@
+package org.dematte.nfc.common;
+
+/**
+ * Told when PresenceKeepalive finds out that a tag is gone.
+ */
+public interface ITagLostListener {
+
+    // cause is null if the tag is just not present anymore, the error otherwise
+    public void onTagLost(ITagService tag, Exception cause);
+}
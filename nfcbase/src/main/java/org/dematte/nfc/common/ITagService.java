@@ -0,0 +1,17 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+
+/**
+ * The platform calls needed to keep a tag alive, for one tag.
+ *
+ * On Android (< 5), rearm() is INfcTag.connect: it resets the platform watchdog, which would
+ * otherwise check for presence with a "select" whenever the tag is idle for 125 ms,
+ * breaking slow (remote) transactions. See ReflectiveTagService.
+ */
+public interface ITagService {
+
+    public void rearm() throws IOException;
+
+    public boolean isPresent() throws IOException;
+}
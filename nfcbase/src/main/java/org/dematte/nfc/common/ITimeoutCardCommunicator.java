@@ -0,0 +1,12 @@
+package org.dematte.nfc.common;
+
+/**
+ * A communicator whose exchanges can time out: an exchange taking longer than the timeout
+ * fails with an IOException.
+ */
+public interface ITimeoutCardCommunicator extends ICardCommunicator {
+
+    public void setTimeout(int millis);
+
+    public int getTimeout();
+}
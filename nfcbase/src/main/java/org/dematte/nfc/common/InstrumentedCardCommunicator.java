@@ -0,0 +1,160 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Records every exchange of a communicator in a CardMetrics: latency, bytes, answer status
+ * and retries, per Desfire command and framing mode.
+ *
+ * The mode comes from the wrapped communicator (IFramedCardCommunicator), or from the frame
+ * itself when it is an ISO wrapped native command (CLA 0x90). A retry is the same command sent
+ * again right after it failed, as MifareDesfire does.
+ * Use wrap() to keep batch support: batched commands share the exchange time evenly.
+ * Timeouts go through to the wrapped communicator.
+ */
+public class InstrumentedCardCommunicator implements IFramedCardCommunicator, ITimeoutCardCommunicator {
+
+    protected final ICardCommunicator communicator;
+    protected final CardMetrics metrics;
+    // Last command which failed, to spot retries
+    private volatile byte[] lastFailed;
+
+    public InstrumentedCardCommunicator(ICardCommunicator communicator, CardMetrics metrics) {
+        this.communicator = communicator;
+        this.metrics = metrics;
+    }
+
+    // An instrumented communicator with the same capabilities (batches) as the given one
+    public static InstrumentedCardCommunicator wrap(ICardCommunicator communicator, CardMetrics metrics) {
+        if (communicator instanceof IBatchCardCommunicator)
+            return new Batching((IBatchCardCommunicator)communicator, metrics);
+        return new InstrumentedCardCommunicator(communicator, metrics);
+    }
+
+    public ICardCommunicator getCommunicator() {
+        return communicator;
+    }
+
+    public CardMetrics getMetrics() {
+        return metrics;
+    }
+
+    public byte[] transceive(byte[] data) throws IOException {
+        CommandMetrics command = metricsFor(data);
+        long start = System.nanoTime();
+        byte[] answer;
+        try {
+            answer = communicator.transceive(data);
+        } catch (IOException e) {
+            failed(command, data, start);
+            throw e;
+        } catch (RuntimeException e) {
+            failed(command, data, start);
+            throw e;
+        }
+        record(command, data, answer, (System.nanoTime() - start) / 1000);
+        return answer;
+    }
+
+    public int getMaxFrameSize() {
+        if (communicator instanceof IFramedCardCommunicator)
+            return ((IFramedCardCommunicator)communicator).getMaxFrameSize();
+        // Unknown: MifareDesfire falls back to its default
+        return 0;
+    }
+
+    public boolean isIsoMode() {
+        return communicator instanceof IFramedCardCommunicator
+                && ((IFramedCardCommunicator)communicator).isIsoMode();
+    }
+
+    public void setTimeout(int millis) {
+        if (communicator instanceof ITimeoutCardCommunicator)
+            ((ITimeoutCardCommunicator)communicator).setTimeout(millis);
+    }
+
+    public int getTimeout() {
+        if (communicator instanceof ITimeoutCardCommunicator)
+            return ((ITimeoutCardCommunicator)communicator).getTimeout();
+        return 0;
+    }
+
+    public void connect() throws IOException {
+        communicator.connect();
+    }
+
+    public boolean isConnected() throws IOException {
+        return communicator.isConnected();
+    }
+
+    public void close() throws IOException {
+        communicator.close();
+    }
+
+    CommandMetrics metricsFor(byte[] data) {
+        CommandMetrics command;
+        if (isIsoFrame(data))
+            command = metrics.get(data[1], true);
+        else
+            command = metrics.get(data.length > 0 ? data[0] : 0, isIsoMode());
+
+        byte[] failed = lastFailed;
+        if (failed != null && Arrays.equals(failed, data))
+            command.recordRetry();
+        return command;
+    }
+
+    void record(CommandMetrics command, byte[] data, byte[] answer, long micros) {
+        int status = statusOf(data, answer);
+        command.recordExchange(micros, data.length, answer == null ? 0 : answer.length, status);
+        lastFailed = status < 0 || DesfireBatch.isError(answer) ? data : null;
+    }
+
+    private void failed(CommandMetrics command, byte[] data, long start) {
+        command.recordTransportError((System.nanoTime() - start) / 1000, data.length);
+        lastFailed = data;
+    }
+
+    // 90 cmd 00 00 [Lc data] [Le]
+    static boolean isIsoFrame(byte[] data) {
+        return data.length >= 5 && data[0] == (byte)0x90 && data[2] == 0 && data[3] == 0;
+    }
+
+    // Native answers start with the status; ISO ones end with 91 status
+    private static int statusOf(byte[] data, byte[] answer) {
+        if (answer == null || answer.length == 0)
+            return -1;
+        if (isIsoFrame(data) && answer.length >= 2 && answer[answer.length - 2] == (byte)0x91)
+            return answer[answer.length - 1] & 0xff;
+        return answer[0] & 0xff;
+    }
+
+    private static class Batching extends InstrumentedCardCommunicator implements IBatchCardCommunicator {
+
+        Batching(IBatchCardCommunicator communicator, CardMetrics metrics) {
+            super(communicator, metrics);
+        }
+
+        public byte[][] transceiveBatch(byte[][] commands) throws IOException {
+            CommandMetrics[] counted = new CommandMetrics[commands.length];
+            for (int i = 0; i < commands.length; ++i)
+                counted[i] = metricsFor(commands[i]);
+
+            long start = System.nanoTime();
+            byte[][] answers;
+            try {
+                answers = ((IBatchCardCommunicator)communicator).transceiveBatch(commands);
+            } catch (IOException e) {
+                long micros = (System.nanoTime() - start) / 1000 / Math.max(1, commands.length);
+                for (int i = 0; i < commands.length; ++i)
+                    counted[i].recordTransportError(micros, commands[i].length);
+                throw e;
+            }
+            long micros = (System.nanoTime() - start) / 1000 / Math.max(1, answers.length);
+            for (int i = 0; i < answers.length; ++i)
+                record(counted[i], commands[i], answers[i], micros);
+            return answers;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.dematte.nfc.common;
+
+/**
+ * Wraps native Desfire commands in ISO 7816-4 APDUs, and unwraps the answers.
+ *
+ * Commands: 90, command, 00, 00, then Lc, arguments and Le 00 (a lone Le without arguments).
+ * Arguments over 255 bytes take extended Lc and Le, if enabled. Answers: data, 91, status;
+ * unwrapped they are status, data, as native answers are.
+ *
+ * APDUs are written in arrays recycled per length: each one is valid until the next command of
+ * the same length is wrapped, which is enough for a transceive. Not thread-safe.
+ */
+public class IsoApduCodec {
+
+    // Header: CLA INS P1 P2
+    private static final int HEADER = 4;
+    private static final int MAX_SHORT = 255;
+    private static final int MAX_EXTENDED = 65535;
+    // Short APDUs, up to header, Lc, 255 arguments and Le
+    private static final int MAX_RECYCLED = HEADER + 1 + MAX_SHORT + 1;
+
+    private final boolean extendedLength;
+    private final byte[][] recycled = new byte[MAX_RECYCLED + 1][];
+
+    public IsoApduCodec(boolean extendedLength) {
+        this.extendedLength = extendedLength;
+    }
+
+    public boolean isExtendedLength() {
+        return extendedLength;
+    }
+
+    // Most arguments a single APDU can carry, when frames are at most frameSize bytes
+    public int maxArguments(int frameSize) {
+        int extended = frameSize - HEADER - 3 - 2;
+        if (extendedLength && extended > MAX_SHORT)
+            return Math.min(extended, MAX_EXTENDED);
+        return Math.max(0, Math.min(frameSize - HEADER - 1 - 1, MAX_SHORT));
+    }
+
+    // Whole APDU length for the given number of arguments
+    public int wrappedLength(int arguments) {
+        if (arguments == 0)
+            return HEADER + 1;
+        if (arguments > MAX_SHORT)
+            return HEADER + 3 + arguments + 2;
+        return HEADER + 1 + arguments + 1;
+    }
+
+    // The whole native command: command byte, then arguments
+    public byte[] wrap(byte[] nativeCommand) {
+        return wrap(nativeCommand[0], nativeCommand, 1, nativeCommand.length - 1);
+    }
+
+    public byte[] wrap(byte command, byte[] arguments, int offset, int length) {
+        if (length > MAX_EXTENDED || (length > MAX_SHORT && !extendedLength))
+            throw new IllegalArgumentException("Too many arguments for an APDU: " + length);
+
+        int size = wrappedLength(length);
+        byte[] apdu = size <= MAX_RECYCLED ? recycled[size] : null;
+        if (apdu == null) {
+            apdu = new byte[size];
+            if (size <= MAX_RECYCLED)
+                recycled[size] = apdu;
+        }
+
+        apdu[0] = (byte)0x90;
+        apdu[1] = command;
+        apdu[2] = 0;
+        apdu[3] = 0;
+        if (length == 0) {
+            // Le only (Android does not want the Lc 00 of an empty command)
+            apdu[4] = 0;
+        } else if (length <= MAX_SHORT) {
+            apdu[4] = (byte)length;
+            System.arraycopy(arguments, offset, apdu, 5, length);
+            apdu[size - 1] = 0;
+        } else {
+            apdu[4] = 0;
+            apdu[5] = (byte)(length >> 8);
+            apdu[6] = (byte)length;
+            System.arraycopy(arguments, offset, apdu, 7, length);
+            apdu[size - 2] = 0;
+            apdu[size - 1] = 0;
+        }
+        return apdu;
+    }
+
+    // True if the card answered natively (a lone status, e.g. 1C for an unknown command)
+    public static boolean isNativeAnswer(byte[] answer) {
+        return answer != null && answer.length == 1;
+    }
+
+    // The native answer (status, then data), or null if this is not a Desfire ISO answer
+    public byte[] unwrap(byte[] isoAnswer) {
+        if (isoAnswer == null || isoAnswer.length < 2 || isoAnswer[isoAnswer.length - 2] != (byte)0x91)
+            return null;
+        int data = isoAnswer.length - 2;
+        byte[] ret = new byte[data + 1];
+        ret[0] = isoAnswer[data + 1];
+        System.arraycopy(isoAnswer, 0, ret, 1, data);
+        return ret;
+    }
+}
@@ -0,0 +1,265 @@
+package org.dematte.nfc.common;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per card keys derived from a master key, as NXP AN10922 describes: a CMAC, under the master
+ * key, of UID || AID || system identifier.
+ *
+ * Derived keys are kept in a bounded LRU cache, keyed by UID and AID, so a card tapping again
+ * costs a lookup; evicted keys are zeroed. diversifyAll derives a list of cards in parallel,
+ * e.g. ahead of provisioning, or for the cards expected at a gate.
+ */
+public class KeyDiversifier {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // CMACs kept for reuse (their key schedule is done)
+    private static final int MAX_IDLE_CMACS = 8;
+
+    public enum Algorithm {
+        // Two, or three, 8 byte CMACs, each with its own constant
+        TDES_2K(16, 15, new byte[]{0x21, 0x22}),
+        TDES_3K(24, 15, new byte[]{0x31, 0x32, 0x33}),
+        // One 16 byte CMAC
+        AES_128(16, 31, new byte[]{0x01});
+
+        final int keyLength;
+        // Longest UID || AID || system identifier the scheme takes
+        final int maxInputLength;
+        final byte[] constants;
+
+        Algorithm(int keyLength, int maxInputLength, byte[] constants) {
+            this.keyLength = keyLength;
+            this.maxInputLength = maxInputLength;
+            this.constants = constants;
+        }
+
+        public int getKeyLength() {
+            return keyLength;
+        }
+    }
+
+    private final Algorithm algorithm;
+    private final byte[] masterKey;
+    private final byte[] systemIdentifier;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<Cmac> idle = new ConcurrentLinkedQueue<Cmac>();
+
+    private final LinkedHashMap<Key, byte[]> entries;
+    // Used to look up entries without allocating; guarded by "this", like entries
+    private final Key probe = new Key();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public KeyDiversifier(Algorithm algorithm, byte[] masterKey, byte[] systemIdentifier) {
+        this(algorithm, masterKey, systemIdentifier, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * systemIdentifier may be null (nothing appended). Keys are copied.
+     */
+    public KeyDiversifier(Algorithm algorithm, byte[] masterKey, byte[] systemIdentifier, int capacity) {
+        if (masterKey.length != algorithm.keyLength)
+            throw new IllegalArgumentException("Wrong master key length for " + algorithm);
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.algorithm = algorithm;
+        this.masterKey = masterKey.clone();
+        this.systemIdentifier = systemIdentifier == null ? new byte[0] : systemIdentifier.clone();
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, byte[]>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                if (size() <= KeyDiversifier.this.capacity)
+                    return false;
+                Arrays.fill(eldest.getValue(), (byte)0);
+                evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * The key of the card with this UID, for the application aid (null leaves the AID out
+     * of the input). A copy, owned by the caller.
+     */
+    public byte[] diversify(byte[] uid, byte[] aid) throws GeneralSecurityException {
+        synchronized (this) {
+            byte[] key = entries.get(probe.set(uid, aid));
+            if (key != null) {
+                hits.incrementAndGet();
+                return key.clone();
+            }
+        }
+        misses.incrementAndGet();
+        byte[] key = derive(uid, aid);
+        synchronized (this) {
+            entries.put(new Key().set(uid.clone(), aid == null ? null : aid.clone()), key.clone());
+        }
+        return key;
+    }
+
+    /**
+     * Derives (and caches) the keys of all the given cards, for the same application.
+     * The work is split among the executor threads; a null executor derives them here.
+     * Keys are returned in the order of the UIDs.
+     */
+    public byte[][] diversifyAll(List<byte[]> uids, final byte[] aid, ExecutorService executor, int parallelism)
+            throws GeneralSecurityException, InterruptedException {
+        final byte[][] keys = new byte[uids.size()][];
+        if (executor == null || parallelism <= 1 || uids.size() < 2) {
+            for (int i = 0; i < keys.length; ++i)
+                keys[i] = diversify(uids.get(i), aid);
+            return keys;
+        }
+
+        final byte[][] input = uids.toArray(new byte[uids.size()][]);
+        int chunks = Math.min(parallelism, input.length);
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(chunks);
+        for (int c = 0; c < chunks; ++c) {
+            final int from = (int)((long)input.length * c / chunks);
+            final int to = (int)((long)input.length * (c + 1) / chunks);
+            tasks.add(new Callable<Void>() {
+                public Void call() throws GeneralSecurityException {
+                    for (int i = from; i < to; ++i)
+                        keys[i] = diversify(input[i], aid);
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> done : executor.invokeAll(tasks)) {
+            try {
+                done.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof GeneralSecurityException)
+                    throw (GeneralSecurityException)e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return keys;
+    }
+
+    // Derives the key, without going through the cache
+    public byte[] derive(byte[] uid, byte[] aid) throws GeneralSecurityException {
+        int aidLength = aid == null ? 0 : aid.length;
+        int inputLength = uid.length + aidLength + systemIdentifier.length;
+        if (inputLength == 0 || inputLength > algorithm.maxInputLength)
+            throw new IllegalArgumentException("Diversification input must be 1 to " +
+                    algorithm.maxInputLength + " bytes long");
+
+        // Constant || UID || AID || system identifier
+        byte[] input = new byte[1 + inputLength];
+        System.arraycopy(uid, 0, input, 1, uid.length);
+        if (aid != null)
+            System.arraycopy(aid, 0, input, 1 + uid.length, aidLength);
+        System.arraycopy(systemIdentifier, 0, input, 1 + uid.length + aidLength, systemIdentifier.length);
+
+        Cmac cmac = acquire();
+        try {
+            // Always two blocks, padded if shorter
+            int paddedLength = 2 * cmac.getBlockSize();
+            int blockSize = cmac.getBlockSize();
+            byte[] key = new byte[algorithm.constants.length * blockSize];
+            for (int i = 0; i < algorithm.constants.length; ++i) {
+                input[0] = algorithm.constants[i];
+                byte[] part = cmac.mac(input, 0, input.length, paddedLength);
+                System.arraycopy(part, 0, key, i * blockSize, blockSize);
+                Arrays.fill(part, (byte)0);
+            }
+            return key;
+        } finally {
+            release(cmac);
+        }
+    }
+
+    // Forgets every derived key, zeroing them
+    public synchronized void clear() {
+        for (byte[] key : entries.values())
+            Arrays.fill(key, (byte)0);
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "KeyDiversifier " + algorithm + ": " + size() + "/" + capacity + " keys, " +
+                hits.get() + " hits, " + misses.get() + " misses, " + evictions.get() + " evictions";
+    }
+
+    private Cmac acquire() throws GeneralSecurityException {
+        Cmac cmac = idle.poll();
+        if (cmac != null)
+            return cmac;
+        return algorithm == Algorithm.AES_128 ? Cmac.aes(masterKey) : Cmac.tripleDes(masterKey);
+    }
+
+    private void release(Cmac cmac) {
+        // Approximate bound: size() is not exact under contention, which is fine here
+        if (idle.size() < MAX_IDLE_CMACS)
+            idle.offer(cmac);
+    }
+
+    // Map key over UID and AID; the probe instance just points at the caller's arrays
+    private static class Key {
+        private byte[] uid;
+        private byte[] aid;
+        private int hash;
+
+        Key set(byte[] uid, byte[] aid) {
+            this.uid = uid;
+            this.aid = aid;
+            this.hash = 31 * Arrays.hashCode(uid) + Arrays.hashCode(aid);
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key)o;
+            return Arrays.equals(uid, other.uid) && Arrays.equals(aid, other.aid);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.dematte.nfc.common;
+
+/**
+ * GetKeySettings (0x45) answer: the key settings byte, then the number of keys, with the
+ * key type (EV1) in its two high bits.
+ */
+public class KeySettings extends ResponseView {
+
+    public enum KeyType {
+        DES,
+        TDES_3K,
+        AES
+    }
+
+    @Override
+    public KeySettings wrap(byte[] data) {
+        return (KeySettings)super.wrap(data);
+    }
+
+    @Override
+    public KeySettings wrap(byte[] data, int offset, int length) {
+        return (KeySettings)super.wrap(data, offset, length);
+    }
+
+    @Override
+    protected int getMinLength() {
+        return 2;
+    }
+
+    public int getSettings() {
+        return u8(0);
+    }
+
+    // Key needed to change keys: 0x0E for the key itself, 0x0F if keys are frozen
+    public int getChangeKey() {
+        return getSettings() >> 4;
+    }
+
+    public boolean isConfigurationChangeable() {
+        return (getSettings() & 0x08) != 0;
+    }
+
+    public boolean isFreeCreateDelete() {
+        return (getSettings() & 0x04) != 0;
+    }
+
+    public boolean isFreeDirectoryList() {
+        return (getSettings() & 0x02) != 0;
+    }
+
+    public boolean isMasterKeyChangeable() {
+        return (getSettings() & 0x01) != 0;
+    }
+
+    public int getKeyCount() {
+        return u8(1) & 0x3f;
+    }
+
+    public KeyType getKeyType() {
+        switch (u8(1) >> 6) {
+            case 1:
+                return KeyType.TDES_3K;
+            case 2:
+                return KeyType.AES;
+            default:
+                return KeyType.DES;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.dematte.nfc.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram, in microseconds, with HDR-style log-linear buckets:
+ * every power of two is split in 32 buckets, so values are kept within ~3%.
+ *
+ * Recording does not allocate. Readers see a consistent enough (not atomic) view.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values up to 2^31 us (about 35 minutes); longer ones count as that
+    private static final int MAX_BIT = 30;
+    private static final long MAX_VALUE = (1L << (MAX_BIT + 1)) - 1;
+    private static final int BUCKETS = (MAX_BIT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        if (micros < 0)
+            micros = 0;
+        else if (micros > MAX_VALUE)
+            micros = MAX_VALUE;
+
+        counts.incrementAndGet(indexOf(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+
+        long current;
+        while (micros < (current = min.get()) && !min.compareAndSet(current, micros)) {
+        }
+        while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMin() {
+        return count.get() == 0 ? 0 : min.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double)sum.get() / n;
+    }
+
+    // The value below which "percentile" percent of the recorded values fall (bucket upper bound)
+    public long getValueAtPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long)Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueOf(i), getMax());
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int)value;
+        int bit = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (bit - SUB_BUCKET_BITS));
+        return (bit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket - SUB_BUCKETS;
+    }
+
+    static long lowestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int bit = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return subBucket << (bit - SUB_BUCKET_BITS);
+    }
+
+    static long highestValueOf(int index) {
+        return index + 1 < BUCKETS ? lowestValueOf(index + 1) - 1 : MAX_VALUE;
+    }
+}
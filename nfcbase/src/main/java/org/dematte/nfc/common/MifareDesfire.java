@@ -2,14 +2,16 @@ package org.dematte.nfc.common;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
@@ -20,40 +22,219 @@ import java.util.Arrays;
 public class MifareDesfire {
 
     private final int macSize = 4;
-    private final int maxDataSize = 52 - macSize;
+    // Frame size when the communicator does not know better
+    private static final int DEFAULT_FRAME_SIZE = 52;
+    // Native Desfire frames carry at most 59 bytes of data, plus the status code
+    static final int CARD_FRAME_SIZE = 60;
+    // WriteData header: command, file, offset (3), length (3)
+    static final int WRITE_HEADER_SIZE = 8;
+
+    // The card level "application", selected when the card is activated
+    static final byte[] PICC_AID = new byte[]{0x00, 0x00, 0x00};
 
     protected ICardCommunicator cardCommunicator;
-    protected SecureRandom randomGenerator;
+    // Our authentication challenges (RndA), generated ahead of time
+    protected INonceSource nonceSource = NoncePool.getDefault();
+    protected CipherCache cipherCache = CipherCache.getDefault();
+    // Command builders, recycled for the whole session
+    protected final ByteArrayPool buffers = new ByteArrayPool();
+    protected ICommunicationPolicy policy = AdaptiveCommunicationPolicy.getDefault();
+    private volatile Deadline deadline = Deadline.NONE;
+    // Null: metadata is always read from the card
+    protected ICardMetadataCache metadataCache;
+    // Null: writeFileChanges writes everything
+    protected CardImageCache imageCache;
+    // Written through writeFile, known to be on the card once committed
+    private final ArrayList<PendingWrite> pendingWrites = new ArrayList<PendingWrite>();
+    private final CardImageCache.IntList changes = new CardImageCache.IntList();
+    // Application currently selected on the card, null if unknown
+    private volatile byte[] selectedAid;
+    // Left by an EV1 (AES or ISO) authentication; null in plain (or legacy authenticated) mode
+    private volatile DesfireSession session;
+    private ReadMode readMode = ReadMode.SPLIT;
+    // Deciphers answers (and enciphers commands) while the card is busy; null for the shared one
+    private Executor cryptoExecutor;
     public byte[] uid;
 
+    private static Executor defaultCryptoExecutor;
+
+    public enum CommunicationMode {
+        // Data as it is
+        PLAIN,
+        // Data followed by its CMAC (needs an EV1 session)
+        MACED,
+        // Data and its CRC32, enciphered with the session key (needs an EV1 session)
+        ENCIPHERED
+    }
+
+    public enum ReadMode {
+        // One ReadData per frame worth of data: works with any reader
+        SPLIT,
+        // One ReadData for the whole range; the card sends the data in additional (0xAF) frames
+        CHAINED
+    }
+
     public MifareDesfire(ICardCommunicator cardCommunicator, byte[] uid) throws NoSuchAlgorithmException {
         this.cardCommunicator = cardCommunicator;
         this.uid = uid;
-        this.randomGenerator = new SecureRandom();
     }
 
-    // Mifare Desfire specifications require DESede/ECB without padding
+    // Mifare Desfire specifications require DESede/ECB without padding.
+    // Ciphers come from the cache, already initialized with our (diversified) read or write key:
+    // hand them back with releaseCipher
     protected Cipher getCipher(byte[] diversifiedKey)
             throws InvalidKeyException, NoSuchPaddingException, NoSuchAlgorithmException {
-        Cipher chiper = Cipher.getInstance("DESede/ECB/NoPadding");
+        return cipherCache.acquire(diversifiedKey);
+    }
+
+    protected void releaseCipher(byte[] diversifiedKey, Cipher cipher) {
+        cipherCache.release(diversifiedKey, cipher);
+    }
+
+    public INonceSource getNonceSource() {
+        return nonceSource;
+    }
+
+    public void setNonceSource(INonceSource nonceSource) {
+        this.nonceSource = nonceSource;
+    }
+
+    public CipherCache getCipherCache() {
+        return cipherCache;
+    }
+
+    public void setCipherCache(CipherCache cipherCache) {
+        this.cipherCache = cipherCache;
+    }
+
+    public ICommunicationPolicy getPolicy() {
+        return policy;
+    }
+
+    // Timeouts and retries of the exchanges with the card
+    public void setPolicy(ICommunicationPolicy policy) {
+        this.policy = policy;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Sets the time by which the current operations (e.g. the whole tap) must be over:
+     * exchanges get no more time than what is left, and no retry is made which would not fit.
+     * Deadline.NONE (the default) removes it.
+     */
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline == null ? Deadline.NONE : deadline;
+    }
+
+    public ICardMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Serves getApplications, getFileIds, getFileSettings and getKeySettings from the given cache,
+     * keyed by card UID and selected application. Null disables caching.
+     */
+    public void setMetadataCache(ICardMetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
+    // Forgets the cached metadata of this card, e.g. after changing it through other means
+    public void invalidateMetadata() {
+        if (metadataCache != null && uid != null)
+            metadataCache.invalidate(uid, null);
+    }
 
-        ByteArray tripleDesKey = new ByteArray();
+    public CardImageCache getImageCache() {
+        return imageCache;
+    }
+
+    /**
+     * Keeps what is read from data files, and what is written to them and committed, in the
+     * given cache, by card UID: writeFileChanges then writes only what differs. Null disables it.
+     */
+    public void setImageCache(CardImageCache imageCache) {
+        this.imageCache = imageCache;
+        pendingWrites.clear();
+    }
+
+    // Keeps track of the selected application; null when the outcome of a select is unknown.
+    // Selecting aborts the open transaction, so writes not committed yet are gone
+    void applicationSelected(byte[] applicationId) {
+        selectedAid = applicationId == null ? null : applicationId.clone();
+        pendingWrites.clear();
+    }
+
+    // Data changes on the selected application may change its metadata (e.g. record counts)
+    void applicationChanged() {
+        if (metadataCache == null || uid == null)
+            return;
+        // If we do not know what is selected, we do not know what changed either
+        metadataCache.invalidate(uid, selectedAid);
+    }
+
+    // Where enciphered data is processed; null for the default (see setCryptoExecutor)
+    public Executor getCryptoExecutor() {
+        return cryptoExecutor;
+    }
+
+    /**
+     * Where enciphered data is deciphered and enciphered, overlapped with the exchanges with the
+     * card. Null (the default) shares a single background thread among all cards, or works in
+     * line on a single CPU, where handing each frame over costs more than its cipher work.
+     * An executor running tasks on the calling thread does the cipher work in line.
+     */
+    public void setCryptoExecutor(Executor cryptoExecutor) {
+        this.cryptoExecutor = cryptoExecutor;
+    }
+
+    private Executor cryptoExecutor() {
+        Executor executor = cryptoExecutor;
+        return executor != null ? executor : getDefaultCryptoExecutor();
+    }
+
+    private static synchronized Executor getDefaultCryptoExecutor() {
+        if (defaultCryptoExecutor == null && Runtime.getRuntime().availableProcessors() < 2) {
+            defaultCryptoExecutor = new Executor() {
+                public void execute(Runnable command) {
+                    command.run();
+                }
+            };
+        } else if (defaultCryptoExecutor == null) {
+            defaultCryptoExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DesfireCrypto");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return defaultCryptoExecutor;
+    }
+
+    /**
+     * The session left by authenticateAes or authenticateIso, while it lasts: selecting an
+     * application, authenticating again, a card error or a lost exchange end it.
+     */
+    public DesfireSession getSession() {
+        return session;
+    }
+
+    // Expands a DES (8), 2K3DES (16) or 3K3DES (24) key to the 24 bytes DESede expects
+    static byte[] tripleDesKey(byte[] diversifiedKey) {
+        ByteArray tripleDesKey = new ByteArray(24);
         if (diversifiedKey.length == 8) {
             tripleDesKey.append(diversifiedKey).append(diversifiedKey).append(diversifiedKey);
         } else if (diversifiedKey.length == 16) {
-            byte[] firstKey = new byte[8];
-            System.arraycopy(diversifiedKey, 0, firstKey, 0, 8);
-            tripleDesKey.append(diversifiedKey).append(firstKey);
+            tripleDesKey.append(diversifiedKey).append(diversifiedKey, 0, 8);
         } else if (diversifiedKey.length == 24) {
             tripleDesKey.append(diversifiedKey);
         } else
             throw new IllegalArgumentException("Wrong key length");
 
-        // And we initialize it with our (diversified) read or write key
-        final SecretKey key = new SecretKeySpec(tripleDesKey.toArray(), "DESede");
-        chiper.init(Cipher.DECRYPT_MODE, key);
-
-        return chiper;
+        return tripleDesKey.toArray();
     }
 
     /**
@@ -65,17 +246,36 @@ public class MifareDesfire {
         return sendBytes(new byte[]{0x60}).data;
     }
 
+    // The whole version (all its frames), in the given view; null makes a new one
+    public CardVersion getVersion(CardVersion version) throws IOException {
+        MifareResult result = sendBytes(new byte[]{0x60});
+        byte[] data = result.data;
+        if (result.resultType == MifareResultType.MORE_DATA) {
+            ByteRope all = new ByteRope().append(data);
+            while (result.resultType == MifareResultType.MORE_DATA) {
+                result = sendBytes(new byte[]{(byte)0xAF});
+                all.append(result.data);
+            }
+            data = all.toArray();
+        }
+        return (version == null ? new CardVersion() : version).wrap(data);
+    }
+
     public byte[] getApplications() throws IOException {
-        return sendBytes(new byte[]{0x6a}).data;
+        return sendMetadataCommand(PICC_AID, new byte[]{0x6a});
     }
 
     public boolean selectApplication(byte[] applicationId) throws IOException {
-        byte[] params = ByteArray.from((byte)0x5a).append(applicationId).toArray();
-        byte[] res = cardCommunicator.transceive(params);
-
-        if (res != null && res.length == 1 && res[0] == 0)
+        ByteArray array = buffers.acquire();
+        byte[] params = array.append((byte)0x5a).append(applicationId).toArray();
+        buffers.release(array);
+        applicationSelected(null);
+        byte[] res = transceive(params);
+
+        if (res != null && res.length == 1 && res[0] == 0) {
+            applicationSelected(applicationId);
             return true;
-        else
+        } else
             return false;
     }
 
@@ -83,20 +283,154 @@ public class MifareDesfire {
      * Get a list of all the files in the current application ("directory")
      */
     public byte[] getFileIds() throws IOException {
-        return sendBytes(new byte[]{0x6f}).data;
+        return sendMetadataCommand(selectedAid, new byte[]{0x6f});
     }
 
+    // count records (0: all of them) from start, where 0 is the newest; oldest first, all frames of them
     public byte[] readRecordFile(byte fid, int start, int count) throws IOException {
-        byte[] cmd = new ByteArray().append((byte)0xBB).append(fid).append(start, 3).append(count, 3).toArray();
-        MifareResult result = sendBytes(cmd);
-        return result.data;
+        ByteArray array = buffers.acquire();
+        try {
+            readRecordFrames(fid, start, count, array);
+            return array.toArray();
+        } finally {
+            buffers.release(array);
+        }
+    }
+
+    /**
+     * Reads count records (0: all of them) from start, where 0 is the newest, into the cursor,
+     * oldest first. The record size comes from the file settings.
+     */
+    public RecordCursor readRecords(byte fid, int start, int count, RecordCursor cursor) throws IOException {
+        cursor = cursor == null ? new RecordCursor() : cursor;
+        FileSettings settings = recordFileSettings(fid);
+        ByteArray records = cursor.reset(settings.getRecordSize());
+        if (settings.getRecordCount() > start)
+            readRecordFrames(fid, start, count, records);
+        checkRecords(records, settings.getRecordSize());
+        cursor.filled();
+        return cursor;
+    }
+
+    /**
+     * Reads the records newer than lastSequence into the cursor, oldest first: the records carry
+     * their own sequence number, an unsigned little endian number of sequenceLength (1 to 4)
+     * bytes at sequenceOffset, which grows with each record written. A negative lastSequence
+     * reads them all. Records are read newest first, in batches which double in size, until
+     * one is no newer than lastSequence; the cursor then tells what to ask next time.
+     */
+    public RecordCursor readRecordsSince(byte fid, int sequenceOffset, int sequenceLength, long lastSequence,
+                                         RecordCursor cursor) throws IOException {
+        cursor = cursor == null ? new RecordCursor() : cursor;
+        FileSettings settings = recordFileSettings(fid);
+        int recordSize = settings.getRecordSize();
+        if (sequenceLength < 1 || sequenceLength > 4 || sequenceOffset < 0
+                || sequenceOffset + sequenceLength > recordSize)
+            throw new IllegalArgumentException("No room for the sequence number in " + recordSize + " byte records");
+
+        int total = settings.getRecordCount();
+        ArrayList<ByteArray> batches = new ArrayList<ByteArray>();
+        // Records of the last batch newer than lastSequence start here
+        int from = 0;
+        long newest = lastSequence;
+        try {
+            // Nothing to stop at: all of them in one go
+            int batch = lastSequence < 0 ? total : Math.max(1, getMaxDataSize() / recordSize);
+            for (int start = 0; start < total; start += batch, batch *= 2) {
+                int n = Math.min(batch, total - start);
+                ByteArray records = buffers.acquire();
+                batches.add(records);
+                readRecordFrames(fid, start, n, records);
+                if (records.length() != n * recordSize)
+                    throw new IOException("Expected " + n + " records, got " + records.length() + " bytes");
+
+                byte[] raw = records.rawData();
+                if (start == 0)
+                    newest = Math.max(newest, RecordCursor.unsigned(raw, (n - 1) * recordSize + sequenceOffset,
+                            sequenceLength));
+                int i = n - 1;
+                while (i >= 0 && RecordCursor.unsigned(raw, i * recordSize + sequenceOffset, sequenceLength)
+                        > lastSequence)
+                    --i;
+                if (i >= 0) {
+                    from = i + 1;
+                    break;
+                }
+            }
+
+            // Oldest first: the last batch read, from where the new records start, up to the first one
+            ByteArray records = cursor.reset(recordSize);
+            for (int b = batches.size() - 1; b >= 0; --b) {
+                ByteArray read = batches.get(b);
+                int skip = b == batches.size() - 1 ? from * recordSize : 0;
+                records.append(read.rawData(), skip, read.length() - skip);
+            }
+            cursor.filled();
+            cursor.setLastSequence(newest);
+            return cursor;
+        } finally {
+            for (ByteArray batch : batches)
+                buffers.release(batch);
+        }
+    }
+
+    // Settings from the card itself: the number of records changes with every write, ours or not
+    private FileSettings recordFileSettings(byte fid) throws IOException {
+        FileSettings settings = new FileSettings();
+        wrapMetadata(settings, new byte[]{(byte)0xf5, fid}, false);
+        if (!settings.isRecordFile())
+            throw new IllegalArgumentException("Not a record file: " + fid);
+        if (settings.getCommunicationMode() == CommunicationMode.ENCIPHERED)
+            throw new IllegalArgumentException("Enciphered record files are not supported");
+        return settings;
+    }
+
+    private static void checkRecords(ByteArray records, int recordSize) throws IOException {
+        if (records.length() % recordSize != 0)
+            throw new IOException("Records of " + recordSize + " bytes, got " + records.length() + " bytes");
+    }
+
+    // ReadRecords, and the additional frames the answer takes, appended to records
+    private void readRecordFrames(byte fid, int start, int count, ByteArray records) throws IOException {
+        ByteArray array = buffers.acquire();
+        byte[] cmd = array.append((byte)0xBB).append(fid).append(start, 3).append(count, 3).toArray();
+        buffers.release(array);
+
+        byte[] answer = transceive(cmd);
+        while (true) {
+            MifareResultType type = resultTypeOf(answer);
+            if (type == MifareResultType.EOF)
+                throw new IOException("No records there: " + ByteArray.byteArrayToHexString(answer));
+            records.append(answer, 1, answer.length - 1);
+            if (type == MifareResultType.SUCCESS)
+                return;
+            answer = transceive(new byte[]{(byte)0xAF});
+        }
+    }
+
+    public ReadMode getReadMode() {
+        return readMode;
+    }
+
+    public void setReadMode(ReadMode readMode) {
+        this.readMode = readMode;
     }
 
     public byte[] readFile(byte fid, int start, int count) throws IOException {
-        ByteArray ret = new ByteArray();
+        byte[] data = readMode == ReadMode.CHAINED
+                ? readFileChained(fid, start, count) : readFileSplit(fid, start, count);
+        imageRead(fid, start, data);
+        return data;
+    }
+
+    private byte[] readFileSplit(byte fid, int start, int count) throws IOException {
+        // Frames are kept as they arrive, and concatenated once at the end
+        ByteRope ret = new ByteRope();
+        ByteArray array = buffers.acquire();
 
         boolean done = false;
         int bytesToGo = count;
+        int maxDataSize = getMaxDataSize();
 
         while (!done) {
 
@@ -106,16 +440,14 @@ public class MifareDesfire {
             else
                 upTo = Math.min(maxDataSize, bytesToGo);
 
-            ByteArray array = new ByteArray();
-            byte[] cmd = array.append((byte)0xBD).append(fid).append(start, 3).append(upTo, 3).toArray();
+            byte[] cmd = readDataCommand(array, fid, start, upTo);
 
             MifareResult result = sendBytes(cmd);
 
             if (result.resultType == MifareResultType.EOF) {
                 // We reached the end of the file.
                 // Ensure we got anything that was left
-                array.clear();
-                cmd = array.append((byte)0xBD).append(fid).append(start, 3).append(0, 3).toArray();
+                cmd = readDataCommand(array, fid, start, 0);
                 result = sendBytes(cmd);
                 done = true;
             }
@@ -129,10 +461,133 @@ public class MifareDesfire {
                     done = true;
             }
         }
+        buffers.release(array);
         return ret.toArray();
     }
 
-    private void writeInternal(byte cmd, byte[] data, int file, int offset, int size) throws IOException {
+    /**
+     * Reads a file whose communication mode (see its settings) is the given one. Plain and MACed
+     * files read the same way (a session checks the MAC of every answer anyway). Enciphered files
+     * need an EV1 session, and count must not go past the end of the file.
+     */
+    public byte[] readFile(byte fid, int start, int count, CommunicationMode mode) throws IOException {
+        if (mode != CommunicationMode.ENCIPHERED)
+            return readFile(fid, start, count);
+
+        DesfireSession session = requireSession(mode);
+        SerialExecutor lane = new SerialExecutor(cryptoExecutor());
+        ArrayList<EncipheredAnswer> answers = new ArrayList<EncipheredAnswer>();
+        ArrayList<ByteArray> plain = new ArrayList<ByteArray>();
+        ByteArray array = buffers.acquire();
+        try {
+            if (count == 0 || readMode == ReadMode.CHAINED) {
+                plain.add(buffers.acquire());
+                answers.add(sendEnciphered(session, readDataCommand(array, fid, start, count),
+                        count == 0 ? -1 : count, plain.get(0), lane));
+            } else {
+                // Enough data for whole blocks, CRC included, to fill a frame
+                int blockSize = session.getBlockSize();
+                int chunk = Math.max(getMaxDataSize() / blockSize, 1) * blockSize - 4;
+                for (int done = 0; done < count; done += chunk) {
+                    int n = Math.min(chunk, count - done);
+                    ByteArray buffer = buffers.acquire();
+                    plain.add(buffer);
+                    // Each answer is deciphered while the next one is on the air
+                    answers.add(sendEnciphered(session, readDataCommand(array, fid, start + done, n), n, buffer, lane));
+                }
+            }
+
+            ByteRope ret = new ByteRope();
+            for (EncipheredAnswer answer : answers)
+                ret.append(answer.finish((byte)0x00));
+            // Only once the lane is done with them: after a failure, they are just dropped
+            for (ByteArray buffer : plain)
+                buffers.release(buffer);
+            byte[] data = ret.toArray();
+            imageRead(fid, start, data);
+            return data;
+        } catch (IOException e) {
+            endSession(session);
+            throw e;
+        } finally {
+            buffers.release(array);
+        }
+    }
+
+    // An enciphered read: the command is MACed as usual, the answer is left to the lane
+    private EncipheredAnswer sendEnciphered(DesfireSession session, byte[] cmd, int length, ByteArray buffer,
+                                            Executor lane) throws IOException {
+        session.commandSent(cmd);
+        EncipheredAnswer answer = new EncipheredAnswer(session, length, buffer, lane);
+        byte[] frame = exchange(cmd, 1);
+        while (true) {
+            if (frame == null || frame.length == 0)
+                throw new IOException("Transceive returned an empty response");
+            if (frame[0] != 0x00 && frame[0] != (byte)0xAF)
+                throw new IOException("Error in card response: " + ByteArray.byteArrayToHexString(frame));
+            answer.feed(frame, 1, frame.length - 1);
+            if (frame[0] == 0x00)
+                break;
+            frame = exchange(new byte[]{(byte)0xAF}, 1);
+        }
+        // The next command is MACed on from here, whatever the lane is doing
+        session.chainOn(answer.lastBlock(), 0);
+        return answer;
+    }
+
+    private DesfireSession requireSession(CommunicationMode mode) {
+        DesfireSession session = this.session;
+        if (session == null)
+            throw new IllegalStateException("Transfers in " + mode + " mode need an AES or ISO authentication first");
+        return session;
+    }
+
+    static <T> T await(CardFuture<T> future, String what) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while " + what);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Streams count bytes (0: up to the end) of a data file, from start. With a prefetcher,
+     * the next frame is read while the current one is consumed.
+     */
+    public DesfireFileInputStream openFileStream(byte fid, int start, int count, Executor prefetcher) {
+        return new DesfireFileInputStream(this, fid, start, count, prefetcher);
+    }
+
+    private byte[] readFileChained(byte fid, int start, int count) throws IOException {
+        ByteRope ret = new ByteRope();
+        ByteArray array = buffers.acquire();
+        MifareResult result = sendBytes(readDataCommand(array, fid, start, count));
+        if (result.resultType == MifareResultType.EOF) {
+            // Less than count bytes left: read up to the end of the file, as the split mode does
+            result = sendBytes(readDataCommand(array, fid, start, 0));
+        }
+        buffers.release(array);
+
+        ret.append(result.data);
+        while (result.resultType == MifareResultType.MORE_DATA) {
+            result = sendBytes(new byte[]{(byte)0xAF});
+            ret.append(result.data);
+        }
+        return ret.toArray();
+    }
+
+    private void writeInternal(byte cmd, byte[] data, int file, int offset, int size,
+                               CommunicationMode mode) throws IOException {
+        writeInternal(cmd, data, 0, file, offset, size, mode);
+    }
+
+    private void writeInternal(byte cmd, byte[] data, int dataOffset, int file, int offset, int size,
+                               CommunicationMode mode) throws IOException {
         int data_size;
 
         if (size == 0)
@@ -140,7 +595,22 @@ public class MifareDesfire {
         else
             data_size = size;
 
+        if (mode != CommunicationMode.PLAIN)
+            requireSession(mode);
+        if (mode == CommunicationMode.ENCIPHERED) {
+            writeEnciphered(cmd, data, dataOffset, file, offset, data_size);
+            imageWritten(cmd, file, offset, data, dataOffset, data_size);
+            applicationChanged();
+            return;
+        }
+
+        ByteArray args = buffers.acquire();
+        int maxDataSize = getMaxWriteDataSize();
+        if (mode == CommunicationMode.MACED)
+            maxDataSize -= DesfireSession.MAC_LENGTH;
+        int start = offset;
         int data_to_go = data_size;
+        int data_offset = dataOffset;
         while (data_to_go > 0) {
 
             int bytes_to_write;
@@ -151,42 +621,309 @@ public class MifareDesfire {
                 bytes_to_write = data_to_go;
 
 
-            ByteArray args = new ByteArray();
-            args.append(cmd).append((byte)file).append(offset, 3).append(bytes_to_write, 3)
-                .append(data, offset, bytes_to_write);
+            byte[] message = writeDataCommand(args, cmd, file, offset, data, data_offset, bytes_to_write);
 
-            data_to_go -= maxDataSize;
-            offset += maxDataSize;
+            data_to_go -= bytes_to_write;
+            data_offset += bytes_to_write;
+            offset += bytes_to_write;
 
-            byte[] message = args.toArray();
-            byte[] result = cardCommunicator.transceive(message);
+            byte[] result = transceive(message, mode);
             if (result == null || result.length == 0)
                 throw new IOException("Transceive returned an empty response");
 
             if (result[0] != 0)
                 throw new IOException("Transceive error: " + ByteArray.byteArrayToHexString(result));
         }
+        buffers.release(args);
+        imageWritten(cmd, file, start, data, dataOffset, data_size);
+        applicationChanged();
+    }
+
+    /**
+     * A single command, whatever the length: header in clear, then data, CRC32 (of command, header
+     * and data) and zero padding, enciphered in place in a pooled buffer and sent in additional
+     * frames. The lane enciphers the frames ahead of the one on the air.
+     */
+    private void writeEnciphered(byte cmd, byte[] data, int dataOffset, int file, int offset, int length)
+            throws IOException {
+        final DesfireSession session = this.session;
+        final int header = WRITE_HEADER_SIZE;
+        final int cipherLength = session.encipheredLength(length);
+        int blockSize = session.getBlockSize();
+        // The first frame carries the header, the additional ones just their 0xAF
+        int firstChunk = getCommandFrameSize() - header;
+        int chunk = getCommandFrameSize() - 1;
+
+        imageForget(cmd, file, offset, length);
+        ByteArray buffer = buffers.acquire();
+        buffer.append(cmd).append((byte)file).append(offset, 3).append(length, 3).append(data, dataOffset, length);
+        DesfireCrc.crc32().update(buffer, 0, buffer.length()).appendTo(buffer);
+        while (buffer.length() < header + cipherLength)
+            buffer.append((byte)0x00);
+        final byte[] raw = buffer.rawData();
+
+        // No CMAC on the command: the session IV goes straight into the encipherment
+        SerialExecutor lane = new SerialExecutor(cryptoExecutor());
+        ArrayList<CardFuture<Void>> enciphered = new ArrayList<CardFuture<Void>>();
+        int ready = 0;
+        for (int sent = 0; sent < cipherLength; ) {
+            final int from = header + ready;
+            int n = sent == 0 ? firstChunk : chunk;
+            sent += n;
+            int upTo = Math.min(cipherLength, (sent + blockSize - 1) / blockSize * blockSize);
+            final int count = upTo - ready;
+            ready = upTo;
+            final CardFuture<Void> frame = new CardFuture<Void>();
+            enciphered.add(frame);
+            lane.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (count > 0)
+                            session.encipher(raw, from, count);
+                        frame.complete(null);
+                    } catch (Exception e) {
+                        frame.fail(e);
+                    }
+                }
+            });
+        }
+
+        try {
+            byte[] answer = null;
+            int sent = 0;
+            for (int i = 0; i < enciphered.size(); ++i) {
+                await(enciphered.get(i), "enciphering");
+                int n = Math.min(i == 0 ? firstChunk : chunk, cipherLength - sent);
+                byte[] frame;
+                if (i == 0) {
+                    frame = Arrays.copyOf(raw, header + n);
+                } else {
+                    frame = new byte[1 + n];
+                    frame[0] = (byte)0xAF;
+                    System.arraycopy(raw, header + sent, frame, 1, n);
+                }
+                sent += n;
+
+                answer = exchange(frame, 1);
+                if (answer == null || answer.length == 0)
+                    throw new IOException("Transceive returned an empty response");
+                byte expected = i == enciphered.size() - 1 ? (byte)0x00 : (byte)0xAF;
+                if (answer[0] != expected)
+                    throw new IOException("Transceive error: " + ByteArray.byteArrayToHexString(answer));
+            }
+            session.answerReceived(answer);
+        } catch (IOException e) {
+            endSession(session);
+            throw e;
+        } finally {
+            // The buffer goes back once the lane is done with it
+            for (CardFuture<Void> frame : enciphered) {
+                try {
+                    await(frame, "enciphering");
+                } catch (IOException e) {
+                    // already reported, or nobody is waiting for it anymore
+                }
+            }
+            buffers.release(buffer);
+        }
+    }
+
+    // ReadData: 0xBD, file, offset (3), length (3). A length of 0 means "up to the end of the file"
+    byte[] readDataCommand(ByteArray array, byte fid, int start, int length) {
+        return array.clear().append((byte)0xBD).append(fid).append(start, 3).append(length, 3).toArray();
+    }
+
+    // WriteData (0x3D) and similar: command, file, offset (3), length (3), data
+    byte[] writeDataCommand(ByteArray array, byte cmd, int file, int offset, byte[] data, int dataOffset, int length) {
+        // Whatever sends it, the image can not tell what the file holds there any more
+        imageForget(cmd, file, offset, length);
+        return array.clear().append(cmd).append((byte)file).append(offset, 3).append(length, 3)
+                .append(data, dataOffset, length).toArray();
+    }
+
+    // Frame size the reader negotiated with the card, if the communicator knows it
+    int getFrameSize() {
+        if (cardCommunicator instanceof IFramedCardCommunicator) {
+            int frameSize = ((IFramedCardCommunicator)cardCommunicator).getMaxFrameSize();
+            if (frameSize > macSize)
+                return Math.min(frameSize, CARD_FRAME_SIZE);
+        }
+        return DEFAULT_FRAME_SIZE;
+    }
+
+    // Data the card puts in one answer frame, as ReadData asks for it
+    int getMaxDataSize() {
+        return getFrameSize() - macSize;
+    }
+
+    // Frame size for commands: what the reader negotiated, never more than a native frame
+    int getCommandFrameSize() {
+        if (cardCommunicator instanceof IFramedCardCommunicator) {
+            int frameSize = ((IFramedCardCommunicator)cardCommunicator).getMaxFrameSize();
+            if (frameSize > WRITE_HEADER_SIZE + macSize)
+                return Math.min(frameSize, CARD_FRAME_SIZE);
+        }
+        return CARD_FRAME_SIZE;
+    }
+
+    // Data a WriteData carries in one frame, after its header and room for the MAC
+    int getMaxWriteDataSize() {
+        return getCommandFrameSize() - WRITE_HEADER_SIZE - macSize;
+    }
+
+    /**
+     * Starts a batch of commands, sent to the card in as few exchanges as possible
+     */
+    public DesfireBatch batch() {
+        return new DesfireBatch(this);
     }
 
     public void writeFile(byte[] data, int file, int offset, int size) throws IOException {
-        writeInternal((byte)0x3D, data, file, offset, size);
+        writeInternal((byte)0x3D, data, file, offset, size, CommunicationMode.PLAIN);
+    }
+
+    // Writes a file whose communication mode (see its settings) is the given one
+    public void writeFile(byte[] data, int file, int offset, int size, CommunicationMode mode) throws IOException {
+        writeInternal((byte)0x3D, data, file, offset, size, mode);
+    }
+
+    /**
+     * A buffered stream writing file "file" from offset, which commits on close. With a sender,
+     * frames go to the card in the background while the caller keeps writing.
+     */
+    public DesfireFileOutputStream openFileOutputStream(int file, int offset, Executor sender) {
+        return new DesfireFileOutputStream(this, file, offset, sender, true);
     }
 
     public void commit() throws IOException {
-        byte[] result = cardCommunicator.transceive(new byte[]{(byte)0xC7});
+        applicationChanged();
+        ArrayList<PendingWrite> written = new ArrayList<PendingWrite>(pendingWrites);
+        pendingWrites.clear();
+        byte[] result = transceive(new byte[]{(byte)0xC7});
         if (result == null || result.length == 0)
             throw new IOException("Commit returned an empty response");
 
         if (!(result[0] == 0x00 || result[0] == 0x0C))
             throw new IOException("Commit error: " + ByteArray.byteArrayToHexString(result));
+        CardImageCache imageCache = this.imageCache;
+        if (imageCache != null && uid != null)
+            for (PendingWrite write : written)
+                imageCache.record(uid, write.aid, write.file, write.offset, write.data, 0, write.data.length);
+    }
+
+    /**
+     * Writes data at offset of a data file, where it differs from what the image cache knows
+     * the file to hold: ranges which changed (merged when that saves frames) are written in as
+     * few WriteData commands as they take. Without an image of the file, all of data is written.
+     * Nothing is committed; the image is updated by commit(). Returns the bytes sent.
+     */
+    public int writeFileChanges(byte[] data, int file, int offset, CommunicationMode mode) throws IOException {
+        CardImageCache imageCache = this.imageCache;
+        byte[] aid = selectedAid;
+        if (imageCache == null || uid == null || aid == null) {
+            writeInternal((byte)0x3D, data, file, offset, data.length, mode);
+            return data.length;
+        }
+
+        int frameData = getMaxWriteDataSize();
+        if (mode == CommunicationMode.MACED)
+            frameData -= DesfireSession.MAC_LENGTH;
+        int sent = 0;
+        int n = imageCache.changes(uid, aid, file, offset, data, 0, data.length, frameData, changes);
+        for (int i = 0; i < n; ++i) {
+            int from = changes.get(2 * i);
+            int length = changes.get(2 * i + 1);
+            writeInternal((byte)0x3D, data, from, file, offset + from, length, mode);
+            sent += length;
+        }
+        return sent;
+    }
+
+    private void imageRead(byte fid, int start, byte[] data) {
+        CardImageCache imageCache = this.imageCache;
+        byte[] aid = selectedAid;
+        if (imageCache != null && uid != null && aid != null)
+            imageCache.record(uid, aid, fid, start, data, 0, data.length);
+    }
+
+    private void imageForget(byte cmd, int file, int offset, int length) {
+        CardImageCache imageCache = this.imageCache;
+        if (imageCache == null || uid == null || cmd != 0x3D)
+            return;
+        byte[] aid = selectedAid;
+        if (aid != null)
+            imageCache.forget(uid, aid, file, offset, length);
+        else
+            imageCache.invalidate(uid);
+    }
+
+    // Written, not committed yet
+    private void imageWritten(byte cmd, int file, int offset, byte[] data, int dataOffset, int length) {
+        byte[] aid = selectedAid;
+        if (imageCache == null || uid == null || aid == null || cmd != 0x3D)
+            return;
+        PendingWrite write = new PendingWrite();
+        write.aid = aid;
+        write.file = file;
+        write.offset = offset;
+        write.data = Arrays.copyOfRange(data, dataOffset, dataOffset + length);
+        pendingWrites.add(write);
+    }
+
+    private static class PendingWrite {
+        byte[] aid;
+        int file;
+        int offset;
+        byte[] data;
     }
 
     public byte[] getFileSettings(byte fid) throws IOException {
-        return sendBytes(new byte[]{(byte)0xf5, fid}).data;
+        return sendMetadataCommand(selectedAid, new byte[]{(byte)0xf5, fid});
     }
 
     public byte[] getKeySettings() throws IOException {
-        return sendBytes(new byte[]{(byte)0x45}).data;
+        return sendMetadataCommand(selectedAid, new byte[]{(byte)0x45});
+    }
+
+    // The settings of file fid, in the given view; null makes a new one
+    public FileSettings getFileSettings(byte fid, FileSettings settings) throws IOException {
+        settings = settings == null ? new FileSettings() : settings;
+        wrapMetadata(settings, new byte[]{(byte)0xf5, fid}, true);
+        return settings;
+    }
+
+    public KeySettings getKeySettings(KeySettings settings) throws IOException {
+        settings = settings == null ? new KeySettings() : settings;
+        wrapMetadata(settings, new byte[]{(byte)0x45}, true);
+        return settings;
+    }
+
+    // Without a cache, the view goes over the answer itself, past the status: no copy
+    private void wrapMetadata(ResponseView view, byte[] cmd, boolean cached) throws IOException {
+        if (cached && metadataCache != null && uid != null && selectedAid != null) {
+            view.wrap(sendMetadataCommand(selectedAid, cmd));
+            return;
+        }
+        byte[] answer = transceive(cmd);
+        if (resultTypeOf(answer) != MifareResultType.SUCCESS)
+            throw new IOException("Unexpected answer: " + ByteArray.byteArrayToHexString(answer));
+        view.wrap(answer, 1, answer.length - 1);
+    }
+
+    // Commands whose answer depends on the card and application only: served from the cache when possible
+    private byte[] sendMetadataCommand(byte[] aid, byte[] cmd) throws IOException {
+        if (metadataCache == null || uid == null || aid == null)
+            return sendBytes(cmd).data;
+
+        byte[] data = metadataCache.get(uid, aid, cmd);
+        if (data != null)
+            return data;
+
+        MifareResult result = sendBytes(cmd);
+        // Partial (multi frame) answers are not worth keeping
+        if (result.resultType == MifareResultType.SUCCESS)
+            metadataCache.put(uid, aid, cmd, result.data);
+        return result.data;
     }
 
 
@@ -202,66 +939,195 @@ public class MifareDesfire {
     }
 
     public MifareResult sendBytes(byte[] cmd) throws IOException {
-        byte[] response = cardCommunicator.transceive(cmd);
+        return toResult(transceive(cmd));
+    }
+
+    // Sends a command, trying again as long as the policy says so
+    byte[] transceive(byte[] cmd) throws IOException {
+        return transceive(cmd, CommunicationMode.PLAIN);
+    }
+
+    private byte[] transceive(byte[] cmd, CommunicationMode mode) throws IOException {
+        DesfireSession session = this.session;
+        if (session != null) {
+            if (!DesfireSession.endsSession(cmd[0]))
+                return transceiveSecured(session, cmd, mode == CommunicationMode.MACED);
+            this.session = null;
+        }
+        for (int attempt = 1; ; ++attempt) {
+            try {
+                return exchange(cmd, attempt);
+            } catch (IOException e) {
+                pause(retryDelay(cmd, attempt, e));
+            }
+        }
+    }
 
+    // A single exchange, with the timeout the policy gives (and the deadline leaves)
+    byte[] exchange(byte[] cmd, int attempt) throws IOException {
+        Deadline deadline = this.deadline;
+        if (deadline.isExpired())
+            throw new IOException("Deadline exceeded");
+
+        if (cardCommunicator instanceof ITimeoutCardCommunicator) {
+            long timeout = Math.min(policy.getTimeout(cmd[0], attempt), deadline.remainingMillis());
+            ((ITimeoutCardCommunicator)cardCommunicator).setTimeout((int)Math.max(1, timeout));
+        }
+        long start = System.nanoTime();
+        byte[] answer = cardCommunicator.transceive(cmd);
+        policy.recordRoundTrip(cmd[0], (System.nanoTime() - start) / 1000);
+        return answer;
+    }
+
+    /**
+     * A command within an EV1 session. The MAC chain would not survive a retry, so there is none;
+     * answers in additional frames are collected here, as their CMAC covers them all.
+     */
+    private byte[] transceiveSecured(DesfireSession session, byte[] cmd, boolean maced) throws IOException {
+        try {
+            byte[] mac = session.commandSent(cmd);
+            byte[] frame = cmd;
+            if (maced)
+                frame = new ByteArray(cmd.length + DesfireSession.MAC_LENGTH).append(cmd)
+                        .append(mac, 0, DesfireSession.MAC_LENGTH).toArray();
+
+            byte[] answer = exchange(frame, 1);
+            if (answer != null && answer.length > 0 && answer[0] == (byte)0xAF) {
+                ByteRope data = new ByteRope();
+                while (answer != null && answer.length > 0 && answer[0] == (byte)0xAF) {
+                    data.append(answer, 1, answer.length - 1);
+                    answer = exchange(new byte[]{(byte)0xAF}, 1);
+                }
+                if (answer != null && answer.length > 0) {
+                    data.append(answer, 1, answer.length - 1);
+                    answer = ByteArray.from(answer[0]).append(data.toArray()).toArray();
+                }
+            }
+            if (answer == null || answer.length == 0)
+                throw new IOException("Transceive returned an empty response");
+
+            answer = session.answerReceived(answer);
+            // The card drops the authentication on any error
+            if (DesfireBatch.isError(answer))
+                endSession(session);
+            return answer;
+        } catch (IOException e) {
+            // Where the card stands in the MAC chain is unknown
+            endSession(session);
+            throw e;
+        }
+    }
+
+    // Commands sent by other means (e.g. AsyncMifareDesfire) leave the session behind
+    void endSession() {
+        session = null;
+    }
+
+    private void endSession(DesfireSession ended) {
+        if (session == ended)
+            session = null;
+    }
+
+    // Frames built in advance: in one exchange if the communicator can, unless a session MACs them one at a time
+    byte[][] transceiveFrames(byte[][] frames) throws IOException {
+        if (session == null)
+            return DesfireBatch.transceiveBatch(cardCommunicator, frames);
+
+        ArrayList<byte[]> answers = new ArrayList<byte[]>(frames.length);
+        for (byte[] frame : frames) {
+            byte[] answer = transceive(frame);
+            answers.add(answer);
+            if (DesfireBatch.isError(answer))
+                break;
+        }
+        return answers.toArray(new byte[answers.size()][]);
+    }
+
+    // True if transceiveFrames would send all the frames in a single exchange
+    boolean sendsFramesTogether() {
+        return session == null && cardCommunicator instanceof IBatchCardCommunicator;
+    }
+
+    // How long to wait before trying cmd again; throws the error if the policy gives up
+    private long retryDelay(byte[] cmd, int attempt, IOException error) throws IOException {
+        long delay = policy.getRetryDelay(cmd, attempt, error, deadline);
+        if (delay < 0)
+            throw error;
+        return delay;
+    }
+
+    private static void pause(long millis) throws IOException {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to try again");
+        }
+    }
+
+    MifareResult toResult(byte[] response) throws IOException {
         MifareResult result = new MifareResult();
+        result.resultType = resultTypeOf(response);
         result.data = ByteArray.appendCut(null, response);
+        return result;
+    }
+
+    static MifareResultType resultTypeOf(byte[] response) throws IOException {
+        if (response == null || response.length == 0)
+            throw new IOException("Transceive returned an empty response");
 
         switch (response[0]) {
             case (byte)0xAF:
-                result.resultType = MifareResultType.MORE_DATA;
-                break;
+                return MifareResultType.MORE_DATA;
 
             case (byte)0xBE:
-                result.resultType = MifareResultType.EOF;
-                break;
+                return MifareResultType.EOF;
 
             case (byte)0x00:
-                result.resultType = MifareResultType.SUCCESS;
-                break;
+                return MifareResultType.SUCCESS;
 
             default:
                 throw new IOException("Error in card response: " + ByteArray.byteArrayToHexString(response));
         }
-
-        return result;
     }
 
     public Challenge cardChallengeToCouplerChallenge(byte[] rndB, byte[] key)
             throws GeneralSecurityException {
 
-        Cipher decipher = this.getCipher(key);
-
         if (rndB == null || rndB.length < 9) {
             throw new IllegalArgumentException("Not a valid challenge (application not existing?)");
         }
 
-        rndB = ByteArray.appendCut(null, rndB);
+        Cipher decipher = this.getCipher(key);
+        try {
+            rndB = ByteArray.appendCut(null, rndB);
 
-        // We decrypt the challenge, and rotate one byte to the left
-        rndB = decipher.doFinal(rndB);
-        rndB = ByteArray.shiftLT(rndB);
+            // We decrypt the challenge, and rotate one byte to the left
+            rndB = decipher.doFinal(rndB);
+            rndB = ByteArray.shiftLT(rndB);
 
-        // Then we generate a random number as our challenge for the coupler
-        byte[] plainCouplerChallenge = new byte[8];
-        randomGenerator.nextBytes(plainCouplerChallenge);
+            // Then we generate a random number as our challenge for the coupler
+            byte[] plainCouplerChallenge = nonceSource.next(8);
 
-        byte[] rndA = decipher.doFinal(plainCouplerChallenge);
-        // XOR of rndA, rndB
-        rndB = ByteArray.xor(rndA, rndB);
-        // The result is encrypted again
-        rndB = decipher.doFinal(rndB);
+            byte[] rndA = decipher.doFinal(plainCouplerChallenge);
+            // XOR of rndA, rndB
+            rndB = ByteArray.xor(rndA, rndB);
+            // The result is encrypted again
+            rndB = decipher.doFinal(rndB);
 
-        // And sent back to the card
-        byte[] challengeMessage = ByteArray.from((byte)0xAF).append(rndA).append(rndB).toArray();
+            // And sent back to the card
+            byte[] challengeMessage = ByteArray.from((byte)0xAF).append(rndA).append(rndB).toArray();
 
-        return new Challenge(challengeMessage, plainCouplerChallenge);
+            return new Challenge(challengeMessage, plainCouplerChallenge);
+        } finally {
+            releaseCipher(key, decipher);
+        }
     }
 
     public boolean verifyCardResponse(byte[] cardResponse, byte[] originalPlainChallenge, byte[] key)
             throws GeneralSecurityException {
-        Cipher decipher = this.getCipher(key);
-
         if (cardResponse == null)
             return false;
 
@@ -269,8 +1135,13 @@ public class MifareDesfire {
             cardResponse = ByteArray.appendCut(null, cardResponse);
 
         if (cardResponse.length == 8) {
-            // We decrypt the response and shift the rightmost byte "all around" (to the left)
-            cardResponse = ByteArray.shiftRT(decipher.doFinal(cardResponse));
+            Cipher decipher = this.getCipher(key);
+            try {
+                // We decrypt the response and shift the rightmost byte "all around" (to the left)
+                cardResponse = ByteArray.shiftRT(decipher.doFinal(cardResponse));
+            } finally {
+                releaseCipher(key, decipher);
+            }
             if (Arrays.equals(cardResponse, originalPlainChallenge)) {
                 return true;
             }
@@ -282,42 +1153,121 @@ public class MifareDesfire {
         // Issue command 0x0A with the key number we want to use
         byte[] cmd = ByteArray.from((byte)0x0A).append(keyNumber).toArray();
         // Send the command to the key, receive the challenge
-        byte[] response = null;
-        for (int i = 0; i < 3; i++) {
+        return transceive(cmd);
+    }
+
+    public boolean authenticate(byte keyNumber, byte[] key) throws Exception {
+        byte[] cmd = ByteArray.from((byte)0x0A).append(keyNumber).toArray();
+        session = null;
+
+        // The card moves on with each frame: a failed handshake starts over from the challenge
+        for (int attempt = 1; ; ++attempt) {
             try {
-                response = cardCommunicator.transceive(cmd);
-                break;
-            } catch (Exception e) {
-                if (i == 2)
-                    throw e;
+                byte[] rndB = exchange(cmd, attempt);
+
+                Challenge challenge = cardChallengeToCouplerChallenge(rndB, key);
+
+                byte[] challengeMessage = challenge.getChallenge();
+                byte[] plainCouplerChallenge = challenge.getChallengeResponse();
+
+                byte[] cardResponse = exchange(challengeMessage, attempt);
+
+                return verifyCardResponse(cardResponse, plainCouplerChallenge, key);
+            } catch (IOException e) {
+                pause(retryDelay(cmd, attempt, e));
+            }
+        }
+    }
+
+    /**
+     * Authenticates with this card's key for the selected application, as derived by the diversifier.
+     */
+    public boolean authenticate(byte keyNumber, KeyDiversifier diversifier) throws Exception {
+        byte[] aid = selectedAid;
+        if (aid == null)
+            throw new IllegalStateException("No application known to be selected");
+        byte[] key = diversifier.diversify(uid, aid);
+        try {
+            // AES keys only work with AES authentication, 3K3DES keys with ISO authentication;
+            // 2K3DES keys go through legacy authentication, as any card takes it
+            switch (diversifier.getAlgorithm()) {
+                case AES_128:
+                    return authenticateAes(keyNumber, key);
+                case TDES_3K:
+                    return authenticateIso(keyNumber, key);
+                default:
+                    return authenticate(keyNumber, key);
             }
+        } finally {
+            Arrays.fill(key, (byte)0);
         }
+    }
 
-        return response;
+    /**
+     * EV1 AES authentication (0xAA) with a 16 byte key. On success, commands and answers are
+     * MACed with the session key until the session ends (see getSession).
+     */
+    public boolean authenticateAes(byte keyNumber, byte[] key) throws Exception {
+        return authenticateEv1(DesfireSession.Mode.AES, keyNumber, key);
     }
 
-    public boolean authenticate(byte keyNumber, byte[] key) throws Exception {
+    /**
+     * EV1 ISO authentication (0x1A) with a DES, 2K3DES or 3K3DES key; keeps a session, as
+     * authenticateAes does.
+     */
+    public boolean authenticateIso(byte keyNumber, byte[] key) throws Exception {
+        return authenticateEv1(DesfireSession.Mode.ISO, keyNumber, key);
+    }
 
-        byte[] rndB = getCardChallenge(keyNumber);
+    private boolean authenticateEv1(DesfireSession.Mode mode, byte keyNumber, byte[] key) throws Exception {
+        byte[] cmd = new byte[]{mode.getCommand(), keyNumber};
+        int length = DesfireSession.randomLength(mode, key);
+        session = null;
 
-        Challenge challenge = cardChallengeToCouplerChallenge(rndB, key);
+        Cipher encipher = DesfireSession.cipher(mode, key, Cipher.ENCRYPT_MODE);
+        Cipher decipher = DesfireSession.cipher(mode, key, Cipher.DECRYPT_MODE);
+        int blockSize = encipher.getBlockSize();
 
-        byte[] challengeMessage = challenge.getChallenge();
-        byte[] plainCouplerChallenge = challenge.getChallengeResponse();
+        // The card moves on with each frame: a lost frame starts the handshake over.
+        // Card errors are answers, not lost frames: they are not tried again.
+        for (int attempt = 1; ; ++attempt) {
+            byte[] answer;
+            try {
+                answer = exchange(cmd, attempt);
+            } catch (IOException e) {
+                pause(retryDelay(cmd, attempt, e));
+                continue;
+            }
+            MifareResult challenge = toResult(answer);
+            if (challenge.resultType != MifareResultType.MORE_DATA || challenge.data.length != length)
+                throw new IOException("Not a valid challenge: " + ByteArray.byteArrayToHexString(answer));
+
+            // Every step chains on the last block of the one before
+            byte[] iv = new byte[blockSize];
+            byte[] rndB = challenge.data;
+            DesfireSession.cbc(decipher, false, iv, rndB);
+
+            byte[] rndA = nonceSource.next(length);
+            byte[] token = new ByteArray(2 * length).append(rndA).append(ByteArray.shiftLT(rndB.clone())).toArray();
+            DesfireSession.cbc(encipher, true, iv, token);
 
-        byte[] cardResponse = null;
-        for (int i = 0; i < 3; i++) {
             try {
-                cardResponse = cardCommunicator.transceive(challengeMessage);
-                // on success, do not try again
-                break;
-            } catch (Exception e) {
-                if (i == 2)
-                    throw e;
+                answer = exchange(ByteArray.from((byte)0xAF).append(token).toArray(), attempt);
+            } catch (IOException e) {
+                pause(retryDelay(cmd, attempt, e));
+                continue;
             }
-        }
+            if (answer == null || answer.length != 1 + length || answer[0] != 0)
+                return false;
+
+            byte[] rotatedRndA = ByteArray.appendCut(null, answer);
+            DesfireSession.cbc(decipher, false, iv, rotatedRndA);
+            if (!Arrays.equals(rotatedRndA, ByteArray.shiftLT(rndA.clone())))
+                return false;
 
-        return verifyCardResponse(cardResponse, plainCouplerChallenge, key);
+            session = new DesfireSession(mode, keyNumber, DesfireSession.sessionKey(mode, key, rndA, rndB));
+            return true;
+        }
     }
 
     /**
@@ -327,10 +1277,14 @@ public class MifareDesfire {
      */
     public boolean connect() throws IOException {
         cardCommunicator.connect();
+        applicationSelected(PICC_AID);
+        session = null;
         return cardCommunicator.isConnected();
     }
 
     public void close() throws IOException {
+        applicationSelected(null);
+        session = null;
         cardCommunicator.close();
     }
 }
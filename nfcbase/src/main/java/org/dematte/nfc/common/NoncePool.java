@@ -0,0 +1,230 @@
+package org.dematte.nfc.common;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Random challenges (RndA) for authentication, generated ahead of time.
+ *
+ * A background thread keeps two bounded rings full: one of 8 byte nonces (DES, 3DES) and one of
+ * 16 byte nonces (3K3DES, AES). Taking one is a CAS, so authentication does not wait for
+ * the entropy source, nor for its (slow) seeding. When a ring is empty, the nonce is generated
+ * on the spot. Every nonce is handed out once; other sizes are always generated on the spot.
+ */
+public class NoncePool implements INonceSource {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static NoncePool defaultPool;
+
+    // Shared, so the entropy source is seeded once; the refill thread starts on first use
+    public static synchronized NoncePool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new NoncePool(DEFAULT_CAPACITY);
+            defaultPool.start();
+        }
+        return defaultPool;
+    }
+
+    // Created on first use: by the refill thread, unless a nonce is needed before
+    private SecureRandom random;
+    private final Ring shortNonces;
+    private final Ring longNonces;
+    // The refill thread; each one runs as long as it is this one
+    private volatile Thread refiller;
+    // Left by stop(), possibly still running: the next refill thread waits for it
+    private Thread retiring;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A pool keeping up to capacity nonces of each size (rounded up to a power of two).
+     * Nothing is generated in the background until start().
+     */
+    public NoncePool(int capacity) {
+        this(null, capacity);
+    }
+
+    public NoncePool(SecureRandom random, int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.random = random;
+        this.shortNonces = new Ring(8, capacity);
+        this.longNonces = new Ring(16, capacity);
+    }
+
+    public synchronized void start() {
+        if (refiller != null)
+            return;
+        final Thread previous = retiring;
+        retiring = null;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                // One producer at a time, as the rings need
+                awaitExit(previous);
+                refill();
+            }
+        }, "NoncePool");
+        thread.setDaemon(true);
+        refiller = thread;
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        Thread thread = refiller;
+        if (thread != null) {
+            refiller = null;
+            retiring = thread;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // A fresh nonce of the given length, owned by the caller
+    public byte[] next(int length) {
+        Ring ring = ringFor(length);
+        byte[] nonce = ring == null ? null : ring.take();
+        if (nonce != null) {
+            hits.incrementAndGet();
+            if (ring.depth() <= ring.lowWater)
+                wakeRefiller();
+            return nonce;
+        }
+        if (ring != null) {
+            misses.incrementAndGet();
+            wakeRefiller();
+        }
+        nonce = new byte[length];
+        random().nextBytes(nonce);
+        return nonce;
+    }
+
+    // Nonces of the given length ready to be taken
+    public int getDepth(int length) {
+        Ring ring = ringFor(length);
+        return ring == null ? 0 : (int)ring.depth();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    // Nonces generated on the spot, as the ring was empty
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "NoncePool: depth " + shortNonces.depth() + "/" + longNonces.depth() +
+                ", " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+
+    private synchronized SecureRandom random() {
+        if (random == null)
+            random = new SecureRandom();
+        return random;
+    }
+
+    private Ring ringFor(int length) {
+        if (length == 8)
+            return shortNonces;
+        if (length == 16)
+            return longNonces;
+        return null;
+    }
+
+    private void wakeRefiller() {
+        Thread thread = refiller;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    // Runs on the refill thread only: the single producer of both rings
+    private void refill() {
+        Thread self = Thread.currentThread();
+        SecureRandom random = random();
+        while (refiller == self) {
+            boolean added = true;
+            while (refiller == self && added) {
+                // Both rings a nonce at a time, so neither waits for the other to be full
+                added = shortNonces.fill(random);
+                added |= longNonces.fill(random);
+            }
+            // Woken up when a ring runs low; the timeout covers a missed wake up
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+        }
+    }
+
+    private static void awaitExit(Thread thread) {
+        if (thread == null)
+            return;
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Bounded ring with a single producer (the refill thread) and any number of consumers.
+     * A slot is filled before the put index moves past it, and emptied (getAndSet) by the
+     * consumer whose CAS on the take index claimed it.
+     */
+    private static class Ring {
+        final int length;
+        final int capacity;
+        final int lowWater;
+        private final int mask;
+        private final AtomicReferenceArray<byte[]> slots;
+        private final AtomicLong takeIndex = new AtomicLong();
+        private volatile long putIndex;
+
+        Ring(int length, int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+            this.length = length;
+            this.capacity = size;
+            this.lowWater = size / 2;
+            this.mask = size - 1;
+            this.slots = new AtomicReferenceArray<byte[]>(size);
+        }
+
+        long depth() {
+            return Math.max(0, putIndex - takeIndex.get());
+        }
+
+        byte[] take() {
+            while (true) {
+                long index = takeIndex.get();
+                if (index >= putIndex)
+                    return null;
+                if (takeIndex.compareAndSet(index, index + 1))
+                    return slots.getAndSet((int)(index & mask), null);
+            }
+        }
+
+        // Adds one nonce if there is room; false if full
+        boolean fill(SecureRandom random) {
+            long index = putIndex;
+            if (index - takeIndex.get() >= capacity)
+                return false;
+            int slot = (int)(index & mask);
+            // The consumer which claimed this slot last time round may not have emptied it yet
+            if (slots.get(slot) != null)
+                return false;
+            byte[] nonce = new byte[length];
+            random.nextBytes(nonce);
+            slots.set(slot, nonce);
+            putIndex = index + 1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps tags from being "selected" by the platform watchdog, which (on Android < 5) checks
+ * for presence whenever a tag is idle for 125 ms, and breaks slow (remote) transactions.
+ *
+ * A single scheduler thread re-arms every registered tag, instead of one thread per tap.
+ * The interval adapts: half the watchdog period, less the slowest recent re-arm, so a
+ * missed tick is still in time; tags which see traffic (touch()) are not pinged at all.
+ * A tag is dropped when it is gone, when the platform call fails, or after a maximum time.
+ */
+public class PresenceKeepalive {
+
+    public static final long DEFAULT_WATCHDOG_MILLIS = 125;
+    // The old per-tap thread gave up after 10 seconds too
+    public static final long DEFAULT_MAX_DURATION_MILLIS = 10000;
+
+    private static final long MIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private static PresenceKeepalive defaultKeepalive;
+
+    // Started on first use, and shared by all tags
+    public static synchronized PresenceKeepalive getDefault() {
+        if (defaultKeepalive == null)
+            defaultKeepalive = new PresenceKeepalive();
+        return defaultKeepalive;
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final long watchdogNanos;
+    private final long maxDurationNanos;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong pings = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    public PresenceKeepalive() {
+        this(newScheduler(), DEFAULT_WATCHDOG_MILLIS, DEFAULT_MAX_DURATION_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public PresenceKeepalive(ScheduledExecutorService scheduler, long watchdogPeriod, long maxDuration, TimeUnit unit) {
+        if (watchdogPeriod <= 0 || maxDuration <= 0)
+            throw new IllegalArgumentException("Periods must be positive");
+        this.scheduler = scheduler;
+        this.watchdogNanos = unit.toNanos(watchdogPeriod);
+        this.maxDurationNanos = unit.toNanos(maxDuration);
+    }
+
+    private static ScheduledExecutorService newScheduler() {
+        return new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PresenceKeepalive");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts keeping the tag alive; the first re-arm happens right away.
+     * The listener (may be null) is told if the tag goes away before cancel().
+     */
+    public Registration register(ITagService tag, ITagLostListener listener) {
+        Registration registration = new Registration(tag, listener);
+        active.incrementAndGet();
+        registration.schedule(0);
+        return registration;
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    // Re-arms sent, over all tags
+    public long getPingCount() {
+        return pings.get();
+    }
+
+    // Re-arms not needed, as the tag had traffic
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    public long getLostCount() {
+        return lost.get();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "PresenceKeepalive: " + active.get() + " tags, " + pings.get() + " pings, " +
+                skipped.get() + " skipped, " + lost.get() + " lost";
+    }
+
+    public class Registration implements Runnable {
+        private final ITagService tag;
+        private final ITagLostListener listener;
+        private final long started = System.nanoTime();
+
+        private volatile long lastActivity = started;
+        private volatile boolean done;
+        private ScheduledFuture<?> future;
+        // Slowest recent re-arm; decays, so one slow call is forgotten
+        private long worstPingNanos;
+
+        Registration(ITagService tag, ITagLostListener listener) {
+            this.tag = tag;
+            this.listener = listener;
+        }
+
+        // The tag just exchanged data, which re-arms the watchdog as well
+        public void touch() {
+            lastActivity = System.nanoTime();
+        }
+
+        public void cancel() {
+            ScheduledFuture<?> scheduled;
+            synchronized (this) {
+                if (done)
+                    return;
+                done = true;
+                scheduled = future;
+            }
+            active.decrementAndGet();
+            if (scheduled != null)
+                scheduled.cancel(false);
+        }
+
+        public boolean isActive() {
+            return !done;
+        }
+
+        public ITagService getTag() {
+            return tag;
+        }
+
+        public long getIntervalMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(interval());
+        }
+
+        private long interval() {
+            return Math.max(MIN_INTERVAL_NANOS, (watchdogNanos - worstPingNanos) / 2);
+        }
+
+        // Runs on the scheduler thread only
+        public void run() {
+            if (done)
+                return;
+            long now = System.nanoTime();
+            if (now - started > maxDurationNanos) {
+                cancel();
+                return;
+            }
+
+            long idle = now - lastActivity;
+            if (idle < interval()) {
+                skipped.incrementAndGet();
+                schedule(interval() - idle);
+                return;
+            }
+
+            boolean present;
+            try {
+                tag.rearm();
+                present = tag.isPresent();
+            } catch (IOException e) {
+                tagLost(e);
+                return;
+            } catch (RuntimeException e) {
+                tagLost(e);
+                return;
+            }
+            long end = System.nanoTime();
+            pings.incrementAndGet();
+            worstPingNanos = Math.max(end - now, worstPingNanos - (worstPingNanos >> 3));
+            lastActivity = end;
+
+            if (!present)
+                tagLost(null);
+            else
+                schedule(interval());
+        }
+
+        private void tagLost(Exception cause) {
+            if (done)
+                return;
+            cancel();
+            lost.incrementAndGet();
+            if (listener != null)
+                listener.onTagLost(tag, cause);
+        }
+
+        private void schedule(long delayNanos) {
+            synchronized (this) {
+                if (done)
+                    return;
+                try {
+                    future = scheduler.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // shut down
+                }
+            }
+            cancel();
+        }
+    }
+}
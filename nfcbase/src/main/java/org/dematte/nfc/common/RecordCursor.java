@@ -0,0 +1,133 @@
+package org.dematte.nfc.common;
+
+/**
+ * Records read from a record file, oldest first, one after the other in a single buffer.
+ * next() moves the cursor to the following record, whose fields are then read in place:
+ * no array per record. The same cursor can be filled again, by as many reads as needed.
+ */
+public class RecordCursor extends ResponseView {
+
+    private final ByteArray buffer = new ByteArray(256);
+    private int recordSize;
+    private int count;
+    private int index = -1;
+    // Sequence of the newest record read since records were last asked for; -1 if none
+    private long lastSequence = -1;
+
+    // Drops the records, and gets the buffer ready for records of the given size
+    ByteArray reset(int recordSize) {
+        if (recordSize <= 0)
+            throw new IllegalArgumentException("Bad record size: " + recordSize);
+        this.recordSize = recordSize;
+        this.count = 0;
+        this.index = -1;
+        return buffer.clear();
+    }
+
+    // Once the buffer is filled
+    void filled() {
+        count = buffer.length() / recordSize;
+        index = -1;
+    }
+
+    void setLastSequence(long lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+
+    @Override
+    protected int getMinLength() {
+        return 0;
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    // Records in the cursor
+    public int size() {
+        return count;
+    }
+
+    // Index of the current record; -1 before the first next()
+    public int position() {
+        return index;
+    }
+
+    public boolean hasNext() {
+        return index + 1 < count;
+    }
+
+    public boolean next() {
+        if (!hasNext())
+            return false;
+        ++index;
+        wrap(buffer.rawData(), index * recordSize, recordSize);
+        return true;
+    }
+
+    // Back before the first record
+    public void rewind() {
+        index = -1;
+    }
+
+    /**
+     * The highest sequence number seen by the last MifareDesfire.readRecordsSince, to hand to
+     * the next one; the one it was given if there was nothing new, -1 if it was never used.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    // Fields of the current record; numbers are little endian, as Desfire sends them
+    public int getByte(int at) {
+        current();
+        return u8(at);
+    }
+
+    public int getShort(int at) {
+        current();
+        return u16(at);
+    }
+
+    public int getInt24(int at) {
+        current();
+        return u24(at);
+    }
+
+    public int getInt(int at) {
+        current();
+        return s32(at);
+    }
+
+    // An unsigned little endian number of 1 to 4 bytes
+    public long getUnsigned(int at, int bytes) {
+        current();
+        if (bytes < 1 || bytes > 4 || at < 0 || at + bytes > recordSize)
+            throw new IndexOutOfBoundsException("Bad field: " + bytes + " bytes at " + at);
+        return unsigned(buffer.rawData(), index * recordSize + at, bytes);
+    }
+
+    // Copies the current record into dst, and returns its size
+    public int copyTo(byte[] dst, int dstOffset) {
+        current();
+        System.arraycopy(buffer.rawData(), index * recordSize, dst, dstOffset, recordSize);
+        return recordSize;
+    }
+
+    public byte[] getRecord() {
+        current();
+        return bytes(0, recordSize);
+    }
+
+    private void current() {
+        if (index < 0)
+            throw new IllegalStateException("No current record");
+    }
+
+    static long unsigned(byte[] data, int from, int bytes) {
+        long ret = 0;
+        for (int i = bytes - 1; i >= 0; --i)
+            ret = ret << 8 | (data[from + i] & 0xff);
+        return ret;
+    }
+}
@@ -0,0 +1,154 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+
+/**
+ * Writes every exchange of a communicator to a CardTrace: commands, answers or errors, when
+ * they started and how long they took (in nanoseconds), and whether they went as ISO APDUs.
+ * Connections and batches are recorded too; use wrap() to keep batch support. Several
+ * communicators can record to the same writer, each in its own session of the trace.
+ * To replay authentications, our challenges must be recorded as well: see recordNonces().
+ *
+ * Recording failures do not get in the way of the card: the first one stops the recording,
+ * and is kept for getRecordingError().
+ */
+public class RecordingCardCommunicator implements IFramedCardCommunicator, ITimeoutCardCommunicator {
+
+    protected final ICardCommunicator communicator;
+    protected final CardTraceWriter writer;
+    private final int session;
+    private volatile IOException recordingError;
+
+    public RecordingCardCommunicator(ICardCommunicator communicator, CardTraceWriter writer) throws IOException {
+        this.communicator = communicator;
+        this.writer = writer;
+        this.session = writer.session(isIsoMode(), communicator instanceof IBatchCardCommunicator, getMaxFrameSize());
+    }
+
+
+    // A recording communicator with the same capabilities (batches) as the given one
+    public static RecordingCardCommunicator wrap(ICardCommunicator communicator, CardTraceWriter writer)
+            throws IOException {
+        if (communicator instanceof IBatchCardCommunicator)
+            return new Batching((IBatchCardCommunicator)communicator, writer);
+        return new RecordingCardCommunicator(communicator, writer);
+    }
+
+    public ICardCommunicator getCommunicator() {
+        return communicator;
+    }
+
+    /**
+     * Nonces from source, written to the trace as they are handed out, for MifareDesfire.setNonceSource.
+     * Replays can then authenticate as the recording did. Mind that such a trace, like the
+     * traffic itself, is only as safe as the keys.
+     */
+    public INonceSource recordNonces(final INonceSource source) {
+        return new INonceSource() {
+            public byte[] next(int length) {
+                byte[] nonce = source.next(length);
+                long now = System.nanoTime();
+                record(CardTrace.NONCE, now, new byte[][]{nonce}, new byte[][]{null}, null);
+                return nonce;
+            }
+        };
+    }
+
+    public IOException getRecordingError() {
+        return recordingError;
+    }
+
+    public byte[] transceive(byte[] data) throws IOException {
+        long start = System.nanoTime();
+        byte[] answer;
+        try {
+            answer = communicator.transceive(data);
+        } catch (IOException e) {
+            record(CardTrace.EXCHANGE, start, new byte[][]{data}, null, e);
+            throw e;
+        }
+        record(CardTrace.EXCHANGE, start, new byte[][]{data}, new byte[][]{answer}, null);
+        return answer;
+    }
+
+    public int getMaxFrameSize() {
+        if (communicator instanceof IFramedCardCommunicator)
+            return ((IFramedCardCommunicator)communicator).getMaxFrameSize();
+        // Unknown: MifareDesfire falls back to its default
+        return 0;
+    }
+
+    public boolean isIsoMode() {
+        return communicator instanceof IFramedCardCommunicator
+                && ((IFramedCardCommunicator)communicator).isIsoMode();
+    }
+
+    public void setTimeout(int millis) {
+        if (communicator instanceof ITimeoutCardCommunicator)
+            ((ITimeoutCardCommunicator)communicator).setTimeout(millis);
+    }
+
+    public int getTimeout() {
+        if (communicator instanceof ITimeoutCardCommunicator)
+            return ((ITimeoutCardCommunicator)communicator).getTimeout();
+        return 0;
+    }
+
+    public void connect() throws IOException {
+        long start = System.nanoTime();
+        try {
+            communicator.connect();
+        } catch (IOException e) {
+            record(CardTrace.CONNECT, start, new byte[][]{null}, null, e);
+            throw e;
+        }
+        record(CardTrace.CONNECT, start, new byte[][]{null}, new byte[][]{null}, null);
+    }
+
+    public boolean isConnected() throws IOException {
+        return communicator.isConnected();
+    }
+
+    public void close() throws IOException {
+        long start = System.nanoTime();
+        try {
+            communicator.close();
+        } finally {
+            record(CardTrace.CLOSE, start, new byte[][]{null}, new byte[][]{null}, null);
+        }
+    }
+
+    void record(byte type, long start, byte[][] commands, byte[][] answers, IOException error) {
+        if (recordingError != null)
+            return;
+        long end = System.nanoTime();
+        boolean isoMode = commands.length > 0 && commands[0] != null
+                ? InstrumentedCardCommunicator.isIsoFrame(commands[0]) || isIsoMode() : isIsoMode();
+        try {
+            writer.exchange(session, type, isoMode, start, end, commands, answers,
+                    error == null ? null : String.valueOf(error.getMessage()));
+        } catch (IOException e) {
+            recordingError = e;
+        }
+    }
+
+    private static class Batching extends RecordingCardCommunicator implements IBatchCardCommunicator {
+
+        Batching(IBatchCardCommunicator communicator, CardTraceWriter writer) throws IOException {
+            super(communicator, writer);
+        }
+
+        public byte[][] transceiveBatch(byte[][] commands) throws IOException {
+            long start = System.nanoTime();
+            byte[][] answers;
+            try {
+                answers = ((IBatchCardCommunicator)communicator).transceiveBatch(commands);
+            } catch (IOException e) {
+                record(CardTrace.BATCH, start, commands, null, e);
+                throw e;
+            }
+            record(CardTrace.BATCH, start, commands, answers, null);
+            return answers;
+        }
+    }
+}
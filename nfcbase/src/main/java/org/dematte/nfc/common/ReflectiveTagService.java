@@ -0,0 +1,120 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * ITagService over the hidden Android NFC service (INfcTag), reached through reflection.
+ *
+ * Methods are looked up once per class, and cached: a keepalive calls them every few tens
+ * of milliseconds. Nothing here refers to Android classes, so any object with the same
+ * method names and signatures (e.g. a fake, on the JVM) works too.
+ */
+public class ReflectiveTagService implements ITagService {
+
+    // Looked up on first use; one set of classes per process in practice
+    private static volatile TagMethods tagMethods;
+    private static volatile ServiceMethods serviceMethods;
+
+    private final Object tagService;
+    private final int handle;
+    private final int technology;
+    private final ServiceMethods methods;
+
+    public ReflectiveTagService(Object tagService, int handle, int technology) throws IOException {
+        this.tagService = tagService;
+        this.handle = handle;
+        this.technology = technology;
+        this.methods = serviceMethods(tagService.getClass());
+    }
+
+    /**
+     * The service behind an android.nfc.Tag (Tag.getTagService, Tag.getServiceHandle),
+     * with technology 0, as the platform watchdog uses.
+     */
+    public static ReflectiveTagService forTag(Object tag) throws IOException {
+        TagMethods methods = tagMethods(tag.getClass());
+        Object service = invoke(methods.getTagService, tag);
+        int handle = (Integer)invoke(methods.getServiceHandle, tag);
+        return new ReflectiveTagService(service, handle, 0);
+    }
+
+    public void rearm() throws IOException {
+        invoke(methods.connect, tagService, handle, technology);
+    }
+
+    public boolean isPresent() throws IOException {
+        return (Boolean)invoke(methods.isPresent, tagService, handle);
+    }
+
+    public int getHandle() {
+        return handle;
+    }
+
+    private static TagMethods tagMethods(Class<?> c) throws IOException {
+        TagMethods methods = tagMethods;
+        if (methods == null || methods.type != c) {
+            methods = new TagMethods(c);
+            tagMethods = methods;
+        }
+        return methods;
+    }
+
+    private static ServiceMethods serviceMethods(Class<?> c) throws IOException {
+        ServiceMethods methods = serviceMethods;
+        if (methods == null || methods.type != c) {
+            methods = new ServiceMethods(c);
+            serviceMethods = methods;
+        }
+        return methods;
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws IOException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            // e.g. a RemoteException: the NFC service is gone
+            throw new IOException(String.valueOf(e.getCause()));
+        } catch (IllegalAccessException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static Method lookup(Class<?> c, String name, Class<?>... parameters) throws IOException {
+        try {
+            Method method = c.getMethod(name, parameters);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException e) {
+            throw new IOException("No " + name + " in " + c.getName() + ": not supported on this platform");
+        } catch (SecurityException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static class TagMethods {
+        final Class<?> type;
+        final Method getTagService;
+        final Method getServiceHandle;
+
+        TagMethods(Class<?> type) throws IOException {
+            this.type = type;
+            this.getTagService = lookup(type, "getTagService");
+            this.getServiceHandle = lookup(type, "getServiceHandle");
+        }
+    }
+
+    // android.nfc.INfcTag$Stub$Proxy
+    private static class ServiceMethods {
+        final Class<?> type;
+        final Method connect;
+        final Method isPresent;
+
+        ServiceMethods(Class<?> type) throws IOException {
+            this.type = type;
+            this.connect = lookup(type, "connect", int.class, int.class);
+            this.isPresent = lookup(type, "isPresent", int.class);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.dematte.nfc.common;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the answers of a CardTrace back, in order: with the recorded exchange times, or at
+ * full speed. Errors are thrown again, connections and closes take their recorded time.
+ *
+ * Strict replays (the default) check that each command is the recorded one, and fail as soon
+ * as the code under test goes its own way; lenient ones serve the answers whatever is sent.
+ * Use of() to get batch support when the recording had it, and getNonceSource() to authenticate
+ * with the recorded challenges. A replay serves a single recording (session) of the trace, the
+ * first one unless told otherwise: cards which shared a trace writer are replayed one by one.
+ */
+public class ReplayCardCommunicator implements IFramedCardCommunicator {
+
+    private final List<CardTrace.Entry> entries;
+    private final boolean realTime;
+    private final boolean isoMode;
+    private final int maxFrameSize;
+    private boolean strict = true;
+    private int position;
+    private int noncePosition;
+    private boolean connected;
+
+    public ReplayCardCommunicator(CardTrace trace, boolean realTime) {
+        this(trace, 0, realTime);
+    }
+
+    // Replays the given recording of the trace (see CardTrace.Entry.getSession)
+    public ReplayCardCommunicator(CardTrace trace, int session, boolean realTime) {
+        this.entries = trace.getEntries(session);
+        this.realTime = realTime;
+        CardTrace.Entry recording = trace.getSession(session);
+        this.isoMode = recording != null && recording.isIsoMode();
+        this.maxFrameSize = recording == null ? 0 : (int)recording.getDurationNanos();
+    }
+
+    // A replay with the same capabilities (batches) as the recorded communicator
+    public static ReplayCardCommunicator of(CardTrace trace, boolean realTime) {
+        return of(trace, 0, realTime);
+    }
+
+    public static ReplayCardCommunicator of(CardTrace trace, int session, boolean realTime) {
+        CardTrace.Entry recording = trace.getSession(session);
+        if (recording != null && (recording.getFlags() & CardTrace.BATCHING) != 0)
+            return new Batching(trace, session, realTime);
+        return new ReplayCardCommunicator(trace, session, realTime);
+    }
+
+    public synchronized ReplayCardCommunicator setStrict(boolean strict) {
+        this.strict = strict;
+        return this;
+    }
+
+    // Entries served so far
+    public synchronized int getPosition() {
+        return position;
+    }
+
+    public synchronized boolean isFinished() {
+        return nextExchange(position) < 0;
+    }
+
+    public synchronized void rewind() {
+        position = 0;
+        noncePosition = 0;
+    }
+
+    // The recorded nonces, in order, for MifareDesfire.setNonceSource
+    public INonceSource getNonceSource() {
+        return new INonceSource() {
+            public byte[] next(int length) {
+                return nextNonce(length);
+            }
+        };
+    }
+
+    public byte[] transceive(byte[] data) throws IOException {
+        CardTrace.Entry entry = next(CardTrace.EXCHANGE, new byte[][]{data});
+        return replay(entry)[0];
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    public boolean isIsoMode() {
+        return isoMode;
+    }
+
+    public void connect() throws IOException {
+        CardTrace.Entry entry;
+        synchronized (this) {
+            entry = nextIfAny(CardTrace.CONNECT);
+        }
+        if (entry != null)
+            replay(entry);
+        synchronized (this) {
+            connected = true;
+        }
+    }
+
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    public void close() throws IOException {
+        CardTrace.Entry entry;
+        synchronized (this) {
+            entry = nextIfAny(CardTrace.CLOSE);
+            connected = false;
+        }
+        if (entry != null)
+            replay(entry);
+    }
+
+    // The next exchange (or batch), checked against what was sent
+    synchronized CardTrace.Entry next(byte type, byte[][] commands) throws IOException {
+        int at = nextExchange(position);
+        // Lenient replays skip what the code under test does not send anymore
+        while (!strict && at >= 0 && entries.get(at).getType() != type)
+            at = nextExchange(at + 1);
+        if (at < 0)
+            throw new IOException("End of the trace after " + position + " entries");
+        CardTrace.Entry entry = entries.get(at);
+        if (strict && (entry.getType() != type || !Arrays.deepEquals(entry.getCommands(), commands)))
+            throw new IOException("Replay diverged at entry " + at + ": sent "
+                    + describe(commands) + ", recorded " + describe(entry.getCommands()));
+        position = at + 1;
+        return entry;
+    }
+
+    // Waits as long as the recorded exchange took, then answers or fails as it did
+    byte[][] replay(CardTrace.Entry entry) throws IOException {
+        if (realTime && entry.getDurationNanos() > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(entry.getDurationNanos());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while replaying");
+            }
+        }
+        if (entry.isFailed())
+            throw new IOException(entry.getError());
+        byte[][] answers = entry.getAnswers();
+        byte[][] ret = new byte[answers.length][];
+        // Callers may change what they get
+        for (int i = 0; i < answers.length; ++i)
+            ret[i] = answers[i] == null ? null : answers[i].clone();
+        return ret;
+    }
+
+    private synchronized byte[] nextNonce(int length) {
+        while (noncePosition < entries.size()) {
+            CardTrace.Entry entry = entries.get(noncePosition++);
+            if (entry.getType() == CardTrace.NONCE && entry.getCommands()[0].length == length)
+                return entry.getCommands()[0].clone();
+        }
+        throw new IllegalStateException("No recorded nonce left");
+    }
+
+    // Connections and closes are only consumed when they come next
+    private CardTrace.Entry nextIfAny(byte type) {
+        while (position < entries.size() && (entries.get(position).getType() == CardTrace.SESSION
+                || entries.get(position).getType() == CardTrace.NONCE))
+            ++position;
+        if (position < entries.size() && entries.get(position).getType() == type)
+            return entries.get(position++);
+        return null;
+    }
+
+    private int nextExchange(int from) {
+        for (int at = from; at < entries.size(); ++at) {
+            byte type = entries.get(at).getType();
+            if (type == CardTrace.EXCHANGE || type == CardTrace.BATCH)
+                return at;
+        }
+        return -1;
+    }
+
+    private static String describe(byte[][] commands) {
+        StringBuilder ret = new StringBuilder();
+        for (byte[] command : commands) {
+            if (ret.length() > 0)
+                ret.append(' ');
+            ret.append(command == null ? "-" : ByteArray.byteArrayToHexString(command));
+        }
+        return ret.toString();
+    }
+
+    private static class Batching extends ReplayCardCommunicator implements IBatchCardCommunicator {
+
+        Batching(CardTrace trace, int session, boolean realTime) {
+            super(trace, session, realTime);
+        }
+
+        public byte[][] transceiveBatch(byte[][] commands) throws IOException {
+            return replay(next(CardTrace.BATCH, commands));
+        }
+    }
+}
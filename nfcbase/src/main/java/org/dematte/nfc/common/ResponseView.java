@@ -0,0 +1,85 @@
+package org.dematte.nfc.common;
+
+/**
+ * A typed view over the data of a card answer: fields are decoded when asked for, straight
+ * from the buffer, which is neither copied nor changed. wrap() points a view at another
+ * answer, so views can be kept and reused from tap to tap.
+ */
+public abstract class ResponseView {
+
+    private byte[] data;
+    private int offset;
+    private int length;
+
+    // Answer data only (no status), as MifareDesfire returns it
+    public ResponseView wrap(byte[] data) {
+        return wrap(data, 0, data.length);
+    }
+
+    public ResponseView wrap(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || length > data.length - offset)
+            throw new IndexOutOfBoundsException();
+        if (length < getMinLength())
+            throw new IllegalArgumentException("Answer too short: " + length + " bytes");
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    public boolean isWrapped() {
+        return data != null;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // Smallest answer the view makes sense of
+    protected abstract int getMinLength();
+
+    protected int u8(int at) {
+        return data[offset + check(at, 1)] & 0xff;
+    }
+
+    // Little endian, as Desfire sends numbers
+    protected int u16(int at) {
+        int from = offset + check(at, 2);
+        return (data[from] & 0xff) | (data[from + 1] & 0xff) << 8;
+    }
+
+    protected int u24(int at) {
+        int from = offset + check(at, 3);
+        return (data[from] & 0xff) | (data[from + 1] & 0xff) << 8 | (data[from + 2] & 0xff) << 16;
+    }
+
+    protected int s32(int at) {
+        int from = offset + check(at, 4);
+        return (data[from] & 0xff) | (data[from + 1] & 0xff) << 8 | (data[from + 2] & 0xff) << 16
+                | (data[from + 3] & 0xff) << 24;
+    }
+
+    // A copy of n bytes from at, for the few fields which are byte strings
+    protected byte[] bytes(int at, int n) {
+        byte[] ret = new byte[n];
+        System.arraycopy(data, offset + check(at, n), ret, 0, n);
+        return ret;
+    }
+
+    private int check(int at, int n) {
+        if (data == null)
+            throw new IllegalStateException("Nothing wrapped yet");
+        if (at < 0 || at + n > length)
+            throw new IndexOutOfBoundsException("Field at " + at + " past the answer (" + length + " bytes)");
+        return at;
+    }
+
+    @Override
+    public String toString() {
+        if (data == null)
+            return getClass().getSimpleName() + "[]";
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        return getClass().getSimpleName() + "[" + ByteArray.byteArrayToHexString(copy) + "]";
+    }
+}
@@ -0,0 +1,45 @@
+package org.dematte.nfc.common;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were given, on another executor: e.g. the
+ * cipher work of a transfer, which must see its blocks in order, and can not share a Cipher.
+ */
+class SerialExecutor implements Executor {
+
+    private final Executor executor;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+    private boolean running;
+
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (SerialExecutor.this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }
+    };
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void execute(Runnable task) {
+        synchronized (this) {
+            tasks.add(task);
+            if (running)
+                return;
+            running = true;
+        }
+        executor.execute(drain);
+    }
+}
@@ -0,0 +1,891 @@
+package org.dematte.nfc.common;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A software Mifare Desfire card, speaking the native command set used by MifareDesfire.
+ *
+ * Meant for load and latency tests on a plain JVM: each transceive is one exchange, and can
+ * be delayed (latency + jitter) or fail (fault injection) as configured. Batches of commands
+ * are run in a single exchange, as a remote coupler able to batch would do.
+ * The card starts with the master application (000000) selected, holding a zero DES key.
+ * Legacy (0x0A), ISO (0x1A) and AES (0xAA) authentication are understood; after the last two,
+ * answers carry their CMAC, and writes to MACed files are checked, as on an EV1 card.
+ */
+public class SimulatedDesfireCard implements IBatchCardCommunicator, IFramedCardCommunicator,
+        ITimeoutCardCommunicator {
+
+    // Status codes, as returned by a real card
+    public static final byte OPERATION_OK = (byte)0x00;
+    public static final byte NO_CHANGES = (byte)0x0C;
+    public static final byte ILLEGAL_COMMAND_CODE = (byte)0x1C;
+    public static final byte INTEGRITY_ERROR = (byte)0x1E;
+    public static final byte NO_SUCH_KEY = (byte)0x40;
+    public static final byte LENGTH_ERROR = (byte)0x7E;
+    public static final byte APPLICATION_NOT_FOUND = (byte)0xA0;
+    public static final byte AUTHENTICATION_ERROR = (byte)0xAE;
+    public static final byte ADDITIONAL_FRAME = (byte)0xAF;
+    public static final byte BOUNDARY_ERROR = (byte)0xBE;
+    public static final byte FILE_NOT_FOUND = (byte)0xF0;
+
+    // File types, as reported by GetFileSettings
+    public static final byte STANDARD_DATA_FILE = 0x00;
+    public static final byte BACKUP_DATA_FILE = 0x01;
+    public static final byte LINEAR_RECORD_FILE = 0x03;
+    public static final byte CYCLIC_RECORD_FILE = 0x04;
+
+    // Maximum number of data bytes the card puts in a single response frame
+    public static final int MAX_FRAME_DATA = 59;
+
+    private static final byte[] MASTER_AID = new byte[]{0x00, 0x00, 0x00};
+
+    public enum Fault {
+        // transceive throws, as when the tag leaves the field
+        TAG_LOST,
+        // transceive returns an empty answer
+        EMPTY_RESPONSE,
+        // one bit of the answer is flipped
+        CORRUPT_RESPONSE
+    }
+
+    public static class DesfireFile {
+        private final byte type;
+        private final byte commMode;
+        private final int accessRights;
+        private final int recordSize;
+        private final int maxRecords;
+        private byte[] content;
+        private byte[] shadow;
+        private final List<byte[]> records = new ArrayList<byte[]>();
+
+        DesfireFile(byte type, byte commMode, int accessRights, int size, int recordSize, int maxRecords) {
+            this.type = type;
+            this.commMode = commMode;
+            this.accessRights = accessRights;
+            this.recordSize = recordSize;
+            this.maxRecords = maxRecords;
+            this.content = new byte[size];
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public int getRecordCount() {
+            return records.size();
+        }
+
+        byte[] settings() {
+            ByteArray ret = new ByteArray(17).append(type).append(commMode).append(accessRights, 2);
+            if (isRecordFile())
+                ret.append(recordSize, 3).append(maxRecords, 3).append(records.size(), 3);
+            else
+                ret.append(content.length, 3);
+            return ret.toArray();
+        }
+
+        boolean isRecordFile() {
+            return type == LINEAR_RECORD_FILE || type == CYCLIC_RECORD_FILE;
+        }
+
+        byte[] writable() {
+            if (type != BACKUP_DATA_FILE)
+                return content;
+            if (shadow == null)
+                shadow = content.clone();
+            return shadow;
+        }
+
+        boolean commit() {
+            if (shadow == null)
+                return false;
+            content = shadow;
+            shadow = null;
+            return true;
+        }
+
+        void abort() {
+            shadow = null;
+        }
+    }
+
+    public static class Application {
+        private final byte keySettings;
+        private final byte[][] keys;
+        private final LinkedHashMap<Byte, DesfireFile> files = new LinkedHashMap<Byte, DesfireFile>();
+
+        Application(byte keySettings, int keyCount) {
+            this.keySettings = keySettings;
+            this.keys = new byte[keyCount][];
+            for (int i = 0; i < keyCount; ++i)
+                keys[i] = new byte[8];
+        }
+
+        public Application setKey(int keyNumber, byte[] key) {
+            MifareDesfire.tripleDesKey(key); // validates the length
+            keys[keyNumber] = key.clone();
+            return this;
+        }
+
+        public Application addStandardFile(byte fid, byte commMode, int accessRights, byte[] content) {
+            DesfireFile file = new DesfireFile(STANDARD_DATA_FILE, commMode, accessRights, content.length, 0, 0);
+            System.arraycopy(content, 0, file.content, 0, content.length);
+            files.put(fid, file);
+            return this;
+        }
+
+        public Application addBackupFile(byte fid, byte commMode, int accessRights, byte[] content) {
+            DesfireFile file = new DesfireFile(BACKUP_DATA_FILE, commMode, accessRights, content.length, 0, 0);
+            System.arraycopy(content, 0, file.content, 0, content.length);
+            files.put(fid, file);
+            return this;
+        }
+
+        public Application addRecordFile(byte fid, boolean cyclic, byte commMode, int accessRights,
+                                         int recordSize, int maxRecords) {
+            files.put(fid, new DesfireFile(cyclic ? CYCLIC_RECORD_FILE : LINEAR_RECORD_FILE, commMode,
+                    accessRights, 0, recordSize, maxRecords));
+            return this;
+        }
+
+        // Appends a record, as a committed WriteRecord would. Cyclic files drop the oldest one when full
+        public Application addRecord(byte fid, byte[] record) {
+            DesfireFile file = getFile(fid);
+            if (file == null || !file.isRecordFile() || record.length != file.recordSize)
+                throw new IllegalArgumentException("Not a record file, or wrong record size");
+            if (file.records.size() == file.maxRecords) {
+                if (file.type != CYCLIC_RECORD_FILE)
+                    throw new IllegalStateException("Record file is full");
+                file.records.remove(0);
+            }
+            file.records.add(record.clone());
+            return this;
+        }
+
+        public DesfireFile getFile(byte fid) {
+            return files.get(fid);
+        }
+    }
+
+    private final byte[] uid;
+    private final LinkedHashMap<String, Application> applications = new LinkedHashMap<String, Application>();
+    private final Random random;
+
+    private Application selected;
+    private boolean connected;
+    private int authenticatedKey = -1;
+
+    // Multi-frame state: pending response data, pending write, or authentication in progress
+    private final ByteArray pendingResponse = new ByteArray();
+    private int pendingResponseOffset;
+    private int pendingFrameSize = MAX_FRAME_DATA;
+    private DesfireFile pendingWriteFile;
+    private int pendingWriteOffset;
+    private int pendingWriteToGo;
+    // Enciphered write: the command as received so far, and its full length
+    private final ByteArray pendingCipher = new ByteArray();
+    private int pendingCipherLength;
+    private int authKeyNumber = -1;
+    private byte[] authRndB;
+    // EV1 authentication in progress (null for legacy), and its chained IV
+    private DesfireSession.Mode authMode;
+    private byte[] authIv;
+    // Left by an EV1 authentication
+    private DesfireSession session;
+    private boolean answerMacked;
+
+    private long latencyNanos;
+    private long jitterNanos;
+    private int timeoutMillis;
+    private double faultRate;
+    private Fault fault = Fault.TAG_LOST;
+    private int forcedFaults;
+    private long frameCount;
+    private long exchangeCount;
+    private long faultCount;
+
+    public SimulatedDesfireCard(byte[] uid) {
+        this(uid, 0);
+    }
+
+    // A fixed seed makes challenges, jitter and faults repeatable between runs
+    public SimulatedDesfireCard(byte[] uid, long seed) {
+        this.uid = uid.clone();
+        this.random = new Random(seed);
+        this.selected = new Application((byte)0x0F, 1);
+        applications.put(ByteArray.byteArrayToHexString(MASTER_AID), selected);
+    }
+
+    // Status code and data
+    public int getMaxFrameSize() {
+        return MAX_FRAME_DATA + 1;
+    }
+
+    public boolean isIsoMode() {
+        return false;
+    }
+
+    public byte[] getUid() {
+        return uid.clone();
+    }
+
+    public synchronized Application addApplication(byte[] aid, byte keySettings, int keyCount) {
+        if (aid.length != 3)
+            throw new IllegalArgumentException("AIDs are 3 bytes long");
+        Application application = new Application(keySettings, keyCount);
+        applications.put(ByteArray.byteArrayToHexString(aid), application);
+        return application;
+    }
+
+    public synchronized Application getApplication(byte[] aid) {
+        return applications.get(ByteArray.byteArrayToHexString(aid));
+    }
+
+    // Fixed delay added to every frame
+    public synchronized SimulatedDesfireCard setLatency(long latency, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    // Uniformly distributed extra delay, between 0 and jitter, added to every frame
+    public synchronized SimulatedDesfireCard setJitter(long jitter, TimeUnit unit) {
+        this.jitterNanos = unit.toNanos(jitter);
+        return this;
+    }
+
+    // Exchanges slower than this (latency and jitter) fail, as on a reader; 0 waits forever
+    public synchronized void setTimeout(int millis) {
+        this.timeoutMillis = millis;
+    }
+
+    public synchronized int getTimeout() {
+        return timeoutMillis;
+    }
+
+    // Probability (0..1) that a frame fails with the given fault
+    public synchronized SimulatedDesfireCard setFaultRate(double faultRate, Fault fault) {
+        this.faultRate = faultRate;
+        this.fault = fault;
+        return this;
+    }
+
+    // Makes the next "exchanges" exchanges fail with the given fault, regardless of the fault rate
+    public synchronized SimulatedDesfireCard injectFaults(int exchanges, Fault fault) {
+        this.forcedFaults = exchanges;
+        this.fault = fault;
+        return this;
+    }
+
+    // Commands processed by the card
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    // Round trips: one per transceive, or per batch
+    public synchronized long getExchangeCount() {
+        return exchangeCount;
+    }
+
+    public synchronized long getFaultCount() {
+        return faultCount;
+    }
+
+    public synchronized void resetCounters() {
+        frameCount = 0;
+        exchangeCount = 0;
+        faultCount = 0;
+    }
+
+    public synchronized byte[] transceive(byte[] data) throws IOException {
+        return transceiveBatch(new byte[][]{data})[0];
+    }
+
+    public synchronized byte[][] transceiveBatch(byte[][] commands) throws IOException {
+        if (!connected)
+            throw new IOException("Tag is not connected");
+
+        ++exchangeCount;
+        delay();
+
+        Fault exchangeFault = nextFault();
+        if (exchangeFault == Fault.TAG_LOST) {
+            connected = false;
+            throw new IOException("Tag was lost.");
+        }
+
+        ArrayList<byte[]> responses = new ArrayList<byte[]>(commands.length);
+        for (byte[] command : commands) {
+            ++frameCount;
+            byte[] response = process(command);
+            responses.add(response);
+            if (DesfireBatch.isError(response))
+                break;
+        }
+
+        // Faults hit the last answer of the exchange
+        int last = responses.size() - 1;
+        if (exchangeFault == Fault.EMPTY_RESPONSE)
+            responses.set(last, new byte[0]);
+        if (exchangeFault == Fault.CORRUPT_RESPONSE) {
+            byte[] response = responses.get(last);
+            response[random.nextInt(response.length)] ^= (byte)(1 << random.nextInt(8));
+        }
+        return responses.toArray(new byte[responses.size()][]);
+    }
+
+    public synchronized void connect() throws IOException {
+        connected = true;
+        selected = applications.get(ByteArray.byteArrayToHexString(MASTER_AID));
+        resetState();
+    }
+
+    public synchronized boolean isConnected() throws IOException {
+        return connected;
+    }
+
+    public synchronized void close() throws IOException {
+        connected = false;
+    }
+
+    private void delay() throws IOException {
+        long nanos = latencyNanos;
+        if (jitterNanos > 0)
+            nanos += (long)(random.nextDouble() * jitterNanos);
+        if (nanos <= 0)
+            return;
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean timedOut = timeoutNanos > 0 && nanos > timeoutNanos;
+        try {
+            TimeUnit.NANOSECONDS.sleep(timedOut ? timeoutNanos : nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the card");
+        }
+        // The frame never made it to the card
+        if (timedOut)
+            throw new IOException("Transceive timed out");
+    }
+
+    private Fault nextFault() {
+        if (forcedFaults > 0) {
+            --forcedFaults;
+            ++faultCount;
+            return fault;
+        }
+        if (faultRate > 0 && random.nextDouble() < faultRate) {
+            ++faultCount;
+            return fault;
+        }
+        return null;
+    }
+
+    private void resetState() {
+        pendingResponse.clear();
+        pendingResponseOffset = 0;
+        pendingFrameSize = MAX_FRAME_DATA;
+        pendingWriteFile = null;
+        pendingCipher.clear();
+        pendingCipherLength = 0;
+        authKeyNumber = -1;
+        authRndB = null;
+        authMode = null;
+        authIv = null;
+    }
+
+    private byte[] process(byte[] cmd) {
+        if (cmd == null || cmd.length == 0)
+            return status(LENGTH_ERROR);
+        // A native frame: the command (or 0xAF) and at most MAX_FRAME_DATA bytes
+        if (cmd.length > MAX_FRAME_DATA + 1) {
+            resetState();
+            return error(LENGTH_ERROR);
+        }
+
+        byte command = cmd[0];
+        if (command == ADDITIONAL_FRAME)
+            return continueFrame(cmd);
+
+        // Any new command aborts a multi-frame exchange
+        resetState();
+
+        answerMacked = false;
+        if (DesfireSession.endsSession(command))
+            session = null;
+        if (session == null)
+            return dispatch(cmd);
+
+        // EV1 session: every command goes in the MAC chain, successful answers get a MAC
+        try {
+            // Enciphered data is chained on the IV as it is: no CMAC of the command
+            if (isWrite(cmd, (byte)0x03))
+                return startEncipheredWrite(cmd);
+            if (isWrite(cmd, (byte)0x01)) {
+                int end = cmd.length - DesfireSession.MAC_LENGTH;
+                byte[] body = Arrays.copyOf(cmd, end);
+                byte[] mac = session.commandSent(body);
+                if (!Arrays.equals(Arrays.copyOf(mac, DesfireSession.MAC_LENGTH), Arrays.copyOfRange(cmd, end, cmd.length)))
+                    return error(AUTHENTICATION_ERROR);
+                cmd = body;
+            } else {
+                session.commandSent(cmd);
+            }
+            byte[] response = dispatch(cmd);
+            if (session == null || answerMacked || response[0] != OPERATION_OK)
+                return response;
+            byte[] mac = session.answerMac(OPERATION_OK, response, 1, response.length - 1);
+            return new ByteArray(response.length + mac.length).append(response).append(mac).toArray();
+        } catch (IOException e) {
+            return error(AUTHENTICATION_ERROR);
+        }
+    }
+
+    // A WriteData to a file with the given communication mode (MACed or enciphered)
+    private boolean isWrite(byte[] cmd, byte commMode) {
+        if (cmd[0] != 0x3D || cmd.length < 8 + DesfireSession.MAC_LENGTH)
+            return false;
+        DesfireFile file = selected.getFile(cmd[1]);
+        return file != null && file.commMode == commMode;
+    }
+
+    private byte[] dispatch(byte[] cmd) {
+        switch (cmd[0]) {
+            case 0x60:
+                return getVersion();
+            case 0x6a:
+                return getApplicationIds();
+            case 0x5a:
+                return selectApplication(cmd);
+            case 0x6f:
+                return getFileIds();
+            case (byte)0xBD:
+                return readData(cmd);
+            case (byte)0xBB:
+                return readRecords(cmd);
+            case 0x3D:
+                return writeData(cmd);
+            case (byte)0xC7:
+                return commitTransaction();
+            case (byte)0xf5:
+                return getFileSettings(cmd);
+            case 0x45:
+                return status(OPERATION_OK, selected.keySettings, (byte)selected.keys.length);
+            case 0x0A:
+                return authenticate(cmd);
+            case 0x1A:
+                return authenticateEv1(cmd, DesfireSession.Mode.ISO);
+            case (byte)0xAA:
+                return authenticateEv1(cmd, DesfireSession.Mode.AES);
+            default:
+                return error(ILLEGAL_COMMAND_CODE);
+        }
+    }
+
+    private byte[] continueFrame(byte[] cmd) {
+        if (authKeyNumber >= 0 && authMode != null)
+            return completeEv1Authentication(cmd);
+        if (authKeyNumber >= 0)
+            return completeAuthentication(cmd);
+
+        if (pendingCipherLength > 0) {
+            if (pendingCipher.length() + cmd.length - 1 > pendingCipherLength)
+                return error(LENGTH_ERROR);
+            pendingCipher.append(cmd, 1, cmd.length - 1);
+            if (pendingCipher.length() < pendingCipherLength)
+                return status(ADDITIONAL_FRAME);
+            return completeEncipheredWrite();
+        }
+
+        if (pendingWriteFile != null) {
+            int n = cmd.length - 1;
+            if (n > pendingWriteToGo) {
+                resetState();
+                return error(LENGTH_ERROR);
+            }
+            System.arraycopy(cmd, 1, pendingWriteFile.writable(), pendingWriteOffset, n);
+            pendingWriteOffset += n;
+            pendingWriteToGo -= n;
+            if (pendingWriteToGo > 0)
+                return status(ADDITIONAL_FRAME);
+            pendingWriteFile = null;
+            return status(OPERATION_OK);
+        }
+
+        if (pendingResponseOffset < pendingResponse.length())
+            return nextResponseFrame();
+
+        return error(ILLEGAL_COMMAND_CODE);
+    }
+
+    // Queues a (possibly long) answer, and returns its first frame
+    private byte[] respond(byte[] data, int offset, int length) {
+        pendingResponse.clear().append(data, offset, length);
+        pendingResponseOffset = 0;
+        if (session != null) {
+            // The MAC covers the whole answer, and comes at its very end
+            try {
+                pendingResponse.append(session.answerMac(OPERATION_OK, data, offset, length));
+            } catch (IOException e) {
+                return error(AUTHENTICATION_ERROR);
+            }
+            answerMacked = true;
+        }
+        return nextResponseFrame();
+    }
+
+    // Data, CRC32 of data and status, zero padding: enciphered on the session IV, with no MAC
+    private byte[] respondEnciphered(byte[] data, int offset, int length) {
+        ByteArray plain = new ByteArray(session.encipheredLength(length)).append(data, offset, length);
+        DesfireCrc.crc32().update(data, offset, length).update(OPERATION_OK).appendTo(plain);
+        while (plain.length() < session.encipheredLength(length))
+            plain.append((byte)0x00);
+        try {
+            session.encipher(plain.rawData(), 0, plain.length());
+        } catch (GeneralSecurityException e) {
+            return error(AUTHENTICATION_ERROR);
+        }
+        pendingResponse.clear().append(plain.rawData(), 0, plain.length());
+        pendingResponseOffset = 0;
+        answerMacked = true;
+        return nextResponseFrame();
+    }
+
+    private byte[] nextResponseFrame() {
+        int left = pendingResponse.length() - pendingResponseOffset;
+        int n = Math.min(left, pendingFrameSize);
+        pendingFrameSize = MAX_FRAME_DATA;
+        byte code = n < left ? ADDITIONAL_FRAME : OPERATION_OK;
+
+        byte[] frame = new byte[n + 1];
+        frame[0] = code;
+        System.arraycopy(pendingResponse.rawData(), pendingResponseOffset, frame, 1, n);
+        pendingResponseOffset += n;
+        if (code == OPERATION_OK)
+            resetState();
+        return frame;
+    }
+
+    private byte[] getVersion() {
+        ByteArray version = new ByteArray(28);
+        // Hardware, then software: vendor NXP, type, subtype, version 1.0, 4K storage, ISO 14443-2 and -3
+        version.append(new byte[]{0x04, 0x01, 0x01, 0x01, 0x00, 0x18, 0x05});
+        version.append(new byte[]{0x04, 0x01, 0x01, 0x01, 0x04, 0x18, 0x05});
+        // UID, batch number, production week and year
+        version.append(uid, 0, Math.min(uid.length, 7));
+        for (int i = uid.length; i < 7; ++i)
+            version.append((byte)0);
+        version.append(new byte[]{(byte)0xBA, 0x34, 0x49, 0x23, 0x00, 0x15, 0x10});
+
+        if (session != null)
+            return respond(version.rawData(), 0, version.length());
+
+        // Software version comes in the second frame, UID and production data in the third
+        pendingResponse.clear().append(version.rawData(), 7, 21);
+        pendingResponseOffset = 0;
+        pendingFrameSize = 7;
+        return status(ADDITIONAL_FRAME, version.toArray(), 0, 7);
+    }
+
+    private byte[] getApplicationIds() {
+        ByteArray aids = new ByteArray();
+        for (String aid : applications.keySet()) {
+            byte[] bytes = ByteArray.hexStringToByteArray(aid);
+            if (!Arrays.equals(bytes, MASTER_AID))
+                aids.append(bytes);
+        }
+        return respond(aids.rawData(), 0, aids.length());
+    }
+
+    private byte[] selectApplication(byte[] cmd) {
+        if (cmd.length != 4)
+            return error(LENGTH_ERROR);
+        Application application = applications.get(ByteArray.byteArrayToHexString(Arrays.copyOfRange(cmd, 1, 4)));
+        if (application == null)
+            return error(APPLICATION_NOT_FOUND);
+        // Selecting an application aborts the transaction of the one selected before
+        for (DesfireFile file : selected.files.values())
+            file.abort();
+        selected = application;
+        authenticatedKey = -1;
+        return status(OPERATION_OK);
+    }
+
+    private byte[] getFileIds() {
+        ByteArray fids = new ByteArray();
+        for (Byte fid : selected.files.keySet())
+            fids.append(fid);
+        return status(OPERATION_OK, fids.toArray(), 0, fids.length());
+    }
+
+    private byte[] getFileSettings(byte[] cmd) {
+        if (cmd.length != 2)
+            return error(LENGTH_ERROR);
+        DesfireFile file = selected.getFile(cmd[1]);
+        if (file == null)
+            return error(FILE_NOT_FOUND);
+        byte[] settings = file.settings();
+        return status(OPERATION_OK, settings, 0, settings.length);
+    }
+
+    private byte[] readData(byte[] cmd) {
+        if (cmd.length != 8)
+            return error(LENGTH_ERROR);
+        DesfireFile file = selected.getFile(cmd[1]);
+        if (file == null || file.isRecordFile())
+            return error(FILE_NOT_FOUND);
+
+        int offset = toInt(cmd, 2);
+        int length = toInt(cmd, 5);
+        if (length == 0)
+            length = file.content.length - offset;
+        if (offset > file.content.length || length < 0 || offset + length > file.content.length)
+            return error(BOUNDARY_ERROR);
+
+        if (session != null && file.commMode == 0x03)
+            return respondEnciphered(file.content, offset, length);
+        return respond(file.content, offset, length);
+    }
+
+    private byte[] readRecords(byte[] cmd) {
+        if (cmd.length != 8)
+            return error(LENGTH_ERROR);
+        DesfireFile file = selected.getFile(cmd[1]);
+        if (file == null || !file.isRecordFile())
+            return error(FILE_NOT_FOUND);
+
+        // Offset 0 is the newest record; records are returned oldest first
+        int newest = file.records.size() - toInt(cmd, 2);
+        int count = toInt(cmd, 5);
+        if (count == 0)
+            count = newest;
+        if (newest <= 0 || count > newest)
+            return error(BOUNDARY_ERROR);
+
+        ByteArray data = new ByteArray(count * file.recordSize);
+        for (int i = newest - count; i < newest; ++i)
+            data.append(file.records.get(i));
+        return respond(data.rawData(), 0, data.length());
+    }
+
+    private byte[] writeData(byte[] cmd) {
+        if (cmd.length < 8)
+            return error(LENGTH_ERROR);
+        DesfireFile file = selected.getFile(cmd[1]);
+        if (file == null || file.isRecordFile())
+            return error(FILE_NOT_FOUND);
+
+        int offset = toInt(cmd, 2);
+        int length = toInt(cmd, 5);
+        int n = cmd.length - 8;
+        if (n > length)
+            return error(LENGTH_ERROR);
+        if (offset + length > file.content.length)
+            return error(BOUNDARY_ERROR);
+
+        System.arraycopy(cmd, 8, file.writable(), offset, n);
+        if (n == length)
+            return status(OPERATION_OK);
+
+        // The rest of the data comes in additional frames
+        pendingWriteFile = file;
+        pendingWriteOffset = offset + n;
+        pendingWriteToGo = length - n;
+        return status(ADDITIONAL_FRAME);
+    }
+
+    // Header in clear, then the enciphered data, CRC and padding, possibly in additional frames
+    private byte[] startEncipheredWrite(byte[] cmd) {
+        DesfireFile file = selected.getFile(cmd[1]);
+        int offset = toInt(cmd, 2);
+        int length = toInt(cmd, 5);
+        if (offset + length > file.content.length)
+            return error(BOUNDARY_ERROR);
+        int total = 8 + session.encipheredLength(length);
+        if (cmd.length > total)
+            return error(LENGTH_ERROR);
+
+        pendingCipher.clear().append(cmd);
+        if (cmd.length < total) {
+            pendingCipherLength = total;
+            return status(ADDITIONAL_FRAME);
+        }
+        return completeEncipheredWrite();
+    }
+
+    private byte[] completeEncipheredWrite() {
+        byte[] cmd = pendingCipher.toArray();
+        resetState();
+        DesfireFile file = selected.getFile(cmd[1]);
+        int offset = toInt(cmd, 2);
+        int length = toInt(cmd, 5);
+        try {
+            session.decipher(cmd, 8, cmd.length - 8);
+            int at = 8 + length;
+            if (!DesfireCrc.crc32().update(cmd, 0, at).matches(cmd, at))
+                return error(INTEGRITY_ERROR);
+            for (int i = at + 4; i < cmd.length; ++i)
+                if (cmd[i] != 0)
+                    return error(INTEGRITY_ERROR);
+
+            System.arraycopy(cmd, 8, file.writable(), offset, length);
+            answerMacked = true;
+            return status(OPERATION_OK, session.answerMac(OPERATION_OK, cmd, 0, 0));
+        } catch (GeneralSecurityException e) {
+            return error(INTEGRITY_ERROR);
+        } catch (IOException e) {
+            return error(AUTHENTICATION_ERROR);
+        }
+    }
+
+    private byte[] commitTransaction() {
+        boolean changed = false;
+        for (DesfireFile file : selected.files.values())
+            changed |= file.commit();
+        return status(changed ? OPERATION_OK : NO_CHANGES);
+    }
+
+    private byte[] authenticate(byte[] cmd) {
+        if (cmd.length != 2)
+            return error(LENGTH_ERROR);
+        int keyNumber = cmd[1] & 0xff;
+        if (keyNumber >= selected.keys.length)
+            return error(NO_SUCH_KEY);
+
+        authenticatedKey = -1;
+        authKeyNumber = keyNumber;
+        authRndB = new byte[8];
+        random.nextBytes(authRndB);
+        try {
+            // The coupler deciphers what we send, so we encipher
+            byte[] encRndB = cipher(selected.keys[keyNumber]).doFinal(authRndB);
+            return status(ADDITIONAL_FRAME, encRndB, 0, encRndB.length);
+        } catch (GeneralSecurityException e) {
+            resetState();
+            return error(AUTHENTICATION_ERROR);
+        }
+    }
+
+    private byte[] completeAuthentication(byte[] cmd) {
+        int keyNumber = authKeyNumber;
+        byte[] rndB = authRndB;
+        resetState();
+
+        if (cmd.length != 17)
+            return error(LENGTH_ERROR);
+        try {
+            Cipher cipher = cipher(selected.keys[keyNumber]);
+            byte[] encRndA = Arrays.copyOfRange(cmd, 1, 9);
+            byte[] rndA = cipher.doFinal(encRndA);
+            byte[] rotatedRndB = ByteArray.xor(cipher.doFinal(Arrays.copyOfRange(cmd, 9, 17)), encRndA);
+
+            if (!Arrays.equals(rotatedRndB, ByteArray.shiftLT(rndB)))
+                return error(AUTHENTICATION_ERROR);
+
+            authenticatedKey = keyNumber;
+            byte[] response = cipher.doFinal(ByteArray.shiftLT(rndA));
+            return status(OPERATION_OK, response, 0, response.length);
+        } catch (GeneralSecurityException e) {
+            return error(AUTHENTICATION_ERROR);
+        }
+    }
+
+    private byte[] authenticateEv1(byte[] cmd, DesfireSession.Mode mode) {
+        if (cmd.length != 2)
+            return error(LENGTH_ERROR);
+        int keyNumber = cmd[1] & 0xff;
+        if (keyNumber >= selected.keys.length)
+            return error(NO_SUCH_KEY);
+
+        authenticatedKey = -1;
+        byte[] key = ev1Key(selected.keys[keyNumber], mode);
+        try {
+            byte[] rndB = new byte[DesfireSession.randomLength(mode, key)];
+            random.nextBytes(rndB);
+            authIv = new byte[mode == DesfireSession.Mode.AES ? 16 : 8];
+            byte[] encRndB = rndB.clone();
+            DesfireSession.cbc(DesfireSession.cipher(mode, key, Cipher.ENCRYPT_MODE), true, authIv, encRndB);
+            authKeyNumber = keyNumber;
+            authRndB = rndB;
+            authMode = mode;
+            return status(ADDITIONAL_FRAME, encRndB, 0, encRndB.length);
+        } catch (GeneralSecurityException e) {
+            resetState();
+            return error(AUTHENTICATION_ERROR);
+        }
+    }
+
+    private byte[] completeEv1Authentication(byte[] cmd) {
+        int keyNumber = authKeyNumber;
+        byte[] rndB = authRndB;
+        DesfireSession.Mode mode = authMode;
+        byte[] iv = authIv;
+        resetState();
+
+        if (cmd.length != 1 + 2 * rndB.length)
+            return error(LENGTH_ERROR);
+        byte[] key = ev1Key(selected.keys[keyNumber], mode);
+        try {
+            byte[] token = Arrays.copyOfRange(cmd, 1, cmd.length);
+            DesfireSession.cbc(DesfireSession.cipher(mode, key, Cipher.DECRYPT_MODE), false, iv, token);
+            byte[] rndA = Arrays.copyOf(token, rndB.length);
+            byte[] rotatedRndB = Arrays.copyOfRange(token, rndB.length, token.length);
+            if (!Arrays.equals(rotatedRndB, ByteArray.shiftLT(rndB.clone())))
+                return error(AUTHENTICATION_ERROR);
+
+            byte[] response = ByteArray.shiftLT(rndA.clone());
+            DesfireSession.cbc(DesfireSession.cipher(mode, key, Cipher.ENCRYPT_MODE), true, iv, response);
+            authenticatedKey = keyNumber;
+            session = new DesfireSession(mode, (byte)keyNumber, DesfireSession.sessionKey(mode, key, rndA, rndB));
+            return status(OPERATION_OK, response, 0, response.length);
+        } catch (GeneralSecurityException e) {
+            return error(AUTHENTICATION_ERROR);
+        }
+    }
+
+    // Keys are stored as given; AES takes 16 bytes, and a DES key (e.g. the zero default) twice
+    private static byte[] ev1Key(byte[] key, DesfireSession.Mode mode) {
+        if (mode != DesfireSession.Mode.AES || key.length == 16)
+            return key;
+        return Arrays.copyOf(new ByteArray(16).append(key).append(key).toArray(), 16);
+    }
+
+    public synchronized int getAuthenticatedKey() {
+        return authenticatedKey;
+    }
+
+    private static Cipher cipher(byte[] key) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(MifareDesfire.tripleDesKey(key), "DESede"));
+        return cipher;
+    }
+
+    // 3 bytes, least significant first
+    private static int toInt(byte[] data, int from) {
+        return (data[from] & 0xff) | (data[from + 1] & 0xff) << 8 | (data[from + 2] & 0xff) << 16;
+    }
+
+    private byte[] error(byte code) {
+        authenticatedKey = -1;
+        session = null;
+        return status(code);
+    }
+
+    private static byte[] status(byte code, byte... data) {
+        return status(code, data, 0, data.length);
+    }
+
+    private static byte[] status(byte code, byte[] data, int offset, int length) {
+        byte[] ret = new byte[length + 1];
+        ret[0] = code;
+        System.arraycopy(data, offset, ret, 1, length);
+        return ret;
+    }
+}
@@ -0,0 +1,109 @@
+package org.dematte.nfc.remote;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One non-blocking connection: frames in, frames out, through direct buffers.
+ *
+ * Any thread can enqueue frames; reading and flushing belong to the selector thread.
+ */
+class FrameConnection {
+
+    interface FrameHandler {
+        void onFrame(int session, int request, byte type, byte[] payload) throws IOException;
+    }
+
+    final SocketChannel channel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(RemoteProtocol.BUFFER_SIZE);
+    // Kept flipped ("ready to drain") between flushes
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(RemoteProtocol.BUFFER_SIZE);
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+    // Frame being copied into writeBuffer, when it did not fit at once
+    private ByteBuffer current;
+
+    FrameConnection(SocketChannel channel) {
+        this.channel = channel;
+        writeBuffer.flip();
+    }
+
+    void enqueue(ByteBuffer frame) {
+        outbound.add(frame);
+    }
+
+    boolean hasPendingWrites() {
+        return writeBuffer.hasRemaining() || current != null || !outbound.isEmpty();
+    }
+
+    // Writes as much as the socket takes; returns true if everything queued was written
+    boolean flush() throws IOException {
+        while (true) {
+            if (!writeBuffer.hasRemaining()) {
+                writeBuffer.clear();
+                fill();
+                writeBuffer.flip();
+                if (!writeBuffer.hasRemaining())
+                    return true;
+            }
+            channel.write(writeBuffer);
+            if (writeBuffer.hasRemaining())
+                return false;
+        }
+    }
+
+    // Gathers queued frames into the write buffer, so that small frames go out in a single write
+    private void fill() {
+        while (writeBuffer.hasRemaining()) {
+            if (current == null) {
+                current = outbound.poll();
+                if (current == null)
+                    return;
+            }
+            int n = Math.min(current.remaining(), writeBuffer.remaining());
+            int limit = current.limit();
+            current.limit(current.position() + n);
+            writeBuffer.put(current);
+            current.limit(limit);
+            if (!current.hasRemaining())
+                current = null;
+        }
+    }
+
+    // Reads what is available, and hands over every complete frame; returns false at end of stream
+    boolean read(FrameHandler handler) throws IOException {
+        if (channel.read(readBuffer) < 0)
+            return false;
+
+        readBuffer.flip();
+        try {
+            while (readBuffer.remaining() >= 4) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length < RemoteProtocol.HEADER_SIZE || length > RemoteProtocol.MAX_FRAME_SIZE)
+                    throw new IOException("Bad frame length: " + length);
+                if (readBuffer.remaining() < 4 + length)
+                    break;
+
+                readBuffer.getInt();
+                int session = readBuffer.getInt();
+                int request = readBuffer.getInt();
+                byte type = readBuffer.get();
+                byte[] payload = new byte[length - RemoteProtocol.HEADER_SIZE];
+                readBuffer.get(payload);
+                handler.onFrame(session, request, type, payload);
+            }
+        } finally {
+            readBuffer.compact();
+        }
+        return true;
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.dematte.nfc.remote;
+
+import org.dematte.nfc.common.ICardCommunicator;
+
+import java.io.IOException;
+
+/**
+ * Provides the card behind each session opened on a RemoteCardServer
+ */
+public interface ICardCommunicatorFactory {
+
+    public ICardCommunicator open(int session) throws IOException;
+}
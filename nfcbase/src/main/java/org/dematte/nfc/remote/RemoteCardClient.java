@@ -0,0 +1,190 @@
+package org.dematte.nfc.remote;
+
+import org.dematte.nfc.common.CardFuture;
+import org.dematte.nfc.common.ICardCallback;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client side of the remote coupler: a single connection to a RemoteCardServer, carrying
+ * the frames of many card sessions (see openSession).
+ *
+ * Requests are pipelined: any number of sessions can have a request in flight, up to
+ * maxInFlight for the whole connection; past that, senders wait (back-pressure).
+ * A selector thread does all the socket I/O, and completes the answers.
+ */
+public class RemoteCardClient {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final FrameConnection connection;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final Semaphore inFlight;
+    private final ConcurrentHashMap<Integer, CardFuture<byte[]>> pending = new ConcurrentHashMap<Integer, CardFuture<byte[]>>();
+    private final AtomicInteger nextRequest = new AtomicInteger();
+    private final AtomicInteger nextSession = new AtomicInteger();
+
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    private final FrameConnection.FrameHandler handler = new FrameConnection.FrameHandler() {
+        public void onFrame(int session, int request, byte type, byte[] payload) {
+            CardFuture<byte[]> answer = pending.remove(request);
+            if (answer == null)
+                return; // timed out and forgotten
+            if (type == RemoteProtocol.ERROR)
+                answer.fail(new IOException(new String(payload, RemoteProtocol.UTF8)));
+            else
+                answer.complete(payload);
+        }
+    };
+
+    public RemoteCardClient(InetSocketAddress address) throws IOException {
+        this(address, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public RemoteCardClient(InetSocketAddress address, int maxInFlight) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        channel.configureBlocking(false);
+
+        this.connection = new FrameConnection(channel);
+        this.selector = Selector.open();
+        this.inFlight = new Semaphore(maxInFlight);
+        channel.register(selector, SelectionKey.OP_READ);
+
+        this.ioThread = new Thread(new Runnable() {
+            public void run() {
+                ioLoop();
+            }
+        }, "remote-card-client");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    // A new card session; it talks to its card once connected
+    public RemoteCardSession openSession() {
+        return new RemoteCardSession(this, nextSession.incrementAndGet());
+    }
+
+    public long getTimeout() {
+        return timeoutMillis;
+    }
+
+    // How long blocking calls wait for an answer
+    public void setTimeout(long millis) {
+        this.timeoutMillis = millis;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    CardFuture<byte[]> request(int session, byte type, byte[] payload) {
+        if (closed)
+            return CardFuture.failed(failure != null ? failure : new IOException("Connection closed"));
+
+        // Callbacks run on the I/O thread, and it must never wait for itself: requests chained
+        // from a callback may go over the limit
+        final boolean permit;
+        if (Thread.currentThread() == ioThread) {
+            permit = inFlight.tryAcquire();
+        } else {
+            inFlight.acquireUninterruptibly();
+            permit = true;
+        }
+        int request = nextRequest.incrementAndGet();
+        CardFuture<byte[]> answer = new CardFuture<byte[]>();
+        if (permit) {
+            answer.addCallback(new ICardCallback<byte[]>() {
+                public void onSuccess(byte[] result) {
+                    inFlight.release();
+                }
+
+                public void onFailure(Exception error) {
+                    inFlight.release();
+                }
+            });
+        }
+
+        pending.put(request, answer);
+        final Integer id = request;
+        answer.addCallback(new ICardCallback<byte[]>() {
+            public void onSuccess(byte[] result) {
+            }
+
+            // Cancelled (timed out) requests are forgotten: a late answer is dropped
+            public void onFailure(Exception error) {
+                pending.remove(id);
+            }
+        });
+        try {
+            connection.enqueue(RemoteProtocol.encode(session, request, type, payload));
+        } catch (IOException e) {
+            pending.remove(request);
+            answer.fail(e);
+            return answer;
+        }
+        selector.wakeup();
+        // The connection may have died while we were queueing
+        if (closed && pending.remove(request) != null)
+            answer.fail(new IOException("Connection closed"));
+        return answer;
+    }
+
+    private void ioLoop() {
+        IOException cause = null;
+        SelectionKey key = connection.channel.keyFor(selector);
+        try {
+            while (!closed) {
+                key.interestOps(connection.hasPendingWrites()
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
+                selector.select();
+                boolean selected = selector.selectedKeys().remove(key);
+
+                if (selected && key.isReadable() && !connection.read(handler))
+                    throw new EOFException("Server closed the connection");
+                if (connection.hasPendingWrites())
+                    connection.flush();
+            }
+        } catch (IOException e) {
+            cause = e;
+        } finally {
+            failure = cause;
+            closed = true;
+            connection.close();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+            IOException error = cause != null ? cause : new IOException("Connection closed");
+            for (Integer request : pending.keySet()) {
+                CardFuture<byte[]> answer = pending.remove(request);
+                if (answer != null)
+                    answer.fail(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package org.dematte.nfc.remote;
+
+import org.dematte.nfc.common.CardFuture;
+import org.dematte.nfc.common.ExecutorCardCommunicator;
+import org.dematte.nfc.common.IBatchCardCommunicator;
+import org.dematte.nfc.common.ICardCallback;
+import org.dematte.nfc.common.ICardCommunicator;
+import org.dematte.nfc.common.DesfireBatch;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server side of the remote coupler: exposes the cards of an ICardCommunicatorFactory to
+ * RemoteCardClients over TCP.
+ *
+ * A single selector thread serves every connection; card I/O runs on the workers executor,
+ * one serial queue per session, so a slow card only delays its own session.
+ * A connection with maxPendingPerConnection requests in progress is not read from until
+ * some of them are answered (back-pressure on the client).
+ */
+public class RemoteCardServer {
+
+    public static final int DEFAULT_MAX_PENDING_PER_CONNECTION = 256;
+
+    private final ICardCommunicatorFactory factory;
+    private final Executor workers;
+    private final int maxPendingPerConnection;
+    private final Selector selector;
+    // Connections with answers to send, or which may be read from again
+    private final ConcurrentLinkedQueue<Connection> dirty = new ConcurrentLinkedQueue<Connection>();
+
+    private ServerSocketChannel serverChannel;
+    private Thread ioThread;
+    private volatile boolean closed;
+
+    public RemoteCardServer(ICardCommunicatorFactory factory, Executor workers) throws IOException {
+        this(factory, workers, DEFAULT_MAX_PENDING_PER_CONNECTION);
+    }
+
+    public RemoteCardServer(ICardCommunicatorFactory factory, Executor workers, int maxPendingPerConnection)
+            throws IOException {
+        this.factory = factory;
+        this.workers = workers;
+        this.maxPendingPerConnection = maxPendingPerConnection;
+        this.selector = Selector.open();
+    }
+
+    // A server on a free loopback port, e.g. to put simulated cards behind a "remote" coupler
+    public static RemoteCardServer startLoopback(ICardCommunicatorFactory factory, Executor workers) throws IOException {
+        RemoteCardServer server = new RemoteCardServer(factory, workers);
+        server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        return server;
+    }
+
+    // Starts listening; returns the bound address (useful with port 0)
+    public synchronized InetSocketAddress bind(InetSocketAddress address) throws IOException {
+        if (serverChannel != null)
+            throw new IllegalStateException("Server already bound");
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        ioThread = new Thread(new Runnable() {
+            public void run() {
+                ioLoop();
+            }
+        }, "remote-card-server");
+        ioThread.setDaemon(true);
+        ioThread.start();
+        return getAddress();
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress)serverChannel.socket().getLocalSocketAddress();
+    }
+
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void ioLoop() {
+        try {
+            while (!closed) {
+                selector.select();
+
+                Connection connection;
+                while ((connection = dirty.poll()) != null)
+                    connection.updateInterest();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else
+                        ((Connection)key.attachment()).onReady(key);
+                }
+            }
+        } catch (IOException e) {
+            // The selector itself failed: nothing to serve with
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection)
+                    ((Connection)key.attachment()).close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(new FrameConnection(channel));
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    private class Connection implements FrameConnection.FrameHandler {
+        private final FrameConnection frames;
+        private final ConcurrentHashMap<Integer, ExecutorCardCommunicator> sessions =
+                new ConcurrentHashMap<Integer, ExecutorCardCommunicator>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private SelectionKey key;
+        private volatile boolean closed;
+
+        Connection(FrameConnection frames) {
+            this.frames = frames;
+        }
+
+        void onReady(SelectionKey key) {
+            try {
+                if (key.isReadable() && !frames.read(this)) {
+                    close();
+                    return;
+                }
+                if (frames.hasPendingWrites())
+                    frames.flush();
+                updateInterest();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void updateInterest() {
+            if (closed || !key.isValid())
+                return;
+            try {
+                // Answers may have been queued since the last flush: try to send them right away
+                if (frames.hasPendingWrites())
+                    frames.flush();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            int ops = 0;
+            if (pending.get() < maxPendingPerConnection)
+                ops |= SelectionKey.OP_READ;
+            if (frames.hasPendingWrites())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        public void onFrame(final int session, final int request, byte type, byte[] payload) {
+            pending.incrementAndGet();
+            switch (type) {
+                case RemoteProtocol.OPEN:
+                    ExecutorCardCommunicator communicator =
+                            new ExecutorCardCommunicator(new SessionCommunicator(session), workers);
+                    ExecutorCardCommunicator previous = sessions.put(session, communicator);
+                    if (previous != null)
+                        previous.close();
+                    answer(session, request, RemoteProtocol.RESPONSE, communicator.connect(), null);
+                    break;
+                case RemoteProtocol.TRANSCEIVE:
+                    communicator = sessions.get(session);
+                    if (communicator == null)
+                        error(session, request, "Session " + session + " is not open");
+                    else
+                        answer(session, request, RemoteProtocol.RESPONSE, communicator.transceive(payload), null);
+                    break;
+                case RemoteProtocol.BATCH:
+                    communicator = sessions.get(session);
+                    if (communicator == null)
+                        error(session, request, "Session " + session + " is not open");
+                    else
+                        batch(session, request, communicator, payload);
+                    break;
+                case RemoteProtocol.CLOSE:
+                    communicator = sessions.remove(session);
+                    if (communicator == null)
+                        answer(session, request, RemoteProtocol.RESPONSE, CardFuture.<Void>completed(null), null);
+                    else
+                        answer(session, request, RemoteProtocol.RESPONSE, communicator.close(), null);
+                    break;
+                default:
+                    error(session, request, "Unknown request type " + type);
+            }
+        }
+
+        private void batch(int session, int request, ExecutorCardCommunicator communicator, byte[] payload) {
+            byte[][] commands;
+            try {
+                commands = RemoteProtocol.decodeBatch(payload);
+            } catch (IOException e) {
+                error(session, request, e.getMessage());
+                return;
+            }
+            answer(session, request, RemoteProtocol.BATCH_RESPONSE, null, communicator.transceiveBatch(commands));
+        }
+
+        // Sends back the outcome of a single (future) or batch (batchFuture) request, when it is done
+        private void answer(final int session, final int request, final byte type,
+                            CardFuture<?> future, CardFuture<byte[][]> batchFuture) {
+            if (batchFuture != null) {
+                batchFuture.addCallback(new ICardCallback<byte[][]>() {
+                    public void onSuccess(byte[][] answers) {
+                        send(session, request, type, RemoteProtocol.encodeBatch(answers));
+                    }
+
+                    public void onFailure(Exception error) {
+                        error(session, request, String.valueOf(error.getMessage()));
+                    }
+                });
+                return;
+            }
+            future.addCallback(new ICardCallback<Object>() {
+                public void onSuccess(Object result) {
+                    send(session, request, type, result instanceof byte[] ? (byte[])result : new byte[0]);
+                }
+
+                public void onFailure(Exception error) {
+                    error(session, request, String.valueOf(error.getMessage()));
+                }
+            });
+        }
+
+        private void error(int session, int request, String message) {
+            send(session, request, RemoteProtocol.ERROR, message.getBytes(RemoteProtocol.UTF8));
+        }
+
+        private void send(int session, int request, byte type, byte[] payload) {
+            try {
+                frames.enqueue(RemoteProtocol.encode(session, request, type, payload));
+            } catch (IOException e) {
+                // Answer too large for a frame
+                byte[] message = e.getMessage().getBytes(RemoteProtocol.UTF8);
+                try {
+                    frames.enqueue(RemoteProtocol.encode(session, request, RemoteProtocol.ERROR, message));
+                } catch (IOException cannotHappen) {
+                    // a short message always fits
+                }
+            }
+            pending.decrementAndGet();
+            dirty.add(this);
+            selector.wakeup();
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            if (key != null)
+                key.cancel();
+            frames.close();
+            for (ExecutorCardCommunicator communicator : sessions.values())
+                communicator.close();
+            sessions.clear();
+        }
+    }
+
+    // Opens the card lazily, on the session's own queue, so that connecting never blocks the selector
+    private class SessionCommunicator implements IBatchCardCommunicator {
+        private final int session;
+        private ICardCommunicator card;
+
+        SessionCommunicator(int session) {
+            this.session = session;
+        }
+
+        public void connect() throws IOException {
+            card = factory.open(session);
+            card.connect();
+        }
+
+        public boolean isConnected() throws IOException {
+            return card != null && card.isConnected();
+        }
+
+        public void close() throws IOException {
+            if (card != null)
+                card.close();
+        }
+
+        public byte[] transceive(byte[] data) throws IOException {
+            return open().transceive(data);
+        }
+
+        public byte[][] transceiveBatch(byte[][] commands) throws IOException {
+            return DesfireBatch.transceiveBatch(open(), commands);
+        }
+
+        private ICardCommunicator open() throws IOException {
+            if (card == null)
+                throw new IOException("Session " + session + " is not connected");
+            return card;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.dematte.nfc.remote;
+
+import org.dematte.nfc.common.CardFuture;
+import org.dematte.nfc.common.IAsyncCardCommunicator;
+import org.dematte.nfc.common.IBatchCardCommunicator;
+import org.dematte.nfc.common.ICardCallback;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A card behind a remote coupler, reached through a RemoteCardClient connection.
+ *
+ * Blocking calls wait for their answer up to the client timeout; asAsync() gives a
+ * non-blocking view of the same session, whose callbacks run on the client I/O thread.
+ */
+public class RemoteCardSession implements IBatchCardCommunicator {
+
+    private final RemoteCardClient client;
+    private final int session;
+    private volatile boolean open;
+
+    RemoteCardSession(RemoteCardClient client, int session) {
+        this.client = client;
+        this.session = session;
+    }
+
+    public int getSessionId() {
+        return session;
+    }
+
+    public byte[] transceive(byte[] data) throws IOException {
+        return await(client.request(session, RemoteProtocol.TRANSCEIVE, data));
+    }
+
+    public byte[][] transceiveBatch(byte[][] commands) throws IOException {
+        byte[] answers = await(client.request(session, RemoteProtocol.BATCH, RemoteProtocol.encodeBatch(commands)));
+        return RemoteProtocol.decodeBatch(answers);
+    }
+
+    public void connect() throws IOException {
+        await(client.request(session, RemoteProtocol.OPEN, new byte[0]));
+        open = true;
+    }
+
+    public boolean isConnected() throws IOException {
+        return open && client.isOpen();
+    }
+
+    public void close() throws IOException {
+        if (!open)
+            return;
+        open = false;
+        await(client.request(session, RemoteProtocol.CLOSE, new byte[0]));
+    }
+
+    public IAsyncCardCommunicator asAsync() {
+        return new IAsyncCardCommunicator() {
+            public CardFuture<byte[]> transceive(byte[] data) {
+                return client.request(session, RemoteProtocol.TRANSCEIVE, data);
+            }
+
+            public CardFuture<Void> connect() {
+                final CardFuture<Void> ret = new CardFuture<Void>();
+                client.request(session, RemoteProtocol.OPEN, new byte[0]).addCallback(new ICardCallback<byte[]>() {
+                    public void onSuccess(byte[] result) {
+                        open = true;
+                        ret.complete(null);
+                    }
+
+                    public void onFailure(Exception error) {
+                        ret.fail(error);
+                    }
+                });
+                return ret;
+            }
+
+            public CardFuture<Void> close() {
+                open = false;
+                final CardFuture<Void> ret = new CardFuture<Void>();
+                client.request(session, RemoteProtocol.CLOSE, new byte[0]).addCallback(new ICardCallback<byte[]>() {
+                    public void onSuccess(byte[] result) {
+                        ret.complete(null);
+                    }
+
+                    public void onFailure(Exception error) {
+                        ret.fail(error);
+                    }
+                });
+                return ret;
+            }
+        };
+    }
+
+    private byte[] await(CardFuture<byte[]> answer) throws IOException {
+        try {
+            return answer.get(client.getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            answer.cancel(false);
+            throw new IOException("No answer from the remote coupler within " + client.getTimeout() + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            answer.cancel(false);
+            throw new IOException("Interrupted while waiting for the remote coupler");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause().getMessage());
+        }
+    }
+}
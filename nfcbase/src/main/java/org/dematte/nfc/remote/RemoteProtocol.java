@@ -0,0 +1,79 @@
+package org.dematte.nfc.remote;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Wire format between RemoteCardClient and RemoteCardServer.
+ *
+ * Every message is a length prefixed frame: length (4 bytes, big endian, not counting itself),
+ * session id (4), request id (4), type (1), payload. Answers carry the request id of the request
+ * they answer, so many requests (of many sessions) can be in flight on one connection.
+ */
+final class RemoteProtocol {
+
+    // Requests
+    static final byte OPEN = 1;
+    static final byte TRANSCEIVE = 2;
+    static final byte BATCH = 3;
+    static final byte CLOSE = 4;
+
+    // Answers
+    static final byte RESPONSE = 16;
+    static final byte BATCH_RESPONSE = 17;
+    static final byte ERROR = 18;
+
+    static final int HEADER_SIZE = 9;
+    static final int BUFFER_SIZE = 64 * 1024;
+    // A frame (and its length prefix) must fit in a read buffer
+    static final int MAX_FRAME_SIZE = BUFFER_SIZE - 4;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private RemoteProtocol() {
+    }
+
+    static ByteBuffer encode(int session, int request, byte type, byte[] payload) throws IOException {
+        int length = HEADER_SIZE + payload.length;
+        if (length > MAX_FRAME_SIZE)
+            throw new IOException("Frame too large: " + length + " bytes");
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).putInt(session).putInt(request).put(type).put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    // count (4), then length (4) and bytes of each command or answer
+    static byte[] encodeBatch(byte[][] frames) {
+        int size = 4;
+        for (byte[] frame : frames)
+            size += 4 + frame.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(frames.length);
+        for (byte[] frame : frames)
+            buffer.putInt(frame.length).put(frame);
+        return buffer.array();
+    }
+
+    // Counts and lengths come from the peer: they are checked against the payload before allocating
+    static byte[][] decodeBatch(byte[] payload) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        try {
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / 4)
+                throw new IOException("Malformed batch: " + count + " frames");
+            byte[][] frames = new byte[count][];
+            for (int i = 0; i < frames.length; ++i) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining())
+                    throw new IOException("Malformed batch: frame of " + length + " bytes");
+                frames[i] = new byte[length];
+                buffer.get(frames[i]);
+            }
+            return frames;
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed batch");
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.dematte.nfc.common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// AsyncMifareDesfire against a SimulatedDesfireCard, on the calling thread
+public class AsyncMifareDesfireTest {
+
+    private static final byte[] UID = ByteArray.hexStringToByteArray("04782E21801D80");
+    private static final byte[] AID = new byte[]{0x01, 0x02, 0x03};
+    private static final Executor IN_LINE = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private SimulatedDesfireCard card;
+    private MifareDesfire desfire;
+    private AsyncMifareDesfire async;
+
+    @Before
+    public void setUp() throws Exception {
+        card = new SimulatedDesfireCard(UID);
+        card.addApplication(AID, (byte)0x0F, 1).addStandardFile((byte)0x01, (byte)0x00, 0xEEEE, new byte[32]);
+        desfire = new MifareDesfire(card, UID);
+        desfire.connect();
+        async = new AsyncMifareDesfire(desfire, IN_LINE);
+    }
+
+    // Plain frames would go in the card's CMAC chain, and not in the session's
+    @Test
+    public void plainCommandsAreRefusedWithinAnEv1Session() throws Exception {
+        assertTrue(desfire.selectApplication(AID));
+        assertTrue(desfire.authenticateAes((byte)0, new byte[16]));
+        try {
+            async.getVersion();
+            fail("getVersion went out within an EV1 session");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            async.writeFile(new byte[4], 1, 0, 4);
+            fail("writeFile went out within an EV1 session");
+        } catch (IllegalStateException expected) {
+        }
+
+        // Selecting again ends the session
+        assertTrue(async.selectApplication(AID).get());
+        byte[] data = new byte[]{1, 2, 3, 4};
+        async.writeFile(data, 1, 0, data.length).get();
+        assertArrayEquals(data, async.readFile((byte)0x01, 0, 4).get());
+    }
+}
@@ -0,0 +1,111 @@
+package org.dematte.nfc.common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class CardImageCacheTest {
+
+    private static final byte[] UID = ByteArray.hexStringToByteArray("04782E21801D80");
+    private static final byte[] AID = new byte[]{0x01, 0x02, 0x03};
+    private static final int FID = 1;
+    // Data bytes per frame, for the merging of ranges
+    private static final int FRAME = 10;
+
+    private CardImageCache cache;
+    private CardImageCache.IntList ranges;
+
+    @Before
+    public void setUp() {
+        cache = new CardImageCache();
+        ranges = new CardImageCache.IntList();
+        cache.record(UID, AID, FID, 0, new byte[100], 0, 100);
+    }
+
+    // data: 100 bytes, zero but at the given offsets
+    private static byte[] changed(int... offsets) {
+        byte[] data = new byte[100];
+        for (int offset : offsets)
+            data[offset] = 1;
+        return data;
+    }
+
+    private void assertRanges(byte[] data, int... expected) {
+        int n = cache.changes(UID, AID, FID, 0, data, 0, data.length, FRAME, ranges);
+        assertEquals(expected.length / 2, n);
+        assertEquals(expected.length, ranges.size());
+        for (int i = 0; i < expected.length; ++i)
+            assertEquals("Value " + i, expected[i], ranges.get(i));
+    }
+
+    @Test
+    public void nothingChanged() {
+        assertRanges(new byte[100]);
+    }
+
+    @Test
+    public void unknownFileIsWrittenWhole() {
+        assertEquals(1, cache.changes(UID, AID, 2, 0, new byte[30], 0, 30, FRAME, ranges));
+        assertEquals(0, ranges.get(0));
+        assertEquals(30, ranges.get(1));
+    }
+
+    // 2 to 5 fits one frame, as 2 and 5 alone take one each
+    @Test
+    public void closeRangesAreMerged() {
+        assertRanges(changed(2, 5), 2, 4);
+    }
+
+    // 2 to 50 takes 5 frames, 2 and 50 alone one each
+    @Test
+    public void distantRangesStaySplit() {
+        assertRanges(changed(2, 3, 50, 51), 2, 2, 50, 2);
+    }
+
+    // 0 to 13 takes 2 frames, as 0 to 7 and 12 to 13 do apart: merged, as that costs nothing
+    @Test
+    public void rangesAreMergedWhenFramesAreEven() {
+        assertRanges(changed(0, 7, 12, 13), 0, 14);
+    }
+
+    // 0 to 9 and 21 to 22 take 2 frames; merged, 3
+    @Test
+    public void rangesStaySplitWhenMergingTakesAFrameMore() {
+        assertRanges(changed(0, 9, 21, 22), 0, 10, 21, 2);
+        // Up to 19 it still fits
+        assertRanges(changed(0, 9, 19), 0, 20);
+    }
+
+    // Three ranges: the first two merge, the third does not
+    @Test
+    public void mergingGoesOnFromTheMergedRange() {
+        assertRanges(changed(1, 4, 80), 1, 4, 80, 1);
+    }
+
+    @Test
+    public void forgottenBytesAreChanges() {
+        cache.forget(UID, AID, FID, 30, 5);
+        assertRanges(new byte[100], 30, 5);
+    }
+
+    // Offsets in the file and in data differ: ranges are offsets into data
+    @Test
+    public void rangesAreOffsetsIntoData() {
+        byte[] data = new byte[20];
+        data[5 + 3] = 1;
+        assertEquals(1, cache.changes(UID, AID, FID, 40, data, 5, 10, FRAME, ranges));
+        assertEquals(8, ranges.get(0));
+        assertEquals(1, ranges.get(1));
+    }
+
+    @Test
+    public void expiredImagesAreWrittenWhole() throws Exception {
+        cache = new CardImageCache(1024, 1, TimeUnit.MILLISECONDS);
+        cache.record(UID, AID, FID, 0, new byte[100], 0, 100);
+        Thread.sleep(5);
+        assertRanges(new byte[100], 0, 100);
+    }
+}
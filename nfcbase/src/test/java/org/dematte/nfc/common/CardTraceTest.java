@@ -0,0 +1,95 @@
+package org.dematte.nfc.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Two cards recording to one writer, then replayed one by one
+public class CardTraceTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("trace", ".nfct");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static SimulatedDesfireCard card(int id) {
+        SimulatedDesfireCard card = new SimulatedDesfireCard(new byte[]{0x04, (byte)id, 0, 0, 0, 0, 0});
+        card.addApplication(new byte[]{(byte)id, 0x00, 0x00}, (byte)0x0F, 1);
+        return card;
+    }
+
+    @Test
+    public void interleavedSessionsReplayApart() throws Exception {
+        CardTraceWriter writer = new CardTraceWriter(file);
+        RecordingCardCommunicator first = new RecordingCardCommunicator(card(1), writer);
+        RecordingCardCommunicator second = new RecordingCardCommunicator(card(2), writer);
+        first.connect();
+        second.connect();
+        byte[] firstApplications = first.transceive(new byte[]{0x6a});
+        byte[] secondApplications = second.transceive(new byte[]{0x6a});
+        byte[] secondSelect = second.transceive(new byte[]{0x5a, 0x02, 0x00, 0x00});
+        byte[] firstSelect = first.transceive(new byte[]{0x5a, 0x01, 0x00, 0x00});
+        writer.close();
+
+        CardTrace trace = CardTrace.read(file);
+        assertEquals(2, trace.getSessionCount());
+
+        // The time line goes on across SESSION records
+        List<CardTrace.Entry> entries = trace.getEntries();
+        long previous = 0;
+        for (CardTrace.Entry entry : entries) {
+            if (entry.getType() == CardTrace.SESSION)
+                continue;
+            assertTrue(entry.getStartNanos() >= previous);
+            previous = entry.getStartNanos();
+        }
+
+        ReplayCardCommunicator replay = new ReplayCardCommunicator(trace, 1, false);
+        replay.connect();
+        assertArrayEquals(secondApplications, replay.transceive(new byte[]{0x6a}));
+        assertArrayEquals(secondSelect, replay.transceive(new byte[]{0x5a, 0x02, 0x00, 0x00}));
+        assertTrue(replay.isFinished());
+
+        replay = new ReplayCardCommunicator(trace, false);
+        replay.connect();
+        assertArrayEquals(firstApplications, replay.transceive(new byte[]{0x6a}));
+        assertArrayEquals(firstSelect, replay.transceive(new byte[]{0x5a, 0x01, 0x00, 0x00}));
+        assertTrue(replay.isFinished());
+    }
+
+    // A writer appending to a trace starts new sessions, whatever ids it hands out
+    @Test
+    public void appendedRecordingsAreSessionsOfTheirOwn() throws Exception {
+        for (int i = 1; i <= 2; ++i) {
+            CardTraceWriter writer = new CardTraceWriter(file);
+            RecordingCardCommunicator recording = new RecordingCardCommunicator(card(i), writer);
+            recording.connect();
+            recording.transceive(new byte[]{0x5a, (byte)i, 0x00, 0x00});
+            writer.close();
+        }
+
+        CardTrace trace = CardTrace.read(file);
+        assertEquals(2, trace.getSessionCount());
+        for (int i = 0; i < 2; ++i) {
+            List<CardTrace.Entry> entries = trace.getEntries(i);
+            assertEquals(3, entries.size());
+            assertEquals(CardTrace.SESSION, entries.get(0).getType());
+            assertEquals(i + 1, entries.get(2).getCommands()[0][1]);
+        }
+    }
+}
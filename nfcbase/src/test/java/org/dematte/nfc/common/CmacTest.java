@@ -0,0 +1,48 @@
+package org.dematte.nfc.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CmacTest {
+
+    private static final String MESSAGE = "6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e51"
+            + "30c81c46a35ce411e5fbc1191a0a52eff69f2445df4f9b17ad2b417be66c3710";
+
+    private static byte[] message(int length) {
+        return ByteArray.hexStringToByteArray(MESSAGE.substring(0, 2 * length));
+    }
+
+    private static String mac(Cmac cmac, int length) throws Exception {
+        return ByteArray.byteArrayToHexString(cmac.mac(message(length)));
+    }
+
+    // RFC 4493, section 4
+    @Test
+    public void aesMatchesRfc4493() throws Exception {
+        Cmac cmac = Cmac.aes(ByteArray.hexStringToByteArray("2b7e151628aed2a6abf7158809cf4f3c"));
+        assertEquals("BB1D6929E95937287FA37D129B756746", mac(cmac, 0));
+        assertEquals("070A16B46B4D4144F79BDD9DD04A287C", mac(cmac, 16));
+        assertEquals("DFA66747DE9AE63030CA32611497C827", mac(cmac, 40));
+        assertEquals("51F0BEBF7E3B9D92FC49741779363CFE", mac(cmac, 64));
+    }
+
+    // NIST SP 800-38B, appendix D.4 (three key TDEA)
+    @Test
+    public void tripleDesMatchesSp80038b() throws Exception {
+        Cmac cmac = Cmac.tripleDes(ByteArray.hexStringToByteArray(
+                "8aa83bf8cbda10620bc1bf19fbb6cd58bc313d4a371ca8b5"));
+        assertEquals("B7A688E122FFAF95", mac(cmac, 0));
+        assertEquals("8E8F293136283797", mac(cmac, 8));
+        assertEquals("743DDBE0CE2DC2ED", mac(cmac, 20));
+        assertEquals("33E6B1092400EAE5", mac(cmac, 32));
+    }
+
+    @Test
+    public void macOfRangeIsMacOfItsBytes() throws Exception {
+        Cmac cmac = Cmac.aes(ByteArray.hexStringToByteArray("2b7e151628aed2a6abf7158809cf4f3c"));
+        byte[] padded = ByteArray.hexStringToByteArray("FFFF" + MESSAGE.substring(0, 80) + "FF");
+        assertEquals("DFA66747DE9AE63030CA32611497C827",
+                ByteArray.byteArrayToHexString(cmac.mac(padded, 2, 40)));
+    }
+}
@@ -0,0 +1,47 @@
+package org.dematte.nfc.common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// DesfireBatch against a SimulatedDesfireCard, which runs a batch in a single exchange
+public class DesfireBatchTest {
+
+    private static final byte[] UID = ByteArray.hexStringToByteArray("04782E21801D80");
+
+    private SimulatedDesfireCard card;
+    private MifareDesfire desfire;
+
+    @Before
+    public void setUp() throws Exception {
+        card = new SimulatedDesfireCard(UID);
+        desfire = new MifareDesfire(card, UID);
+        desfire.connect();
+    }
+
+    // 25 applications take 75 bytes: two frames
+    @Test
+    public void longAnswersAreFetchedWhole() throws Exception {
+        ByteArray aids = new ByteArray();
+        for (int i = 1; i <= 25; ++i) {
+            byte[] aid = new byte[]{(byte)i, 0x00, 0x00};
+            card.addApplication(aid, (byte)0x0F, 1);
+            aids.append(aid);
+        }
+
+        DesfireBatch batch = desfire.batch().getApplications().command("getVersion", new byte[]{0x60}).getKeySettings();
+        DesfireBatch.StepResult[] results = batch.execute();
+        for (DesfireBatch.StepResult result : results)
+            assertTrue(result.toString(), result.isSuccess());
+        assertArrayEquals(aids.toArray(), results[0].getData());
+        // Hardware, software, then UID and production data
+        assertEquals(28, results[1].getData().length);
+        assertArrayEquals(UID, Arrays.copyOfRange(results[1].getData(), 14, 21));
+        assertEquals(2, results[2].getData().length);
+    }
+}
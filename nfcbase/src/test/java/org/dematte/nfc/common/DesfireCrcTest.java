@@ -0,0 +1,80 @@
+package org.dematte.nfc.common;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DesfireCrcTest {
+
+    // ISO 14443-3, annex B: CRC_A of 00 00 is sent as A0 1E, of 12 34 as 26 CF
+    @Test
+    public void crc16MatchesIso14443Examples() {
+        assertEquals(0x1EA0, DesfireCrc.crc16(new byte[]{0x00, 0x00}, 0, 2));
+        assertEquals(0xCF26, DesfireCrc.crc16(new byte[]{0x12, 0x34}, 0, 2));
+    }
+
+    // The CRC32 check value is CBF43926; DESFire leaves out the final complement
+    @Test
+    public void crc32MatchesCheckValue() {
+        byte[] check = "123456789".getBytes();
+        assertEquals(0x340BC6D9, DesfireCrc.crc32(check, 0, check.length));
+    }
+
+    @Test
+    public void crc32AppendsLeastSignificantByteFirst() {
+        byte[] check = "123456789".getBytes();
+        ByteArray array = new ByteArray(4);
+        DesfireCrc crc = DesfireCrc.crc32().update(check);
+        crc.appendTo(array);
+        assertEquals("D9C60B34", ByteArray.byteArrayToHexString(array.toArray()));
+        assertTrue(crc.matches(array.toArray(), 0));
+    }
+
+    @Test
+    public void crc32AgreesWithZipCrc32OnSplitRangesAndBuffers() {
+        Random random = new Random(1);
+        for (int i = 0; i < 500; ++i) {
+            byte[] data = new byte[random.nextInt(300)];
+            random.nextBytes(data);
+            int offset = data.length == 0 ? 0 : random.nextInt(data.length);
+            int length = data.length - offset;
+
+            CRC32 zip = new CRC32();
+            zip.update(data, offset, length);
+            int expected = (int)~zip.getValue();
+
+            int split = random.nextInt(length + 1);
+            assertEquals(expected, DesfireCrc.crc32().update(data, offset, split)
+                    .update(data, offset + split, length - split).getValue());
+            for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+                ByteBuffer direct = ByteBuffer.allocateDirect(length).order(order);
+                direct.put(data, offset, length).flip();
+                assertEquals(expected, DesfireCrc.crc32().update(direct).getValue());
+                assertEquals(0, direct.remaining());
+            }
+            assertEquals(expected, DesfireCrc.crc32().update(ByteBuffer.wrap(data, offset, length)).getValue());
+        }
+    }
+
+    @Test
+    public void crc16AgreesWithBitwiseDefinition() {
+        Random random = new Random(2);
+        for (int i = 0; i < 200; ++i) {
+            byte[] data = new byte[random.nextInt(100)];
+            random.nextBytes(data);
+            int crc = 0x6363;
+            for (byte b : data) {
+                crc ^= b & 0xff;
+                for (int bit = 0; bit < 8; ++bit)
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x8408 : crc >>> 1;
+            }
+            assertEquals(crc, DesfireCrc.crc16(data, 0, data.length));
+        }
+    }
+}
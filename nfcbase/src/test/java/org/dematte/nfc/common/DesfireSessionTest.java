@@ -0,0 +1,50 @@
+package org.dematte.nfc.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DesfireSessionTest {
+
+    // RndA 00 01 02 ..., RndB 10 11 12 ...: every byte tells where it comes from
+    private static byte[] random(int first, int length) {
+        byte[] ret = new byte[length];
+        for (int i = 0; i < length; ++i)
+            ret[i] = (byte)(first + i);
+        return ret;
+    }
+
+    private static String sessionKey(DesfireSession.Mode mode, byte[] key, int randomLength) {
+        return ByteArray.byteArrayToHexString(DesfireSession.sessionKey(mode, key,
+                random(0x00, randomLength), random(0x10, randomLength)));
+    }
+
+    // RndA[0..3] || RndB[0..3] || RndA[12..15] || RndB[12..15]
+    @Test
+    public void aesSessionKey() {
+        assertEquals("00010203101112130C0D0E0F1C1D1E1F",
+                sessionKey(DesfireSession.Mode.AES, new byte[16], 16));
+    }
+
+    // RndA[0..3] || RndB[0..3] || RndA[4..7] || RndB[4..7]
+    @Test
+    public void twoKeyTripleDesSessionKey() {
+        byte[] key = ByteArray.hexStringToByteArray("00112233445566778899AABBCCDDEEFF");
+        assertEquals("00010203101112130405060714151617",
+                sessionKey(DesfireSession.Mode.ISO, key, 8));
+    }
+
+    // Same halves (parity bits aside): single DES, RndA[0..3] || RndB[0..3]
+    @Test
+    public void singleDesSessionKey() {
+        byte[] key = ByteArray.hexStringToByteArray("00112233445566770111223344556677");
+        assertEquals("0001020310111213", sessionKey(DesfireSession.Mode.ISO, key, 8));
+    }
+
+    // RndA[0..3] || RndB[0..3] || RndA[6..9] || RndB[6..9] || RndA[12..15] || RndB[12..15]
+    @Test
+    public void threeKeyTripleDesSessionKey() {
+        assertEquals("000102031011121306070809161718190C0D0E0F1C1D1E1F",
+                sessionKey(DesfireSession.Mode.ISO, new byte[24], 16));
+    }
+}
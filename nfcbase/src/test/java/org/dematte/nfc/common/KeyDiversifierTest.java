@@ -0,0 +1,35 @@
+package org.dematte.nfc.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class KeyDiversifierTest {
+
+    private static byte[] hex(String s) {
+        return ByteArray.hexStringToByteArray(s);
+    }
+
+    // AN10922, section 2.2.1: AES-128 key for UID 04782E21801D80, AID 3042F5, system "NXP Abu"
+    @Test
+    public void aesMatchesAn10922Example() throws Exception {
+        KeyDiversifier diversifier = new KeyDiversifier(KeyDiversifier.Algorithm.AES_128,
+                hex("00112233445566778899AABBCCDDEEFF"), hex("4E585020416275"));
+        assertEquals("A8DD63A3B89D54B37CA802473FDA9175",
+                ByteArray.byteArrayToHexString(diversifier.diversify(hex("04782E21801D80"), hex("3042F5"))));
+    }
+
+    @Test
+    public void cachedKeysAreTheDerivedOnes() throws Exception {
+        KeyDiversifier diversifier = new KeyDiversifier(KeyDiversifier.Algorithm.TDES_2K,
+                hex("00112233445566778899AABBCCDDEEFF"), hex("4E5850"));
+        byte[] uid = hex("04782E21801D80");
+        byte[] aid = hex("3042F5");
+        byte[] derived = diversifier.derive(uid, aid);
+        assertEquals(16, derived.length);
+        assertArrayEquals(derived, diversifier.diversify(uid, aid));
+        assertArrayEquals(derived, diversifier.diversify(uid, aid));
+        assertEquals(1, diversifier.getHits());
+    }
+}
@@ -0,0 +1,179 @@
+package org.dematte.nfc.common;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// MifareDesfire against a SimulatedDesfireCard
+public class MifareDesfireTest {
+
+    private static final byte[] UID = ByteArray.hexStringToByteArray("04782E21801D80");
+    private static final byte[] AID_A = new byte[]{0x01, 0x02, 0x03};
+    private static final byte[] AID_B = new byte[]{0x04, 0x05, 0x06};
+    private static final byte BACKUP_FILE = 0x01;
+
+    private SimulatedDesfireCard card;
+    private MifareDesfire desfire;
+
+    @Before
+    public void setUp() throws Exception {
+        card = new SimulatedDesfireCard(UID);
+        card.addApplication(AID_A, (byte)0x0F, 1).addBackupFile(BACKUP_FILE, (byte)0x00, 0xEEEE, new byte[64]);
+        card.addApplication(AID_B, (byte)0x0F, 1).addStandardFile((byte)0x02, (byte)0x00, 0xEEEE, new byte[16]);
+        desfire = new MifareDesfire(card, UID);
+        desfire.connect();
+        desfire.setImageCache(new CardImageCache());
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] ret = new byte[length];
+        Arrays.fill(ret, (byte)value);
+        return ret;
+    }
+
+    // Selecting through a batch aborts the transaction: its writes must not reach the image
+    @Test
+    public void batchSelectDropsUncommittedWrites() throws Exception {
+        assertTrue(desfire.selectApplication(AID_A));
+        desfire.readFile(BACKUP_FILE, 0, 64);
+        byte[] data = filled(64, 0x11);
+        desfire.writeFile(data, BACKUP_FILE, 0, data.length);
+
+        DesfireBatch.StepResult[] results = desfire.batch().selectApplication(AID_B).execute();
+        assertTrue(results[0].isSuccess());
+        desfire.commit();
+
+        assertTrue(desfire.selectApplication(AID_A));
+        assertArrayEquals(new byte[64], card.getApplication(AID_A).getFile(BACKUP_FILE).getContent());
+        assertEquals(64, desfire.writeFileChanges(data, BACKUP_FILE, 0, MifareDesfire.CommunicationMode.PLAIN));
+        desfire.commit();
+        assertArrayEquals(data, card.getApplication(AID_A).getFile(BACKUP_FILE).getContent());
+    }
+
+    @Test
+    public void committedWritesReachTheImage() throws Exception {
+        assertTrue(desfire.selectApplication(AID_A));
+        desfire.readFile(BACKUP_FILE, 0, 64);
+        byte[] data = filled(64, 0x22);
+        desfire.writeFile(data, BACKUP_FILE, 0, data.length);
+        desfire.commit();
+
+        assertEquals(0, desfire.writeFileChanges(data, BACKUP_FILE, 0, MifareDesfire.CommunicationMode.PLAIN));
+        data[40] = 0x33;
+        assertEquals(1, desfire.writeFileChanges(data, BACKUP_FILE, 0, MifareDesfire.CommunicationMode.PLAIN));
+        desfire.commit();
+        assertArrayEquals(data, card.getApplication(AID_A).getFile(BACKUP_FILE).getContent());
+    }
+
+    // Plain writes carry 48 bytes a frame: changes are merged unless that takes more frames
+    @Test
+    public void writeFileChangesMergesRangesByFrames() throws Exception {
+        card.getApplication(AID_A).addStandardFile((byte)0x03, (byte)0x00, 0xEEEE, new byte[128]);
+        assertTrue(desfire.selectApplication(AID_A));
+        byte[] data = desfire.readFile((byte)0x03, 0, 128);
+
+        // 1 to 40: one frame
+        data[1] = 1;
+        data[40] = 1;
+        card.resetCounters();
+        assertEquals(40, desfire.writeFileChanges(data, 3, 0, MifareDesfire.CommunicationMode.PLAIN));
+        assertEquals(1, card.getExchangeCount());
+        // The image only takes writes once committed
+        desfire.commit();
+
+        // 2 to 120 would take three frames, 2 and 120 apart take two
+        data[2] = 2;
+        data[120] = 2;
+        card.resetCounters();
+        assertEquals(2, desfire.writeFileChanges(data, 3, 0, MifareDesfire.CommunicationMode.PLAIN));
+        assertEquals(2, card.getExchangeCount());
+        assertArrayEquals(data, card.getApplication(AID_A).getFile((byte)0x03).getContent());
+    }
+
+    // Records of 8 bytes: sequence number (4 bytes, little endian), then 4 bytes of payload
+    private void addRecords(byte fid, long firstSequence, int count) {
+        SimulatedDesfireCard.Application application = card.getApplication(AID_A);
+        application.addRecordFile(fid, false, (byte)0x00, 0xEEEE, 8, 100);
+        for (int i = 0; i < count; ++i) {
+            long sequence = firstSequence + i;
+            application.addRecord(fid, new ByteArray(8).append((int)sequence, 4).append((int)(sequence * 3), 4).toArray());
+        }
+    }
+
+    private static void assertSequences(RecordCursor cursor, long first, long last) {
+        assertEquals(last - first + 1, cursor.size());
+        for (long sequence = first; sequence <= last; ++sequence) {
+            assertTrue(cursor.next());
+            assertEquals(sequence, cursor.getUnsigned(0, 4));
+            assertEquals(sequence * 3, cursor.getUnsigned(4, 4));
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void recordsSinceOfAnEmptyFile() throws Exception {
+        addRecords((byte)0x05, 1, 0);
+        assertTrue(desfire.selectApplication(AID_A));
+
+        RecordCursor cursor = desfire.readRecordsSince((byte)0x05, 0, 4, -1, null);
+        assertEquals(0, cursor.size());
+        assertEquals(-1, cursor.getLastSequence());
+        cursor = desfire.readRecordsSince((byte)0x05, 0, 4, 42, cursor);
+        assertEquals(0, cursor.size());
+        assertEquals(42, cursor.getLastSequence());
+    }
+
+    // Batches of 7 records (one frame), then 14: the whole file is read, all of it newer
+    @Test
+    public void recordsSinceAllNewer() throws Exception {
+        addRecords((byte)0x05, 101, 20);
+        assertTrue(desfire.selectApplication(AID_A));
+
+        RecordCursor cursor = desfire.readRecordsSince((byte)0x05, 0, 4, 100, null);
+        assertSequences(cursor, 101, 120);
+        assertEquals(120, cursor.getLastSequence());
+
+        cursor = desfire.readRecordsSince((byte)0x05, 0, 4, -1, cursor);
+        assertSequences(cursor, 101, 120);
+        assertEquals(120, cursor.getLastSequence());
+    }
+
+    // The first batch holds 14 to 20, the second 1 to 13: the cut-off falls within it
+    @Test
+    public void recordsSinceCutInTheSecondBatch() throws Exception {
+        addRecords((byte)0x05, 1, 20);
+        assertTrue(desfire.selectApplication(AID_A));
+
+        card.resetCounters();
+        RecordCursor cursor = desfire.readRecordsSince((byte)0x05, 0, 4, 10, null);
+        // File settings, 7 records in one frame, 13 in two
+        assertEquals(4, card.getExchangeCount());
+        assertSequences(cursor, 11, 20);
+        assertEquals(20, cursor.getLastSequence());
+
+        // At the first batch's edge, and past the newest
+        assertSequences(desfire.readRecordsSince((byte)0x05, 0, 4, 13, cursor), 14, 20);
+        cursor = desfire.readRecordsSince((byte)0x05, 0, 4, 20, cursor);
+        assertEquals(0, cursor.size());
+        assertEquals(20, cursor.getLastSequence());
+    }
+
+    // Legacy authentication can not take a 3K3DES key on EV1: it must go through ISO authentication
+    @Test
+    public void diversifiedThreeKeyTripleDesAuthenticatesIso() throws Exception {
+        KeyDiversifier diversifier = new KeyDiversifier(KeyDiversifier.Algorithm.TDES_3K,
+                ByteArray.hexStringToByteArray("00112233445566778899AABBCCDDEEFF0102030405060708"),
+                ByteArray.hexStringToByteArray("4E5850"));
+        card.getApplication(AID_A).setKey(0, diversifier.derive(UID, AID_A));
+
+        assertTrue(desfire.selectApplication(AID_A));
+        assertTrue(desfire.authenticate((byte)0, diversifier));
+        assertEquals(DesfireSession.Mode.ISO, desfire.getSession().getMode());
+    }
+}
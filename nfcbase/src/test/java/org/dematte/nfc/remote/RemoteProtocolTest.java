@@ -0,0 +1,50 @@
+package org.dematte.nfc.remote;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class RemoteProtocolTest {
+
+    @Test
+    public void batchesRoundTrip() throws IOException {
+        byte[][] frames = new byte[][]{new byte[]{0x5a, 0x01, 0x02, 0x03}, new byte[0], new byte[]{0x6f}};
+        byte[][] decoded = RemoteProtocol.decodeBatch(RemoteProtocol.encodeBatch(frames));
+        assertEquals(frames.length, decoded.length);
+        for (int i = 0; i < frames.length; ++i)
+            assertArrayEquals(frames[i], decoded[i]);
+    }
+
+    // A forged count or length must not get as far as allocating it
+    @Test
+    public void forgedCountIsRefused() {
+        assertMalformed(ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE).putInt(0).array());
+        assertMalformed(ByteBuffer.allocate(8).putInt(-1).putInt(0).array());
+    }
+
+    @Test
+    public void forgedLengthIsRefused() {
+        assertMalformed(ByteBuffer.allocate(10).putInt(1).putInt(Integer.MAX_VALUE).put(new byte[2]).array());
+        assertMalformed(ByteBuffer.allocate(10).putInt(1).putInt(-2).put(new byte[2]).array());
+        assertMalformed(ByteBuffer.allocate(10).putInt(1).putInt(3).put(new byte[2]).array());
+    }
+
+    @Test
+    public void truncatedBatchIsRefused() {
+        assertMalformed(new byte[2]);
+        assertMalformed(ByteBuffer.allocate(6).putInt(1).put(new byte[2]).array());
+    }
+
+    private static void assertMalformed(byte[] payload) {
+        try {
+            RemoteProtocol.decodeBatch(payload);
+            fail("Malformed batch decoded");
+        } catch (IOException expected) {
+        }
+    }
+}